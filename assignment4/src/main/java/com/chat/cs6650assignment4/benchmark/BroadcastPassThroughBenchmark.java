@@ -0,0 +1,96 @@
+package com.chat.cs6650assignment4.benchmark;
+
+import com.chat.cs6650assignment4.model.ChatMessage;
+import com.chat.cs6650assignment4.model.QueueMessage;
+import com.chat.cs6650assignment4.protocol.RawQueueMessage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.web.socket.TextMessage;
+
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.Random;
+import java.util.UUID;
+
+// CPU and allocation per message from work-queue body to the shared WebSocket frame, one gateway node.
+public class BroadcastPassThroughBenchmark {
+
+    private static final int MESSAGE_COUNT = 1024;
+    private static final int WARMUP_ITERATIONS = 1_000_000;
+    private static final int MEASURED_ITERATIONS = 2_000_000;
+
+    private static volatile Object sink;
+
+    public interface Hop {
+        Object apply(byte[] body) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        Jackson2JsonMessageConverter converter = new Jackson2JsonMessageConverter();
+        byte[][] bodies = buildBodies(objectMapper);
+
+        System.out.println("\n=========== BROADCAST PASS-THROUGH BENCHMARK ===========");
+        System.out.printf("Messages=%d, Warmup=%d, Measured=%d%n", MESSAGE_COUNT, WARMUP_ITERATIONS, MEASURED_ITERATIONS);
+
+        run("decode/re-encode", bodies, body -> {
+            QueueMessage consumed = objectMapper.readValue(body, QueueMessage.class);
+            Message broadcast = converter.toMessage(consumed, new MessageProperties());
+            QueueMessage received = objectMapper.readValue(broadcast.getBody(), QueueMessage.class);
+            return new TextMessage(objectMapper.writeValueAsString(received));
+        });
+        run("pass-through", bodies, body -> {
+            RawQueueMessage consumed = RawQueueMessage.peek(body);
+            MessageProperties properties = new MessageProperties();
+            properties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+            Message broadcast = new Message(consumed.getBody(), properties);
+            RawQueueMessage received = RawQueueMessage.peek(broadcast.getBody());
+            sink = received.getRoomId();
+            return new TextMessage(broadcast.getBody());
+        });
+        // The persistence decode still happens, on the DB writer pool instead of the listener thread.
+        run("pass-through+persist", bodies, body -> {
+            RawQueueMessage consumed = RawQueueMessage.peek(body);
+            sink = objectMapper.readValue(consumed.getBody(), QueueMessage.class);
+            Message broadcast = new Message(consumed.getBody(), new MessageProperties());
+            RawQueueMessage received = RawQueueMessage.peek(broadcast.getBody());
+            sink = received.getRoomId();
+            return new TextMessage(broadcast.getBody());
+        });
+    }
+
+    private static void run(String name, byte[][] bodies, Hop hop) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink = hop.apply(bodies[i & (MESSAGE_COUNT - 1)]);
+        }
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+        long cpuBefore = threadBean.getCurrentThreadCpuTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            sink = hop.apply(bodies[i & (MESSAGE_COUNT - 1)]);
+        }
+        long cpu = threadBean.getCurrentThreadCpuTime() - cpuBefore;
+        long allocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        System.out.printf("%-24s %8.1f ns cpu/msg %8.1f bytes/msg%n", name,
+                (double) cpu / MEASURED_ITERATIONS, (double) allocated / MEASURED_ITERATIONS);
+    }
+
+    private static byte[][] buildBodies(ObjectMapper objectMapper) throws Exception {
+        Random random = new Random(42);
+        byte[][] bodies = new byte[MESSAGE_COUNT][];
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            int userId = 1 + random.nextInt(100000);
+            QueueMessage msg = new QueueMessage(UUID.randomUUID().toString(), String.valueOf(1 + i % 20),
+                    String.valueOf(userId), "user" + userId, "The system performance is looking good. #" + i,
+                    Instant.now().plusMillis(i).toString(), ChatMessage.MessageType.TEXT, "server-1a2b3c4d",
+                    "/10.0.0." + (i & 255) + ":51234");
+            msg.setClientMessageId(UUID.randomUUID().toString());
+            bodies[i] = objectMapper.writeValueAsBytes(msg);
+        }
+        return bodies;
+    }
+}
@@ -0,0 +1,151 @@
+package com.chat.cs6650assignment4.benchmark;
+
+import com.chat.cs6650assignment4.bus.InProcessMessageBus;
+import com.chat.cs6650assignment4.config.NodeIdentity;
+import com.chat.cs6650assignment4.config.RoomSharding;
+import com.chat.cs6650assignment4.consumerv4.BroadcastPublisherService;
+import com.chat.cs6650assignment4.consumerv4.DeliveryAckCoalescer;
+import com.chat.cs6650assignment4.consumerv4.DynamoDBBatchWriter;
+import com.chat.cs6650assignment4.consumerv4.IdempotencyStore;
+import com.chat.cs6650assignment4.consumerv4.MessagePersistenceService;
+import com.chat.cs6650assignment4.consumerv4.RabbitMQConsumerService;
+import com.chat.cs6650assignment4.model.ChatMessage;
+import com.chat.cs6650assignment4.model.QueueMessage;
+import com.chat.cs6650assignment4.monitoring.PipelineTracer;
+import com.chat.cs6650assignment4.serverv4.BroadcastConsumerService;
+import com.chat.cs6650assignment4.serverv4.FrameCompressionService;
+import com.chat.cs6650assignment4.serverv4.RoomFanout;
+import com.chat.cs6650assignment4.serverv4.SessionManager;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Listener-thread CPU per delivery for the per-message and batch room-queue listeners, with the broker
+// publish stubbed out. Ack frames per delivery are counted on a recording channel; their broker-side
+// cost is not part of the CPU figure.
+public class ConsumerListenerBenchmark {
+
+    private static final int DELIVERIES_PER_ROUND = 10_000;
+    private static final int WARMUP_ROUNDS = 50;
+    private static final int MEASURED_ROUNDS = 100;
+    private static final int BATCH_SIZE = 50;
+
+    private static final AtomicLong ackFrames = new AtomicLong();
+    private static long nextTag;
+
+    public interface Listener {
+        void apply(List<Message> deliveries, Channel channel) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, methodArgs) -> switch (method.getName()) {
+                    case "basicAck", "basicNack" -> {
+                        ackFrames.incrementAndGet();
+                        yield null;
+                    }
+                    case "isOpen" -> true;
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == methodArgs[0];
+                    default -> null;
+                });
+
+        System.out.println("\n=========== ROOM CONSUMER LISTENER BENCHMARK ===========");
+        System.out.printf("Deliveries/round=%d, Warmup rounds=%d, Measured rounds=%d, Batch size=%d%n",
+                DELIVERIES_PER_ROUND, WARMUP_ROUNDS, MEASURED_ROUNDS, BATCH_SIZE);
+
+        RabbitMQConsumerService perMessage = newConsumer(objectMapper, false);
+        run("per-message", objectMapper, channel, (deliveries, ch) -> {
+            for (Message delivery : deliveries) {
+                perMessage.onMessage(delivery, ch);
+            }
+        });
+        RabbitMQConsumerService coalesced = newConsumer(objectMapper, true);
+        run("per-message+coalesce", objectMapper, channel, (deliveries, ch) -> {
+            for (Message delivery : deliveries) {
+                coalesced.onMessage(delivery, ch);
+            }
+        });
+        RabbitMQConsumerService batch = newConsumer(objectMapper, false);
+        run("batch listener", objectMapper, channel, (deliveries, ch) -> {
+            for (int i = 0; i < deliveries.size(); i += BATCH_SIZE) {
+                batch.onMessageBatch(deliveries.subList(i, Math.min(deliveries.size(), i + BATCH_SIZE)), ch);
+            }
+        });
+        System.exit(0);
+    }
+
+    // Each run is a fresh consumer on a fresh channel, whose delivery tags start at 1.
+    private static void run(String name, ObjectMapper objectMapper, Channel channel, Listener listener) throws Exception {
+        nextTag = 0;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            listener.apply(deliveries(objectMapper), channel);
+        }
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long cpu = 0;
+        long allocated = 0;
+        long framesBefore = ackFrames.get();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            List<Message> deliveries = deliveries(objectMapper);
+            long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+            long cpuBefore = threadBean.getCurrentThreadCpuTime();
+            listener.apply(deliveries, channel);
+            cpu += threadBean.getCurrentThreadCpuTime() - cpuBefore;
+            allocated += threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        }
+        double measured = (double) DELIVERIES_PER_ROUND * MEASURED_ROUNDS;
+
+        System.out.printf("%-22s %8.1f ns cpu/msg %8.1f bytes/msg %6.3f ack frames/msg %10.0f msgs/s/core%n", name,
+                cpu / measured, allocated / measured, (ackFrames.get() - framesBefore) / measured, measured * 1e9 / cpu);
+    }
+
+    private static List<Message> deliveries(ObjectMapper objectMapper) throws Exception {
+        List<Message> deliveries = new ArrayList<>(DELIVERIES_PER_ROUND);
+        for (int i = 0; i < DELIVERIES_PER_ROUND; i++) {
+            QueueMessage msg = new QueueMessage(UUID.randomUUID().toString(), String.valueOf(1 + i % 20),
+                    String.valueOf(1 + i % 100000), "user" + i, "The system performance is looking good. #" + i,
+                    Instant.now().toString(), ChatMessage.MessageType.TEXT, "server-1a2b3c4d", "/10.0.0.1:51234");
+            MessageProperties properties = new MessageProperties();
+            properties.setDeliveryTag(++nextTag);
+            deliveries.add(new Message(objectMapper.writeValueAsBytes(msg), properties));
+        }
+        return deliveries;
+    }
+
+    private static RabbitMQConsumerService newConsumer(ObjectMapper objectMapper, boolean coalesceAcks) {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.initialize();
+        PipelineTracer tracer = new PipelineTracer(registry, 0.0, false, 0);
+
+        // No queue is subscribed, so every broadcast is dropped as unroutable.
+        InProcessMessageBus bus = new InProcessMessageBus(registry);
+        BroadcastPublisherService publisher = new BroadcastPublisherService(bus, new NodeIdentity(), objectMapper,
+                scheduler, Runnable::run, registry, tracer, false, 50, 2);
+        // Never started: the persistence buffer fills and further offers are dropped, the same for every mode.
+        MessagePersistenceService persistence = new MessagePersistenceService(
+                new DynamoDBBatchWriter(null, null, tracer, registry), objectMapper, Runnable::run);
+        BroadcastConsumerService localBroadcasts = new BroadcastConsumerService(new SessionManager(1024), objectMapper,
+                new FrameCompressionService(registry), new RoomFanout(null, List.of(), registry), tracer, new NodeIdentity(),
+                registry);
+
+        DeliveryAckCoalescer acks = new DeliveryAckCoalescer(scheduler, registry, coalesceAcks, 50, 20, 200, 1000);
+        acks.init();
+        return new RabbitMQConsumerService(objectMapper, registry, publisher, persistence, localBroadcasts, tracer,
+                new IdempotencyStore(registry, 300, 4, 4_000_000, 16), acks,
+                new RoomSharding(bus, new NodeIdentity(), scheduler, registry, 0, -1, 20, 160));
+    }
+}
@@ -0,0 +1,79 @@
+package com.chat.cs6650assignment4.benchmark;
+
+import com.chat.cs6650assignment4.consumerv4.IdempotencyStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Feeds fresh UUID message ids through the consumer's dedup structure and reports live heap as it goes.
+// Usage: IdempotencyStoreSoak [messages] [legacyMessages]
+public class IdempotencyStoreSoak {
+
+    private static final long DEFAULT_MESSAGES = 100_000_000L;
+    private static final long DEFAULT_LEGACY_MESSAGES = 10_000_000L;
+    private static final int REPORTS = 10;
+    private static final int RECENT = 1024;
+
+    public interface Dedup {
+        boolean add(String id);
+    }
+
+    public static void main(String[] args) {
+        long messages = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_MESSAGES;
+        long legacyMessages = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_LEGACY_MESSAGES;
+
+        System.out.println("\n=========== IDEMPOTENCY STORE SOAK ===========");
+        System.out.printf("Messages=%d, LegacyMessages=%d%n", messages, legacyMessages);
+
+        // Previous structure: an unbounded concurrent set of UUID strings.
+        Set<String> legacy = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        run("legacy set", legacy::add, legacyMessages);
+        legacy = null;
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        IdempotencyStore store = new IdempotencyStore(registry, 30, 4, 4_000_000, 16);
+        store.registerGauges();
+        run("idempotency store", store::add, messages);
+        System.out.printf("store: entries=%.0f memory=%.1f MB expired=%.0f capacity-evicted=%.0f%n",
+                registry.get("chat.dedup.entries").gauge().value(),
+                registry.get("chat.dedup.memory").gauge().value() / (1024.0 * 1024.0),
+                registry.get("chat.dedup.evictions").tag("reason", "expired").counter().count(),
+                registry.get("chat.dedup.evictions").tag("reason", "capacity").counter().count());
+    }
+
+    private static void run(String name, Dedup dedup, long messages) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String[] recent = new String[RECENT];
+        long missedDuplicates = 0;
+        long reportEvery = Math.max(1, messages / REPORTS);
+        long start = System.nanoTime();
+        long sliceStart = start;
+
+        for (long i = 1; i <= messages; i++) {
+            String id = new UUID(random.nextLong(), random.nextLong()).toString();
+            dedup.add(id);
+            recent[(int) (i & (RECENT - 1))] = id;
+            // A redelivery of a message seen a few hundred messages ago must be caught.
+            if ((i & 1023) == 0 && dedup.add(recent[(int) ((i - 512) & (RECENT - 1))])) {
+                missedDuplicates++;
+            }
+            if (i % reportEvery == 0) {
+                long now = System.nanoTime();
+                System.gc();
+                long heap = memory.getHeapMemoryUsage().getUsed();
+                System.out.printf("%-18s %,13d msgs  heap=%8.1f MB  %6.1f ns/msg%n", name, i,
+                        heap / (1024.0 * 1024.0), (double) (now - sliceStart) / reportEvery);
+                sliceStart = System.nanoTime();
+            }
+        }
+        System.out.printf("%-18s done in %.1f s, missed duplicates=%d%n", name,
+                (System.nanoTime() - start) / 1e9, missedDuplicates);
+    }
+}
@@ -0,0 +1,96 @@
+package com.chat.cs6650assignment4.benchmark;
+
+import com.chat.cs6650assignment4.bus.InProcessMessageBus;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Producer threads publish to the room queues of the in-process bus, one worker per queue group consumes.
+// Reports throughput, publish-to-listener latency, and checks that each producer's messages to a queue
+// arrive in order and that none are lost.
+// Usage: InProcessBusBenchmark [messages] [producers] [queues] [workers]
+public class InProcessBusBenchmark {
+
+    private static final String PRODUCER_HEADER = "producer";
+    private static final String SEQ_HEADER = "seq";
+    private static final String SENT_HEADER = "sent";
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int producers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int queues = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int workers = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+        System.out.println("\n=========== IN-PROCESS BUS BENCHMARK ===========");
+        System.out.printf("Messages=%d, Producers=%d, Queues=%d, Workers=%d%n", messages, producers, queues, workers);
+
+        InProcessMessageBus bus = new InProcessMessageBus(new SimpleMeterRegistry());
+        // Last sequence seen per (queue, producer); each queue is only touched by its own worker thread.
+        long[][] lastSeq = new long[queues][producers];
+        for (long[] row : lastSeq) {
+            Arrays.fill(row, -1);
+        }
+        long[] latencies = new long[messages];
+        AtomicLong received = new AtomicLong();
+        AtomicLong outOfOrder = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(1);
+
+        List<List<String>> workerQueues = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            workerQueues.add(new ArrayList<>());
+        }
+        for (int q = 0; q < queues; q++) {
+            workerQueues.get(q % workers).add("room." + (q + 1));
+        }
+        for (int w = 0; w < workers; w++) {
+            bus.subscribe("Bench-Worker-" + w, workerQueues.get(w), (message, channel) -> {
+                MessageProperties properties = message.getMessageProperties();
+                int queue = Integer.parseInt(properties.getConsumerQueue().substring(5)) - 1;
+                int producer = properties.<Integer>getHeader(PRODUCER_HEADER);
+                long seq = properties.<Long>getHeader(SEQ_HEADER);
+                if (seq <= lastSeq[queue][producer]) {
+                    outOfOrder.incrementAndGet();
+                }
+                lastSeq[queue][producer] = seq;
+                long n = received.getAndIncrement();
+                latencies[(int) n] = System.nanoTime() - properties.<Long>getHeader(SENT_HEADER);
+                if (n + 1 == messages) {
+                    done.countDown();
+                }
+            });
+        }
+
+        byte[] body = "{\"messageId\":\"x\",\"roomId\":\"1\",\"message\":\"The system performance is looking good.\"}".getBytes();
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (long seq = producer; seq < messages; seq += producers) {
+                    MessageProperties properties = new MessageProperties();
+                    properties.setHeader(PRODUCER_HEADER, producer);
+                    properties.setHeader(SEQ_HEADER, seq);
+                    properties.setHeader(SENT_HEADER, System.nanoTime());
+                    bus.publish("room." + (seq % queues + 1), new Message(body, properties));
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        bus.stop();
+
+        Arrays.sort(latencies);
+        System.out.printf("received=%d out-of-order=%d  %.0f msgs/s  latency p50=%.1f us p99=%.1f us max=%.1f us%n",
+                received.get(), outOfOrder.get(), messages / seconds, latencies[messages / 2] / 1e3,
+                latencies[(int) (messages * 0.99)] / 1e3, latencies[messages - 1] / 1e3);
+    }
+}
@@ -0,0 +1,70 @@
+package com.chat.cs6650assignment4.benchmark;
+
+import com.chat.cs6650assignment4.model.ChatMessage;
+import com.chat.cs6650assignment4.model.QueueMessage;
+import com.chat.cs6650assignment4.serverv4.InboundMessageDecoder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.Random;
+
+public class InboundDecoderBenchmark {
+
+    private static final int FRAME_COUNT = 1024;
+    private static final int WARMUP_ITERATIONS = 2_000_000;
+    private static final int MEASURED_ITERATIONS = 5_000_000;
+
+    private static volatile Object sink;
+
+    public interface Decode {
+        QueueMessage apply(String payload) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        InboundMessageDecoder decoder = new InboundMessageDecoder(objectMapper, new SimpleMeterRegistry());
+        String[] frames = buildFrames(objectMapper);
+
+        System.out.println("\n=========== INBOUND DECODER BENCHMARK ===========");
+        System.out.printf("Frames=%d, Warmup=%d, Measured=%d%n", FRAME_COUNT, WARMUP_ITERATIONS, MEASURED_ITERATIONS);
+
+        run("objectMapper+validate", frames, decoder::decodeWithObjectMapper);
+        run("streaming", frames, decoder::decodeStreaming);
+    }
+
+    private static void run(String name, String[] frames, Decode decode) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink = decode.apply(frames[i & (FRAME_COUNT - 1)]);
+        }
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            sink = decode.apply(frames[i & (FRAME_COUNT - 1)]);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        System.out.printf("%-24s %8.1f ns/op %8.1f bytes/op%n", name,
+                (double) elapsed / MEASURED_ITERATIONS, (double) allocated / MEASURED_ITERATIONS);
+    }
+
+    private static String[] buildFrames(ObjectMapper objectMapper) throws Exception {
+        Random random = new Random(42);
+        String[] frames = new String[FRAME_COUNT];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            ChatMessage msg = new ChatMessage();
+            int userId = 1 + random.nextInt(100000);
+            msg.setUserId(String.valueOf(userId));
+            msg.setUsername("user" + userId);
+            msg.setMessage("The system performance is looking good. #" + i);
+            msg.setTimestamp(Instant.now().plusMillis(i).toString());
+            msg.setMessageType(ChatMessage.MessageType.TEXT);
+            frames[i] = objectMapper.writeValueAsString(msg);
+        }
+        return frames;
+    }
+}
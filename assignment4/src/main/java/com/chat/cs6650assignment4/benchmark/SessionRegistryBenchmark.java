@@ -0,0 +1,158 @@
+package com.chat.cs6650assignment4.benchmark;
+
+import com.chat.cs6650assignment4.serverv4.SessionContext;
+import com.chat.cs6650assignment4.serverv4.SessionManager;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Compares the previous map-of-sets registry (with per-frame URI parsing) against SessionManager.
+public class SessionRegistryBenchmark {
+
+    private static final int ROOMS = 20;
+    private static final int SESSIONS = 12_000;
+    private static final int WARMUP_ITERATIONS = 200_000;
+    private static final int MEASURED_ITERATIONS = 1_000_000;
+    private static final int FANOUT_WARMUP_ITERATIONS = 2_000;
+    private static final int FANOUT_MEASURED_ITERATIONS = 10_000;
+
+    private static volatile Object sink;
+    private static volatile int intSink;
+
+    public interface Op {
+        void apply(int i);
+    }
+
+    public static void main(String[] args) {
+        LegacySessionManager legacy = new LegacySessionManager();
+        SessionManager registry = new SessionManager(1024);
+        WebSocketSession[] sessions = new WebSocketSession[SESSIONS];
+        String[] roomIds = new String[ROOMS];
+        for (int r = 0; r < ROOMS; r++) {
+            roomIds[r] = String.valueOf(r + 1);
+        }
+        for (int i = 0; i < SESSIONS; i++) {
+            String roomId = roomIds[i % ROOMS];
+            sessions[i] = new BenchSession(i, roomId);
+            legacy.addSession(roomId, sessions[i]);
+            registry.addSession(roomId, sessions[i], null, null);
+        }
+
+        System.out.println("\n=========== SESSION REGISTRY BENCHMARK ===========");
+        System.out.printf("Sessions=%d, Rooms=%d%n", SESSIONS, ROOMS);
+
+        run("frame lookup: legacy", WARMUP_ITERATIONS, MEASURED_ITERATIONS, i -> {
+            WebSocketSession session = sessions[i % SESSIONS];
+            sink = legacyRoomId(session);
+            sink = session.getRemoteAddress().toString();
+        });
+        run("frame lookup: context", WARMUP_ITERATIONS, MEASURED_ITERATIONS, i -> {
+            SessionContext context = SessionManager.contextOf(sessions[i % SESSIONS]);
+            sink = context.getRoomId();
+            sink = context.getClientIp();
+        });
+
+        run("fan-out: legacy", FANOUT_WARMUP_ITERATIONS, FANOUT_MEASURED_ITERATIONS, i -> {
+            int open = 0;
+            for (WebSocketSession session : legacy.getSessions(roomIds[i % ROOMS])) {
+                if (session.isOpen()) {
+                    open++;
+                }
+            }
+            intSink = open;
+        });
+        run("fan-out: slot array", FANOUT_WARMUP_ITERATIONS, FANOUT_MEASURED_ITERATIONS, i -> {
+            int open = 0;
+            for (SessionContext context : registry.getSessions(roomIds[i % ROOMS])) {
+                if (context.getSession().isOpen()) {
+                    open++;
+                }
+            }
+            intSink = open;
+        });
+    }
+
+    private static void run(String name, int warmup, int measured, Op op) {
+        for (int i = 0; i < warmup; i++) {
+            op.apply(i);
+        }
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < measured; i++) {
+            op.apply(i);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        System.out.printf("%-24s %10.1f ns/op %8.1f bytes/op%n", name,
+                (double) elapsed / measured, (double) allocated / measured);
+    }
+
+    // What ChatWebSocketHandler.getRoomId did on every frame before the context was cached.
+    private static String legacyRoomId(WebSocketSession session) {
+        String path = session.getUri().getPath();
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash == -1 || lastSlash == path.length() - 1) {
+            return null;
+        }
+        return path.substring(lastSlash + 1);
+    }
+
+    private static class LegacySessionManager {
+        private final ConcurrentHashMap<String, Set<WebSocketSession>> roomSessions = new ConcurrentHashMap<>();
+
+        void addSession(String roomId, WebSocketSession session) {
+            roomSessions.computeIfAbsent(roomId, k -> ConcurrentHashMap.newKeySet()).add(session);
+        }
+
+        Set<WebSocketSession> getSessions(String roomId) {
+            return roomSessions.getOrDefault(roomId, Collections.emptySet());
+        }
+    }
+
+    private static class BenchSession implements WebSocketSession {
+        private final String id;
+        private final URI uri;
+        private final InetSocketAddress remoteAddress;
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+        BenchSession(int index, String roomId) {
+            this.id = Integer.toHexString(index);
+            this.uri = URI.create("ws://localhost:8080/chat/" + roomId);
+            this.remoteAddress = new InetSocketAddress("10.0." + (index >> 8 & 0xFF) + "." + (index & 0xFF),
+                    40000 + index % 20000);
+        }
+
+        @Override public String getId() { return id; }
+        @Override public URI getUri() { return uri; }
+        @Override public HttpHeaders getHandshakeHeaders() { return new HttpHeaders(); }
+        @Override public Map<String, Object> getAttributes() { return attributes; }
+        @Override public Principal getPrincipal() { return null; }
+        @Override public InetSocketAddress getLocalAddress() { return null; }
+        @Override public InetSocketAddress getRemoteAddress() { return remoteAddress; }
+        @Override public String getAcceptedProtocol() { return null; }
+        @Override public void setTextMessageSizeLimit(int messageSizeLimit) { }
+        @Override public int getTextMessageSizeLimit() { return 0; }
+        @Override public void setBinaryMessageSizeLimit(int messageSizeLimit) { }
+        @Override public int getBinaryMessageSizeLimit() { return 0; }
+        @Override public List<WebSocketExtension> getExtensions() { return List.of(); }
+        @Override public void sendMessage(WebSocketMessage<?> message) { }
+        @Override public boolean isOpen() { return true; }
+        @Override public void close() { }
+        @Override public void close(CloseStatus status) { }
+    }
+}
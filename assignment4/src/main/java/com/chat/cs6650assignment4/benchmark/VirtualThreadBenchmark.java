@@ -0,0 +1,105 @@
+package com.chat.cs6650assignment4.benchmark;
+
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Open-loop load of blocking tasks (a sleep standing in for a DynamoDB or socket write) pushed through
+ * platform and virtual thread executors at the same arrival rate. Latency runs from each task's scheduled
+ * arrival time, so a submitter that falls behind is charged for it.
+ */
+public class VirtualThreadBenchmark {
+
+    private static final int ARRIVALS_PER_SECOND = 8_000;
+    private static final int DURATION_SECONDS = 3;
+    // Pinned carriers serialize the sleeps, so that run only gets a fraction of the load to finish in time.
+    private static final int PINNED_DIVISOR = 30;
+    private static final long BLOCKING_MILLIS = 10;
+
+    public interface ExecutorFactory {
+        Executor create();
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("\n=========== VIRTUAL THREAD BENCHMARK ===========");
+        System.out.printf("Arrivals=%d/s, Duration=%ds, Blocking=%dms, Cores=%d%n", ARRIVALS_PER_SECOND,
+                DURATION_SECONDS, BLOCKING_MILLIS, Runtime.getRuntime().availableProcessors());
+
+        run("platform pool 50", () -> platformPool(50), false);
+        run("platform pool 200", () -> platformPool(200), false);
+        run("virtual limit 50", () -> virtual(50), false);
+        run("virtual limit 1000", () -> virtual(1000), false);
+        run("virtual 1000 pinned", () -> virtual(1000), true);
+    }
+
+    private static void run(String name, ExecutorFactory factory, boolean pinned) throws Exception {
+        Executor executor = factory.create();
+        int tasks = ARRIVALS_PER_SECOND * DURATION_SECONDS / (pinned ? PINNED_DIVISOR : 1);
+        long[] latencies = new long[tasks];
+        CountDownLatch done = new CountDownLatch(tasks);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / ARRIVALS_PER_SECOND;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < tasks; i++) {
+            long scheduled = start + i * intervalNanos;
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            int index = i;
+            Object monitor = new Object();
+            executor.execute(() -> {
+                if (pinned) {
+                    // Blocking while holding a monitor pins the virtual thread to its carrier.
+                    synchronized (monitor) {
+                        sleep();
+                    }
+                } else {
+                    sleep();
+                }
+                latencies[index] = System.nanoTime() - scheduled;
+                done.countDown();
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        if (executor instanceof ThreadPoolTaskExecutor pool) {
+            pool.shutdown();
+        }
+
+        Arrays.sort(latencies);
+        System.out.printf("%-22s %9.0f tasks/s  p50 %8.1f ms  p99 %8.1f ms  max %8.1f ms%n", name,
+                tasks / (elapsed / 1e9), latencies[tasks / 2] / 1e6, latencies[(int) (tasks * 0.99)] / 1e6,
+                latencies[tasks - 1] / 1e6);
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(BLOCKING_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Executor platformPool(int threads) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setThreadNamePrefix("Bench-Platform-");
+        executor.initialize();
+        return executor;
+    }
+
+    private static Executor virtual(int concurrencyLimit) {
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("Bench-Virtual-");
+        executor.setVirtualThreads(true);
+        executor.setConcurrencyLimit(concurrencyLimit);
+        return executor;
+    }
+}
@@ -0,0 +1,338 @@
+package com.chat.cs6650assignment4.bus;
+
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareBatchMessageListener;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareMessageListener;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+/*
+ * Bus for a single process: each room queue is a RingBuffer drained by one worker thread, which keeps a
+ * room's order as a single RabbitMQ consumer does, and broadcasts go through one more ring to the
+ * broadcast listener. Messages are handed over by reference, with no AMQP framing or network hop.
+ * There are no acknowledgements: listeners get a Channel that ignores them, a message whose processing
+ * fails is dropped once the consumer has logged it, and nothing survives a restart. When a ring is full
+ * the publisher waits up to offer-timeout-ms and then the publish fails.
+ *
+ * On shutdown the bus stops after the web server and before the consumer beans are destroyed: it closes
+ * the room queues to new publishes and waits for their workers to empty them, then does the same for the
+ * broadcast queue the room listeners were still publishing to, and joins the worker threads. A worker
+ * whose listener throws an Error logs it and carries on with its queues.
+ */
+@Component
+@ConditionalOnProperty(name = MessageBus.TYPE_PROPERTY, havingValue = MessageBus.IN_PROCESS)
+public class InProcessMessageBus implements MessageBus, SmartLifecycle {
+    private static final Logger logger = LoggerFactory.getLogger(InProcessMessageBus.class);
+
+    public static final String BROADCAST_QUEUE = "broadcast";
+    // Deliveries a worker takes from one queue before looking at its next one.
+    private static final int BURST = 64;
+    private static final int IDLE_SPINS = 200;
+    // Bounds the wait of a worker that missed a wake-up.
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // Handed to listeners as the delivery's channel: acks and nacks are accepted and ignored.
+    private static final Channel SETTLED_CHANNEL = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+            new Class<?>[]{Channel.class}, (proxy, method, args) -> switch (method.getName()) {
+                case "isOpen" -> true;
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "equals" -> proxy == args[0];
+                case "toString" -> "InProcessChannel";
+                default -> method.getReturnType() == boolean.class ? false
+                        : method.getReturnType() == int.class ? 0
+                        : method.getReturnType() == long.class ? 0L : null;
+            });
+
+    private final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final List<Worker> workers = new CopyOnWriteArrayList<>();
+    private final MeterRegistry meterRegistry;
+    private final Counter unroutable;
+    private final Counter rejected;
+    private final Counter workerRestarts;
+    private volatile boolean running;
+
+    @Value("${chat.bus.in-process.capacity:65536}")
+    private int capacity = 65536;
+
+    @Value("${chat.bus.in-process.offer-timeout-ms:1000}")
+    private long offerTimeoutMs = 1000;
+
+    @Value("${chat.bus.in-process.drain-timeout-ms:5000}")
+    private long drainTimeoutMs = 5000;
+
+    public InProcessMessageBus(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.unroutable = Counter.builder("chat.bus.in-process.unroutable")
+                .description("Messages published to a queue nobody consumes, dropped")
+                .register(meterRegistry);
+        this.rejected = Counter.builder("chat.bus.in-process.rejected")
+                .description("Publishes failed because the queue stayed full for offer-timeout-ms")
+                .register(meterRegistry);
+        this.workerRestarts = Counter.builder("chat.bus.in-process.worker.restarts")
+                .description("Workers that resumed their queues after a listener threw an Error")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void publish(String routingKey, Message message) {
+        deliver(routingKey, message);
+    }
+
+    @Override
+    public CompletableFuture<Void> publishConfirmed(String routingKey, Message message, String id) {
+        try {
+            deliver(routingKey, message);
+            return CompletableFuture.completedFuture(null);
+        } catch (AmqpException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public boolean supportsConfirms() {
+        return true;
+    }
+
+    @Override
+    public void broadcast(String roomId, Message message) {
+        deliver(BROADCAST_QUEUE, message);
+    }
+
+    // Starts one worker thread that consumes the queues, each in order and one delivery at a time.
+    @Override
+    public void subscribe(String name, List<String> queues, ChannelAwareMessageListener listener) {
+        start(new Worker(name, listener, null, 1), queues);
+    }
+
+    // As subscribe, with up to batchSize deliveries of one queue per listener call.
+    @Override
+    public void subscribeBatch(String name, List<String> queues, ChannelAwareBatchMessageListener listener,
+                               int batchSize) {
+        start(new Worker(name, null, listener, Math.max(1, batchSize)), queues);
+    }
+
+    @Override
+    public void subscribeBroadcasts(ChannelAwareMessageListener listener) {
+        subscribe("InProcess-BroadcastListener", List.of(BROADCAST_QUEUE), listener);
+    }
+
+    private void start(Worker worker, List<String> queues) {
+        for (String queue : queues) {
+            Lane lane = new Lane(queue, new RingBuffer<>(capacity), worker);
+            if (lanes.putIfAbsent(queue, lane) != null) {
+                throw new IllegalStateException("Queue " + queue + " already has a consumer");
+            }
+            worker.lanes.add(lane);
+            Gauge.builder("chat.bus.in-process.depth", lane.ring, RingBuffer::size)
+                    .tag("queue", queue)
+                    .register(meterRegistry);
+        }
+        workers.add(worker);
+        worker.thread.start();
+    }
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    // Below the web server's start/stop phase: started before it takes connections, stopped after it has closed.
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+
+    @Override
+    public void stop() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMs);
+        drain(lane -> !BROADCAST_QUEUE.equals(lane.queue), deadline);
+        drain(lane -> BROADCAST_QUEUE.equals(lane.queue), deadline);
+        workers.forEach(Worker::stop);
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        running = false;
+    }
+
+    // Closes the matching queues to publishes and waits until their workers have delivered what they hold.
+    private void drain(Predicate<Lane> matching, long deadline) {
+        List<Lane> closing = lanes.values().stream().filter(matching).toList();
+        closing.forEach(lane -> lane.closed = true);
+        while (!closing.stream().allMatch(Lane::isDrained)) {
+            if (System.nanoTime() - deadline > 0) {
+                logger.warn("In-process bus stopped with {} undelivered messages",
+                        closing.stream().mapToInt(lane -> lane.ring.size()).sum());
+                return;
+            }
+            closing.forEach(lane -> lane.worker.wake());
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    private void deliver(String queue, Message message) {
+        Lane lane = lanes.get(queue);
+        if (lane == null) {
+            unroutable.increment();
+            return;
+        }
+        if (lane.closed) {
+            rejected.increment();
+            throw new AmqpException("In-process queue " + queue + " is closed for shutdown");
+        }
+        MessageProperties properties = message.getMessageProperties();
+        properties.setReceivedRoutingKey(queue);
+        properties.setConsumerQueue(queue);
+        if (!lane.ring.offer(message)) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(offerTimeoutMs);
+            do {
+                lane.worker.wake();
+                if (System.nanoTime() - deadline > 0) {
+                    rejected.increment();
+                    throw new AmqpException("In-process queue " + queue + " is full");
+                }
+                LockSupport.parkNanos(PARK_NANOS / 10);
+            } while (!lane.ring.offer(message));
+        }
+        lane.worker.wake();
+    }
+
+    private static final class Lane {
+        private final String queue;
+        private final RingBuffer<Message> ring;
+        private final Worker worker;
+        private volatile boolean closed;
+
+        Lane(String queue, RingBuffer<Message> ring, Worker worker) {
+            this.queue = queue;
+            this.ring = ring;
+            this.worker = worker;
+        }
+
+        // The ring is read before the flag: a delivery taken from it has set the flag first.
+        boolean isDrained() {
+            return ring.size() == 0 && !worker.delivering;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final List<Lane> lanes = new CopyOnWriteArrayList<>();
+        private final ChannelAwareMessageListener listener;
+        private final ChannelAwareBatchMessageListener batchListener;
+        private final int batchSize;
+        private final List<Message> batch;
+        private final Thread thread;
+        private final AtomicBoolean parked = new AtomicBoolean();
+        private volatile boolean running = true;
+        private volatile boolean delivering;
+
+        Worker(String name, ChannelAwareMessageListener listener, ChannelAwareBatchMessageListener batchListener,
+               int batchSize) {
+            this.listener = listener;
+            this.batchListener = batchListener;
+            this.batchSize = batchSize;
+            this.batch = new ArrayList<>(batchSize);
+            this.thread = Thread.ofPlatform().name(name).daemon(true).unstarted(this);
+        }
+
+        void wake() {
+            if (parked.get() && parked.compareAndSet(true, false)) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void stop() {
+            running = false;
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (running) {
+                boolean worked = false;
+                delivering = true;
+                try {
+                    for (Lane lane : lanes) {
+                        worked |= drain(lane.ring);
+                    }
+                } catch (Error e) {
+                    // Keep serving the queues: nothing else would drain them, and their publishers would block.
+                    logger.error("In-process listener {} threw an Error; the worker continues", thread.getName(), e);
+                    workerRestarts.increment();
+                    batch.clear();
+                    worked = true;
+                } finally {
+                    delivering = false;
+                }
+                if (worked) {
+                    idle = 0;
+                } else if (++idle < IDLE_SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    parked.set(true);
+                    // A publish between the last drain and the flag would not have woken us.
+                    if (lanes.stream().allMatch(lane -> lane.ring.size() == 0)) {
+                        LockSupport.parkNanos(PARK_NANOS);
+                    }
+                    parked.set(false);
+                }
+            }
+        }
+
+        private boolean drain(RingBuffer<Message> ring) {
+            if (batchListener != null) {
+                if (ring.drainTo(batch, batchSize) == 0) {
+                    return false;
+                }
+                try {
+                    batchListener.onMessageBatch(batch, SETTLED_CHANNEL);
+                } catch (RuntimeException e) {
+                    logger.error("In-process listener {} dropped a batch of {}", thread.getName(), batch.size(), e);
+                }
+                batch.clear();
+                return true;
+            }
+            int taken = 0;
+            Message message;
+            while (taken < BURST && (message = ring.poll()) != null) {
+                taken++;
+                try {
+                    listener.onMessage(message, SETTLED_CHANNEL);
+                } catch (Exception e) {
+                    logger.error("In-process listener {} dropped a message", thread.getName(), e);
+                }
+            }
+            return taken > 0;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.chat.cs6650assignment4.bus;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareBatchMessageListener;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareMessageListener;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * Transport between the gateways and the room consumers (room queues) and from the room consumers to
+ * every node's BroadcastConsumerService (broadcasts). Messages are Spring AMQP Messages, a body plus
+ * headers, whichever bus carries them, so the listeners are the same for both. Each bus also runs the
+ * consumers it delivers to, and stops them on shutdown. chat.bus.type selects RabbitMessageBus
+ * ("rabbitmq", the default) or InProcessMessageBus ("in-process").
+ */
+public interface MessageBus {
+    String TYPE_PROPERTY = "chat.bus.type";
+    String RABBITMQ = "rabbitmq";
+    String IN_PROCESS = "in-process";
+
+    // Publishes to the room queue bound under routingKey (see RoomSharding). A key with no queue drops
+    // the message, as the exchange does.
+    void publish(String routingKey, Message message);
+
+    // As publish, with a single attempt: no retry back-off on the caller's thread. For callers that report
+    // the failure themselves.
+    default void publishOnce(String routingKey, Message message) {
+        publish(routingKey, message);
+    }
+
+    // Completes once the bus has taken responsibility for the message, exceptionally if it refused it.
+    CompletableFuture<Void> publishConfirmed(String routingKey, Message message, String id);
+
+    boolean supportsConfirms();
+
+    // Consumers currently attached to a room queue, across every node.
+    default int consumerCount(String queue) {
+        return 1;
+    }
+
+    // Hands a room's broadcast to the nodes serving that room.
+    void broadcast(String roomId, Message message);
+
+    // As broadcast, with a single attempt, like publishOnce.
+    default void broadcastOnce(String roomId, Message message) {
+        broadcast(roomId, message);
+    }
+
+    // Starts one consumer for the room queues, delivering each queue in order. Listeners settle every delivery
+    // on the Channel it comes with; a bus without acknowledgements passes one that ignores them.
+    void subscribe(String name, List<String> queues, ChannelAwareMessageListener listener);
+
+    // As subscribe, with up to batchSize deliveries per listener call.
+    void subscribeBatch(String name, List<String> queues, ChannelAwareBatchMessageListener listener, int batchSize);
+
+    // Consumes the broadcasts addressed to this node; they are settled by the bus.
+    void subscribeBroadcasts(ChannelAwareMessageListener listener);
+}
@@ -0,0 +1,245 @@
+package com.chat.cs6650assignment4.bus;
+
+import com.chat.cs6650assignment4.config.RabbitMQConfig;
+import com.chat.cs6650assignment4.consumerv4.ConsumerAutoscaler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.AnonymousQueue;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.FanoutExchange;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareBatchMessageListener;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareMessageListener;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Room queues are the durable queues bound to the topic exchange; broadcasts go to the fanout exchange, or
+// to the per-room direct exchange with chat.broadcast.routing=room. The bus owns the listener containers:
+// one per room subscription, acked manually by the listener, and one for this node's broadcast queue, built
+// from Boot's listener container factory. They start with the context and stop after the web server, room
+// queues first.
+@Component
+@ConditionalOnProperty(name = MessageBus.TYPE_PROPERTY, havingValue = MessageBus.RABBITMQ, matchIfMissing = true)
+public class RabbitMessageBus implements MessageBus, SmartLifecycle {
+    private static final Logger logger = LoggerFactory.getLogger(RabbitMessageBus.class);
+
+    private static final long STOP_TIMEOUT_SECONDS = 30;
+
+    private final RabbitTemplate rabbitTemplate;
+    private final RabbitTemplate confirmTemplate;
+    private final ConnectionFactory connectionFactory;
+    private final RabbitAdmin rabbitAdmin;
+    private final SimpleRabbitListenerContainerFactory listenerContainerFactory;
+    private final FanoutExchange fanoutExchange;
+    private final AnonymousQueue serverBroadcastQueue;
+    private final ConsumerAutoscaler autoscaler;
+    private final boolean roomRouting;
+    private final List<SimpleMessageListenerContainer> roomContainers = new CopyOnWriteArrayList<>();
+    private volatile SimpleMessageListenerContainer broadcastContainer;
+    private volatile boolean running;
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    @Value("${chat.consumer.prefetch:200}")
+    private int prefetch = 200;
+
+    @Value("${chat.consumer.batch.receive-timeout-ms:20}")
+    private long batchReceiveTimeoutMs = 20;
+
+    public RabbitMessageBus(RabbitTemplate rabbitTemplate, ConnectionFactory connectionFactory,
+                            RabbitAdmin rabbitAdmin, SimpleRabbitListenerContainerFactory listenerContainerFactory,
+                            FanoutExchange fanoutExchange, AnonymousQueue serverBroadcastQueue,
+                            ConsumerAutoscaler autoscaler,
+                            @Value("${chat.broadcast.routing:fanout}") String routing) {
+        this.rabbitTemplate = rabbitTemplate;
+        this.connectionFactory = connectionFactory;
+        this.rabbitAdmin = rabbitAdmin;
+        this.listenerContainerFactory = listenerContainerFactory;
+        this.fanoutExchange = fanoutExchange;
+        this.serverBroadcastQueue = serverBroadcastQueue;
+        this.autoscaler = autoscaler;
+        this.roomRouting = RabbitMQConfig.BROADCAST_ROUTING_ROOM.equalsIgnoreCase(routing);
+        // No retry template: a failed publish is reported to the client as a NACK instead of
+        // backing off on the publishing thread. Also used by publishOnce and broadcastOnce.
+        this.confirmTemplate = new RabbitTemplate(connectionFactory);
+    }
+
+    @Override
+    public void publish(String routingKey, Message message) {
+        rabbitTemplate.send(RabbitMQConfig.TOPIC_EXCHANGE_NAME, routingKey, message);
+    }
+
+    @Override
+    public void publishOnce(String routingKey, Message message) {
+        confirmTemplate.send(RabbitMQConfig.TOPIC_EXCHANGE_NAME, routingKey, message);
+    }
+
+    @Override
+    public CompletableFuture<Void> publishConfirmed(String routingKey, Message message, String id) {
+        CorrelationData correlationData = new CorrelationData(id);
+        try {
+            confirmTemplate.send(RabbitMQConfig.TOPIC_EXCHANGE_NAME, routingKey, message, correlationData);
+        } catch (AmqpException e) {
+            correlationData.getFuture().completeExceptionally(e);
+        }
+        return correlationData.getFuture().thenApply(confirm -> {
+            if (!confirm.isAck()) {
+                throw new AmqpException("Broker NACK for " + id + ": " + confirm.getReason());
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public boolean supportsConfirms() {
+        return connectionFactory.isPublisherConfirms();
+    }
+
+    @Override
+    public int consumerCount(String queue) {
+        Long count = rabbitTemplate.execute(channel -> channel.consumerCount(queue));
+        return count == null ? 0 : count.intValue();
+    }
+
+    @Override
+    public void broadcast(String roomId, Message message) {
+        broadcast(rabbitTemplate, roomId, message);
+    }
+
+    @Override
+    public void broadcastOnce(String roomId, Message message) {
+        broadcast(confirmTemplate, roomId, message);
+    }
+
+    private void broadcast(RabbitTemplate template, String roomId, Message message) {
+        template.send(roomRouting ? RabbitMQConfig.ROOM_BROADCAST_EXCHANGE_NAME : RabbitMQConfig.FANOUT_EXCHANGE_NAME,
+                roomRouting ? RabbitMQConfig.BROADCAST_ROUTING_KEY_PREFIX + roomId : "", message);
+    }
+
+    @Override
+    public void subscribe(String name, List<String> queues, ChannelAwareMessageListener listener) {
+        SimpleMessageListenerContainer container = roomContainer(name, queues, prefetch);
+        container.setMessageListener(listener);
+        register(name, container, queues, prefetch);
+    }
+
+    @Override
+    public void subscribeBatch(String name, List<String> queues, ChannelAwareBatchMessageListener listener,
+                               int batchSize) {
+        int containerPrefetch = Math.max(prefetch, batchSize);
+        SimpleMessageListenerContainer container = roomContainer(name, queues, containerPrefetch);
+        // The listener gets up to batchSize deliveries, or fewer once the batch receive timeout passes.
+        container.setConsumerBatchEnabled(true);
+        container.setBatchSize(batchSize);
+        container.setBatchReceiveTimeout(batchReceiveTimeoutMs);
+        container.setMessageListener(listener);
+        register(name, container, queues, containerPrefetch);
+    }
+
+    // Auto-acked, as a @RabbitListener with Boot's defaults would be.
+    @Override
+    public void subscribeBroadcasts(ChannelAwareMessageListener listener) {
+        SimpleMessageListenerContainer container = listenerContainerFactory.createListenerContainer();
+        container.setQueueNames(serverBroadcastQueue.getName());
+        container.setMessageListener(listener);
+        container.setBeanName("BroadcastListener");
+        broadcastContainer = container;
+        if (running) {
+            startBroadcasts();
+        }
+    }
+
+    private SimpleMessageListenerContainer roomContainer(String name, List<String> queues, int containerPrefetch) {
+        SimpleMessageListenerContainer container = new SimpleMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        container.setQueueNames(queues.toArray(new String[0]));
+        container.setPrefetchCount(containerPrefetch);
+        container.setBeanName(name);
+        if (virtualThreads) {
+            container.setTaskExecutor(new VirtualThreadTaskExecutor(name + "-"));
+        }
+        return container;
+    }
+
+    private void register(String name, SimpleMessageListenerContainer container, List<String> queues,
+                          int containerPrefetch) {
+        if (autoscaler.isEnabled()) {
+            autoscaler.register(name, container, queues, 1, containerPrefetch);
+        }
+        roomContainers.add(container);
+        if (running) {
+            container.start();
+        }
+    }
+
+    @Override
+    public void start() {
+        roomContainers.forEach(SimpleMessageListenerContainer::start);
+        if (broadcastContainer != null) {
+            startBroadcasts();
+        }
+        running = true;
+    }
+
+    private void startBroadcasts() {
+        if (!roomRouting) {
+            // With room routing RoomBindingManager binds the broadcast queue per room as local sessions come and go.
+            rabbitAdmin.declareExchange(fanoutExchange);
+            rabbitAdmin.declareBinding(BindingBuilder.bind(new Queue(serverBroadcastQueue.getName())).to(fanoutExchange));
+        }
+        broadcastContainer.start();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    // Below the web server's start/stop phase, as for InProcessMessageBus.
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        stopAll(roomContainers);
+        if (broadcastContainer != null) {
+            stopAll(List.of(broadcastContainer));
+        }
+    }
+
+    // Each container waits for its in-flight deliveries; they are stopped together.
+    private static void stopAll(List<SimpleMessageListenerContainer> containers) {
+        CountDownLatch stopped = new CountDownLatch(containers.size());
+        containers.forEach(container -> container.stop(stopped::countDown));
+        try {
+            if (!stopped.await(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("{} listener containers still stopping after {} s", stopped.getCount(), STOP_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
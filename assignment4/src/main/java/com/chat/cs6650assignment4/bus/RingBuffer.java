@@ -0,0 +1,85 @@
+package com.chat.cs6650assignment4.bus;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Bounded lock-free queue for many producers and one consumer. Each slot carries a sequence number:
+ * a producer claims position p by CAS on the tail once slot p's sequence equals p, writes the element and
+ * publishes it by setting the sequence to p + 1; the consumer takes the element when it sees p + 1 and
+ * frees the slot for the next lap by setting it to p + capacity.
+ */
+final class RingBuffer<T> {
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // Only the consumer thread moves the head; volatile so size() can be read from a gauge.
+    private volatile long head;
+
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.elements = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    // Returns false if the buffer is full.
+    boolean offer(T element) {
+        long position = tail.get();
+        while (true) {
+            int slot = (int) position & mask;
+            long diff = sequences.getAcquire(slot) - position;
+            if (diff == 0) {
+                if (tail.weakCompareAndSetVolatile(position, position + 1)) {
+                    elements[slot] = element;
+                    sequences.setRelease(slot, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    // Consumer thread only.
+    @SuppressWarnings("unchecked")
+    T poll() {
+        long position = head;
+        int slot = (int) position & mask;
+        if (sequences.getAcquire(slot) != position + 1) {
+            return null;
+        }
+        T element = (T) elements[slot];
+        elements[slot] = null;
+        sequences.setRelease(slot, position + elements.length);
+        head = position + 1;
+        return element;
+    }
+
+    // Consumer thread only; moves up to max elements into target and returns how many.
+    int drainTo(List<T> target, int max) {
+        int drained = 0;
+        T element;
+        while (drained < max && (element = poll()) != null) {
+            target.add(element);
+            drained++;
+        }
+        return drained;
+    }
+
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    int capacity() {
+        return elements.length;
+    }
+}
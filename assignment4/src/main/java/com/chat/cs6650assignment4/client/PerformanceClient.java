@@ -5,7 +5,9 @@ import com.chat.cs6650assignment4.model.ChatMessage;
 import com.google.common.util.concurrent.RateLimiter;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.management.OperatingSystemMXBean;
 
+import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
@@ -24,6 +26,16 @@ public class PerformanceClient {
     private static int NUM_THREADS = 64;
     private static double RATE_LIMIT_PER_SECOND = 150;
     private static int TOTAL_MESSAGES = 5000;
+    // Negotiates the compact "chat.bin.v1" subprotocol instead of JSON text frames.
+    private static boolean USE_BINARY_PROTOCOL = false;
+    // Binary: negotiates "chat.bin.deflate.v1". JSON: offers permessage-deflate on the handshake.
+    private static boolean USE_COMPRESSION = false;
+    // Asks the server to coalesce broadcasts into multi-message frames (needs chat.broadcast.coalesce.enabled).
+    private static boolean USE_COALESCING = false;
+    // "full" (ServerResponse per frame), "compact" (id + status per frame) or "cumulative" (highest contiguous seq).
+    private static String ACK_MODE = "full";
+    // Worker i sends to room i % NUM_ROOMS + 1; above the server's legacy 20 rooms, set chat.rooms.queue-shards.
+    private static int NUM_ROOMS = 20;
 
     public static final ChatMessage POISON_PILL = new ChatMessage();
     private static final int MESSAGE_QUEUE_CAPACITY = 30000;
@@ -31,7 +43,9 @@ public class PerformanceClient {
     public static void main(String[] args) {
         System.out.println("\n=========== STARTING PERFORMANCE TEST (ASSIGNMENT 4) ===========");
         System.out.printf("Configuration: WS_URL=%s, HTTP_URL=%s%n", SERVER_WS_URL, SERVER_HTTP_URL);
-        System.out.printf("Threads=%d, Messages=%d, Rate Limit=%.2f/s%n", NUM_THREADS, TOTAL_MESSAGES, RATE_LIMIT_PER_SECOND);
+        System.out.printf("Threads=%d, Rooms=%d, Messages=%d, Rate Limit=%.2f/s, Protocol=%s, Compression=%b, Coalescing=%b, Acks=%s%n",
+                NUM_THREADS, NUM_ROOMS, TOTAL_MESSAGES, RATE_LIMIT_PER_SECOND, USE_BINARY_PROTOCOL ? "binary" : "json",
+                USE_COMPRESSION, USE_COALESCING, ACK_MODE);
 
         runTestPhase();
 
@@ -52,9 +66,12 @@ public class PerformanceClient {
         MessageGenerator generator = new MessageGenerator(messageQueue, TOTAL_MESSAGES, NUM_THREADS, POISON_PILL);
         List<WebSocketSenderTask> senderTasks = new ArrayList<>();
         for (int i = 0; i < NUM_THREADS; i++) {
-            senderTasks.add(new WebSocketSenderTask(SERVER_WS_URL, i, messageQueue, reporter, POISON_PILL, sharedRateLimiter));
+            senderTasks.add(new WebSocketSenderTask(SERVER_WS_URL, i, messageQueue, reporter, POISON_PILL, sharedRateLimiter,
+                    USE_BINARY_PROTOCOL, USE_COMPRESSION, USE_COALESCING, ACK_MODE, NUM_ROOMS));
         }
 
+        OperatingSystemMXBean osBean = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long startCpuNanos = osBean.getProcessCpuTime();
         long startTime = System.currentTimeMillis();
 
         executor.submit(generator);
@@ -72,12 +89,18 @@ public class PerformanceClient {
         }
 
         long endTime = System.currentTimeMillis();
+        long cpuNanos = osBean.getProcessCpuTime() - startCpuNanos;
         System.out.println("All tasks have completed execution.");
 
         int totalSuccess = senderTasks.stream().mapToInt(WebSocketSenderTask::getSuccessfulCount).sum();
         int totalFailed = senderTasks.stream().mapToInt(WebSocketSenderTask::getFailedCount).sum();
         int totalInitialConnections = senderTasks.stream().mapToInt(WebSocketSenderTask::getTotalConnections).sum();
         int totalReconnections = senderTasks.stream().mapToInt(WebSocketSenderTask::getTotalReconnections).sum();
+        long totalBytesSent = senderTasks.stream().mapToLong(WebSocketSenderTask::getBytesSent).sum();
+        long totalBytesReceived = senderTasks.stream().mapToLong(WebSocketSenderTask::getBytesReceived).sum();
+        long totalAckBytes = senderTasks.stream().mapToLong(WebSocketSenderTask::getAckBytesReceived).sum();
+        long totalAcknowledged = senderTasks.stream().mapToLong(WebSocketSenderTask::getAcknowledgedCount).sum();
+        int totalRejected = senderTasks.stream().mapToInt(WebSocketSenderTask::getRejectedByAckCount).sum();
         List<Long> allLatencies = senderTasks.stream()
                 .flatMap(task -> task.getLatencies().stream())
                 .collect(Collectors.toList());
@@ -91,6 +114,14 @@ public class PerformanceClient {
         System.out.println("Total Reconnections: " + totalReconnections);
         System.out.printf("Total Runtime: %.2f seconds%n", durationSeconds);
         System.out.printf("Throughput: %.2f messages/second%n", throughput);
+        System.out.printf("Payload Bytes Sent: %d (%.1f/msg), Received: %d (%.1f/msg)%n",
+                totalBytesSent, totalSuccess > 0 ? (double) totalBytesSent / totalSuccess : 0,
+                totalBytesReceived, totalSuccess > 0 ? (double) totalBytesReceived / totalSuccess : 0);
+        System.out.printf("Acks (%s): %d accepted, %d rejected, %d bytes (%.1f/msg)%n", ACK_MODE,
+                totalAcknowledged, totalRejected, totalAckBytes,
+                totalAcknowledged + totalRejected > 0 ? (double) totalAckBytes / (totalAcknowledged + totalRejected) : 0);
+        System.out.printf("Client CPU Time: %.2f s (%.1f us/msg)%n", cpuNanos / 1e9,
+                totalSuccess > 0 ? cpuNanos / 1e3 / totalSuccess : 0);
         reporter.printStatistics(allLatencies);
         reporter.writeToCsv();
 
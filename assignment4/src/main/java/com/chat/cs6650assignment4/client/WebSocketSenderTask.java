@@ -1,13 +1,21 @@
 package com.chat.cs6650assignment4.client;
 
 import com.chat.cs6650assignment4.model.ChatMessage;
+import com.chat.cs6650assignment4.protocol.BinaryFrameCodec;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.util.concurrent.RateLimiter;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
 import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.protocols.Protocol;
 
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -37,15 +45,32 @@ public class WebSocketSenderTask implements Runnable {
     private final AtomicInteger totalConnections;
     private final AtomicInteger totalReconnections;
     private final AtomicLong lastMessageReceivedTime;
+    private final boolean binaryProtocol;
+    private final boolean compression;
+    private final AtomicLong bytesSent;
+    private final AtomicLong bytesReceived;
+    private final String ackMode;
+    private final AtomicLong ackBytesReceived;
+    private final AtomicLong acknowledgedMessages;
+    private final AtomicInteger rejectedByAck;
+    private volatile long lastCumulativeAck;
 
     public WebSocketSenderTask(String serverBaseUrl, int workerId, BlockingQueue<ChatMessage> messageQueue,
                                PerformanceReporter reporter, ChatMessage poisonPill, RateLimiter rateLimiter) {
+        this(serverBaseUrl, workerId, messageQueue, reporter, poisonPill, rateLimiter, false, false, false, "full", 20);
+    }
+
+    public WebSocketSenderTask(String serverBaseUrl, int workerId, BlockingQueue<ChatMessage> messageQueue,
+                               PerformanceReporter reporter, ChatMessage poisonPill, RateLimiter rateLimiter,
+                               boolean binaryProtocol, boolean compression, boolean coalescing, String ackMode,
+                               int roomCount) {
         this.workerId = workerId;
         this.messageQueue = messageQueue;
         this.reporter = reporter;
         this.poisonPill = poisonPill;
-        this.roomId = workerId % 20 + 1;
-        this.serverUri = URI.create(serverBaseUrl + "/" + this.roomId);
+        this.roomId = workerId % roomCount + 1;
+        this.serverUri = URI.create(serverBaseUrl + "/" + this.roomId + "?ack=" + ackMode
+                + (coalescing ? "&coalesce=true" : ""));
         this.pendingMessages = new ConcurrentHashMap<>();
         this.successfulMessages = new AtomicInteger(0);
         this.failedMessages = new AtomicInteger(0);
@@ -54,6 +79,14 @@ public class WebSocketSenderTask implements Runnable {
         this.latencies = Collections.synchronizedList(new ArrayList<>());
         this.rateLimiter = rateLimiter;
         this.lastMessageReceivedTime = new AtomicLong(System.currentTimeMillis());
+        this.binaryProtocol = binaryProtocol;
+        this.compression = compression;
+        this.bytesSent = new AtomicLong();
+        this.bytesReceived = new AtomicLong();
+        this.ackMode = ackMode;
+        this.ackBytesReceived = new AtomicLong();
+        this.acknowledgedMessages = new AtomicLong();
+        this.rejectedByAck = new AtomicInteger();
     }
 
     @Override
@@ -86,6 +119,8 @@ public class WebSocketSenderTask implements Runnable {
         if (client == null || !client.isOpen()) {
             if (client != null) { totalReconnections.incrementAndGet(); } else { totalConnections.incrementAndGet(); }
             client = createClient(serverUri);
+            // Cumulative ack sequences are per connection.
+            lastCumulativeAck = 0;
             if (!client.connectBlocking(5, TimeUnit.SECONDS)) {
                 throw new RuntimeException("Connection to " + serverUri + " failed");
             }
@@ -94,9 +129,16 @@ public class WebSocketSenderTask implements Runnable {
 
     private void sendMessage(ChatMessage message) {
         try {
-            String jsonMessage = objectMapper.writeValueAsString(message);
             pendingMessages.put(message.getMessageId(), new PendingRequest(message));
-            client.send(jsonMessage);
+            if (binaryProtocol) {
+                byte[] frame = BinaryFrameCodec.encodeChatMessage(message);
+                bytesSent.addAndGet(frame.length);
+                client.send(frame);
+            } else {
+                String jsonMessage = objectMapper.writeValueAsString(message);
+                bytesSent.addAndGet(jsonMessage.getBytes(StandardCharsets.UTF_8).length);
+                client.send(jsonMessage);
+            }
         } catch (Exception e) {
             failMessage(message, "Exception during send: " + e.getMessage());
         }
@@ -131,7 +173,16 @@ public class WebSocketSenderTask implements Runnable {
     }
 
     private WebSocketClient createClient(URI serverUri) {
-        return new WebSocketClient(serverUri) {
+        Draft draft;
+        if (binaryProtocol) {
+            String subprotocol = compression ? BinaryFrameCodec.DEFLATE_SUBPROTOCOL : BinaryFrameCodec.SUBPROTOCOL;
+            draft = new Draft_6455(Collections.emptyList(), List.of(new Protocol(subprotocol)));
+        } else if (compression) {
+            draft = new Draft_6455(List.<IExtension>of(new PerMessageDeflateExtension()));
+        } else {
+            draft = new Draft_6455();
+        }
+        return new WebSocketClient(serverUri, draft) {
             @Override
             public void onOpen(ServerHandshake handshakedata) {
                 System.out.println("[" + Thread.currentThread().getName() + "] Connected to " + serverUri);
@@ -140,17 +191,89 @@ public class WebSocketSenderTask implements Runnable {
             @Override
             public void onMessage(String message) {
                 lastMessageReceivedTime.set(System.currentTimeMillis());
+                bytesReceived.addAndGet(message.getBytes(StandardCharsets.UTF_8).length);
                 try {
                     JsonNode responseNode = objectMapper.readTree(message);
-                    if (responseNode.has("clientMessageId")) {
-                        handleBroadcast(responseNode);
+                    if (responseNode.isArray()) {
+                        for (JsonNode broadcast : responseNode) {
+                            handleBroadcast(broadcast.path("clientMessageId").asText(null));
+                        }
+                    } else if (responseNode.has("clientMessageId")) {
+                        handleBroadcast(responseNode.get("clientMessageId").asText());
+                    } else if (responseNode.has("status")) {
+                        ackBytesReceived.addAndGet(message.length());
+                        handleAck("OK".equals(responseNode.get("status").asText())
+                                ? BinaryFrameCodec.STATUS_OK : BinaryFrameCodec.STATUS_ERROR);
+                    } else if (responseNode.has("s")) {
+                        ackBytesReceived.addAndGet(message.length());
+                        handleAck(responseNode.get("s").asInt());
+                    } else if (responseNode.has("q")) {
+                        ackBytesReceived.addAndGet(message.length());
+                        handleCumulativeAck(responseNode.get("q").asLong());
+                    }
+                } catch (Exception e) {
+                }
+            }
+
+            @Override
+            public void onMessage(ByteBuffer frame) {
+                lastMessageReceivedTime.set(System.currentTimeMillis());
+                bytesReceived.addAndGet(frame.remaining());
+                try {
+                    if (BinaryFrameCodec.frameType(frame) == BinaryFrameCodec.FRAME_BATCH) {
+                        for (ByteBuffer batched : BinaryFrameCodec.splitBatch(frame)) {
+                            handleFrame(batched);
+                        }
+                    } else {
+                        handleFrame(frame);
                     }
                 } catch (Exception e) {
                 }
             }
 
-            private void handleBroadcast(JsonNode broadcastNode) {
-                String originalId = broadcastNode.get("clientMessageId").asText();
+            private void handleFrame(ByteBuffer frame) {
+                int wireBytes = frame.remaining();
+                ByteBuffer inner = BinaryFrameCodec.inflate(frame);
+                switch (BinaryFrameCodec.frameType(inner)) {
+                    case BinaryFrameCodec.FRAME_BROADCAST ->
+                            handleBroadcast(BinaryFrameCodec.decodeBroadcast(inner).getClientMessageId());
+                    case BinaryFrameCodec.FRAME_ACK -> {
+                        ackBytesReceived.addAndGet(wireBytes);
+                        handleAck(inner.get(inner.position() + 1));
+                    }
+                    case BinaryFrameCodec.FRAME_ACK_COMPACT -> {
+                        ackBytesReceived.addAndGet(wireBytes);
+                        handleAck(BinaryFrameCodec.decodeCompactAck(inner).getS());
+                    }
+                    case BinaryFrameCodec.FRAME_ACK_CUMULATIVE -> {
+                        ackBytesReceived.addAndGet(wireBytes);
+                        handleCumulativeAck(BinaryFrameCodec.decodeCumulativeAck(inner));
+                    }
+                    default -> {
+                    }
+                }
+            }
+
+            // Acks are only measured here; a message still counts as delivered when its broadcast arrives.
+            private void handleAck(int status) {
+                if (status == BinaryFrameCodec.STATUS_OK) {
+                    acknowledgedMessages.incrementAndGet();
+                } else {
+                    rejectedByAck.incrementAndGet();
+                }
+            }
+
+            private void handleCumulativeAck(long seq) {
+                if (seq > lastCumulativeAck) {
+                    acknowledgedMessages.addAndGet(seq - lastCumulativeAck);
+                    lastCumulativeAck = seq;
+                }
+            }
+
+            private void handleBroadcast(String originalId) {
+                if (originalId == null) {
+                    return;
+                }
                 PendingRequest pending = pendingMessages.remove(originalId);
                 if (pending != null) {
                     successfulMessages.incrementAndGet();
@@ -185,6 +308,11 @@ public class WebSocketSenderTask implements Runnable {
     public List<Long> getLatencies() { return latencies; }
     public int getTotalConnections() { return totalConnections.get(); }
     public int getTotalReconnections() { return totalReconnections.get(); }
+    public long getBytesSent() { return bytesSent.get(); }
+    public long getBytesReceived() { return bytesReceived.get(); }
+    public long getAckBytesReceived() { return ackBytesReceived.get(); }
+    public long getAcknowledgedCount() { return acknowledgedMessages.get(); }
+    public int getRejectedByAckCount() { return rejectedByAck.get(); }
 
     class PendingRequest {
         final ChatMessage message;
@@ -1,14 +1,23 @@
 package com.chat.cs6650assignment4.config;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 public class AppConfig {
 
+    // Jackson caches its parser/generator buffers in a ThreadLocal. Virtual threads are one per task, so the
+    // cache is never reused and only adds a ThreadLocal entry to every task; turn it off in that mode.
     @Bean
-    public ObjectMapper objectMapper() {
-        return new ObjectMapper();
+    public ObjectMapper objectMapper(@Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        if (!virtualThreads) {
+            return new ObjectMapper();
+        }
+        return new ObjectMapper(JsonFactory.builder()
+                .disable(JsonFactory.Feature.USE_THREAD_LOCAL_FOR_BUFFER_RECYCLING)
+                .build());
     }
-}
\ No newline at end of file
+}
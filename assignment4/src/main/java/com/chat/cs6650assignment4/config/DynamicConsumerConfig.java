@@ -1,16 +1,11 @@
 package com.chat.cs6650assignment4.config;
 
+import com.chat.cs6650assignment4.bus.MessageBus;
+import com.chat.cs6650assignment4.consumerv4.ConsumerAutoscaler;
 import com.chat.cs6650assignment4.consumerv4.RabbitMQConsumerService;
-import org.springframework.amqp.core.AcknowledgeMode;
-import org.springframework.amqp.core.AnonymousQueue;
-import org.springframework.amqp.core.BindingBuilder;
-import org.springframework.amqp.core.FanoutExchange;
-import org.springframework.amqp.rabbit.connection.ConnectionFactory;
-import org.springframework.amqp.rabbit.core.RabbitAdmin;
-import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import com.chat.cs6650assignment4.serverv4.BroadcastConsumerService;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.boot.ApplicationArguments;
-import org.springframework.boot.ApplicationRunner;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
@@ -18,75 +13,72 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+// Subscribes the room consumers and the broadcast listener to whichever MessageBus is configured. The bus
+// starts them with its own lifecycle: RabbitMQ containers once the context is up, in-process workers at once,
+// since their rings have no backlog to pick up later.
 @Component
-public class DynamicConsumerConfig implements ApplicationRunner {
-
-    private static final int NUMBER_OF_ROOMS = 20;
+public class DynamicConsumerConfig {
 
     @Value("${chat.consumer.thread-count}")
     private int threadCount;
 
-    private final ConnectionFactory connectionFactory;
+    @Value("${chat.consumer.batch.enabled:false}")
+    private boolean batchListener;
+
+    @Value("${chat.consumer.batch.size:50}")
+    private int batchSize;
+
+    private final MessageBus messageBus;
     private final RabbitMQConsumerService consumerService;
-    private final RabbitAdmin rabbitAdmin;
-    private final FanoutExchange fanoutExchange;
-    private final AnonymousQueue serverBroadcastQueue;
+    private final BroadcastConsumerService broadcastConsumer;
+    private final ConsumerAutoscaler autoscaler;
+    private final RoomSharding roomSharding;
 
-    public DynamicConsumerConfig(ConnectionFactory connectionFactory,
-                                 RabbitAdmin rabbitAdmin,
+    public DynamicConsumerConfig(MessageBus messageBus,
                                  RabbitMQConsumerService consumerService,
-                                 FanoutExchange fanoutExchange,
-                                 AnonymousQueue serverBroadcastQueue) {
-        this.connectionFactory = connectionFactory;
+                                 BroadcastConsumerService broadcastConsumer,
+                                 ConsumerAutoscaler autoscaler,
+                                 RoomSharding roomSharding) {
+        this.messageBus = messageBus;
         this.consumerService = consumerService;
-        this.rabbitAdmin = rabbitAdmin;
-        this.fanoutExchange = fanoutExchange;
-        this.serverBroadcastQueue = serverBroadcastQueue;
+        this.broadcastConsumer = broadcastConsumer;
+        this.autoscaler = autoscaler;
+        this.roomSharding = roomSharding;
     }
 
-    @Override
-    public void run(ApplicationArguments args) throws Exception {
-        System.out.println("--- Starting Dynamic RabbitMQ Consumer Configuration ---");
-
-        System.out.println("Manually declaring fanout exchange and binding...");
-
-        rabbitAdmin.declareExchange(this.fanoutExchange);
-
-        String queueName = this.serverBroadcastQueue.getName();
-
-        var binding = BindingBuilder
-                .bind(new org.springframework.amqp.core.Queue(queueName))
-                .to(this.fanoutExchange);
-
-        rabbitAdmin.declareBinding(binding);
-
-        System.out.println("Binding of queue " + queueName + " to exchange " + fanoutExchange.getName() + " is complete.");
-
+    @PostConstruct
+    public void subscribe() {
+        System.out.println("--- Starting Dynamic Consumer Configuration ---");
+
+        // One consumer per queue keeps each room's messages in order, so threads beyond the queue count
+        // would have nothing to do; the queues are dealt round-robin over the threads that are used.
+        List<String> queues = roomSharding.queueNames();
+        int consumers = Math.min(threadCount, queues.size());
+        if (consumers < threadCount) {
+            System.out.println("chat.consumer.thread-count=" + threadCount + " exceeds the " + queues.size()
+                    + " room queues; starting " + consumers + " consumer threads (raise chat.rooms.queue-shards to use more).");
+        }
         Map<Integer, List<String>> threadQueueMap = new HashMap<>();
-        for (int i = 1; i <= NUMBER_OF_ROOMS; i++) {
-            int threadIndex = (i - 1) % threadCount;
-            threadQueueMap.computeIfAbsent(threadIndex, k -> new ArrayList<>())
-                    .add(RabbitMQConfig.QUEUE_NAME_PREFIX + i);
+        for (int q = 0; q < queues.size(); q++) {
+            threadQueueMap.computeIfAbsent(q % consumers, k -> new ArrayList<>()).add(queues.get(q));
         }
 
-        for (int i = 0; i < threadCount; i++) {
+        for (int i = 0; i < consumers; i++) {
             List<String> queuesForThisThread = threadQueueMap.get(i);
-            if (queuesForThisThread == null || queuesForThisThread.isEmpty()) {
-                continue;
-            }
 
-            System.out.println("Creating and starting consumer thread " + i + " for queues: " + queuesForThisThread);
+            System.out.println("Subscribing consumer thread " + i + " to queues: " + queuesForThisThread);
 
-            SimpleMessageListenerContainer container = new SimpleMessageListenerContainer();
-            container.setConnectionFactory(connectionFactory);
-            container.setAcknowledgeMode(AcknowledgeMode.MANUAL);
-            container.setQueueNames(queuesForThisThread.toArray(new String[0]));
-            container.setPrefetchCount(200);
-            container.setMessageListener(consumerService);
-            container.setBeanName("RoomConsumer-" + i);
-            container.start();
+            if (batchListener) {
+                messageBus.subscribeBatch("RoomConsumer-" + i, queuesForThisThread, autoscaler.isEnabled()
+                        ? autoscaler.instrument(consumerService.batchListener()) : consumerService.batchListener(), batchSize);
+            } else {
+                messageBus.subscribe("RoomConsumer-" + i, queuesForThisThread, autoscaler.isEnabled()
+                        ? autoscaler.instrument(consumerService) : consumerService);
+            }
         }
 
-        System.out.println("--- Dynamic RabbitMQ Consumer Configuration Complete ---");
+        messageBus.subscribeBroadcasts((message, channel) -> broadcastConsumer.receiveBroadcast(message));
+
+        System.out.println("--- Dynamic Consumer Configuration Complete ---");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,15 @@
+package com.chat.cs6650assignment4.config;
+
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+
+// Identifies this process on the broker, e.g. to recognise broadcasts it published itself.
+@Component
+public class NodeIdentity {
+    private final String nodeId = "server-" + UUID.randomUUID().toString().substring(0, 8);
+
+    public String getNodeId() {
+        return nodeId;
+    }
+}
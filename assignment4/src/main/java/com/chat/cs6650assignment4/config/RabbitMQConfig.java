@@ -17,9 +17,20 @@ import java.util.List;
 public class RabbitMQConfig {
     public static final String TOPIC_EXCHANGE_NAME = "chat.exchange";
     public static final String FANOUT_EXCHANGE_NAME = "chat.broadcast.exchange";
+    public static final String ROOM_BROADCAST_EXCHANGE_NAME = "chat.broadcast.rooms";
+    public static final String BROADCAST_ROUTING_KEY_PREFIX = "room.";
+    // Value of chat.broadcast.routing that switches broadcasts from the fanout to per-room routing keys.
+    public static final String BROADCAST_ROUTING_ROOM = "room";
     public static final String QUEUE_NAME_PREFIX = "room.";
     public static final String ROUTING_KEY_PREFIX = "room.";
-    private static final int NUMBER_OF_ROOMS = 20;
+    // Present on AMQP messages whose body is a JSON array of QueueMessages rather than a single one.
+    public static final String BATCH_SIZE_HEADER = "x-chat-batch-size";
+    // NodeIdentity of the process that published a broadcast.
+    public static final String ORIGIN_NODE_HEADER = "x-chat-origin-node";
+    // Room of a broadcast (or of every message in a broadcast batch), so receivers can route without parsing.
+    public static final String ROOM_HEADER = "x-chat-room-id";
+    // Marks a resharding fence on a room queue (see RoomSharding); the value is the publishing node.
+    public static final String RESHARD_FENCE_HEADER = "x-chat-reshard-fence";
 
     private static final int MESSAGE_TTL_MS = 360000;
     private static final int MAX_QUEUE_LENGTH = 5000;
@@ -30,19 +41,18 @@ public class RabbitMQConfig {
     }
 
     @Bean
-    public Declarables amqpDeclarables(TopicExchange topicExchange) {
+    public Declarables amqpDeclarables(TopicExchange topicExchange, RoomSharding roomSharding) {
         List<Declarable> declarables = new ArrayList<>();
 
-        for (int i = 1; i <= NUMBER_OF_ROOMS; i++) {
-            String queueName = QUEUE_NAME_PREFIX + i;
-            String routingKey = ROUTING_KEY_PREFIX + i;
+        // Each room queue is bound under its own name; RoomSharding picks the one for a room.
+        for (String queueName : roomSharding.queueNames()) {
             Queue queue = QueueBuilder.durable(queueName)
                     .withArgument("x-message-ttl", MESSAGE_TTL_MS)
                     .withArgument("x-max-length", MAX_QUEUE_LENGTH)
                     .build();
             declarables.add(queue);
 
-            Binding binding = BindingBuilder.bind(queue).to(topicExchange).with(routingKey);
+            Binding binding = BindingBuilder.bind(queue).to(topicExchange).with(queueName);
             declarables.add(binding);
         }
 
@@ -54,6 +64,12 @@ public class RabbitMQConfig {
         return new FanoutExchange(FANOUT_EXCHANGE_NAME);
     }
 
+    // Broadcasts keyed by room; each node binds only the rooms it has sessions for (chat.broadcast.routing=room).
+    @Bean
+    public DirectExchange roomBroadcastExchange() {
+        return new DirectExchange(ROOM_BROADCAST_EXCHANGE_NAME);
+    }
+
     @Bean
     public AnonymousQueue serverBroadcastQueue() {
         return new AnonymousQueue();
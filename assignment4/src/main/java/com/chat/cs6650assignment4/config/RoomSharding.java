@@ -0,0 +1,335 @@
+package com.chat.cs6650assignment4.config;
+
+import com.chat.cs6650assignment4.bus.MessageBus;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Maps rooms onto the work queues. With chat.rooms.queue-shards=0 each room id 1..legacy-queues has its own
+ * queue room.<id>, as before. With N > 0 rooms are placed on the N queues room.shard.0..N-1 by a
+ * consistent-hash ring (virtual-nodes points per shard), so any number of rooms share a fixed set of queues
+ * and changing N only moves the rooms whose segment of the ring changed owner.
+ *
+ * Resharding: set previous-queue-shards to the old value (0 for the per-room queues). Both sets of queues are
+ * declared and consumed, and this node keeps routing a moved room to its old queue until the old queue has
+ * been consumed past the room's last message there. Every node consumes every queue, so one consumer seeing
+ * a marker says nothing about the deliveries the others hold. Fence markers are therefore published to every
+ * old queue each fence-interval-ms with the queue's consumer count; each consumer that takes a marker adds
+ * itself to the marker's seen list and publishes it back to the queue, until the origin node takes it with
+ * every consumer listed. The queue dispatches in order and each consumer processes its deliveries in order,
+ * so by then every message queued before the marker has been processed wherever it went. A room switches
+ * once such a marker was sent more than publish-grace-ms after the room's last publish to the old queue;
+ * the grace is kept above the template's retry back-off, the longest a routed message can take to reach
+ * the queue. A room that is never quiet for that long stays on its old queue, in order. Drop
+ * previous-queue-shards once chat.rooms.reshard.pending is 0.
+ */
+@Component
+public class RoomSharding {
+    private static final Logger logger = LoggerFactory.getLogger(RoomSharding.class);
+
+    public static final String SHARD_QUEUE_PREFIX = RabbitMQConfig.QUEUE_NAME_PREFIX + "shard.";
+    private static final String FENCE_SENT_HEADER = "x-chat-reshard-fence-sent";
+    private static final String FENCE_HOPS_HEADER = "x-chat-reshard-fence-hops";
+    private static final String FENCE_CONSUMERS_HEADER = "x-chat-reshard-fence-consumers";
+    private static final String FENCE_SEEN_HEADER = "x-chat-reshard-fence-seen";
+    // A marker is published back to its queue until every consumer and then its origin have taken it, at most
+    // this many times; a marker that runs out is dropped and a later one tried.
+    private static final int MAX_FENCE_HOPS = 64;
+    // Routing state of a room that has moved to its current queue.
+    private static final long SWITCHED = Long.MIN_VALUE;
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final MessageBus messageBus;
+    private final String nodeId;
+    private final TaskScheduler scheduler;
+    private final MeterRegistry meterRegistry;
+    private final Topology current;
+    private final Topology previous;
+    private final long startNanos = System.nanoTime();
+
+    // Moved rooms this node has routed: the time of the latest publish to the previous queue, or SWITCHED.
+    // Decided per room under compute, so no publish goes to the old queue once one has gone to the new.
+    private final ConcurrentHashMap<String, Long> previousRoutes = new ConcurrentHashMap<>();
+    // Previous queue -> send time of the newest of this node's fence markers every consumer has passed.
+    private final ConcurrentHashMap<String, Long> fencedAt = new ConcurrentHashMap<>();
+    private volatile boolean settled;
+
+    @Value("${chat.rooms.reshard.fence-interval-ms:500}")
+    private long fenceIntervalMs = 500;
+
+    // Upper bound on the time from routing a message to the broker having it queued; raised to the
+    // template's retry back-off if set below it.
+    @Value("${chat.rooms.reshard.publish-grace-ms:20000}")
+    private long publishGraceMs = 20000;
+
+    @Value("${spring.rabbitmq.template.retry.enabled:false}")
+    private boolean retryEnabled;
+
+    @Value("${spring.rabbitmq.template.retry.max-attempts:3}")
+    private int retryAttempts = 3;
+
+    @Value("${spring.rabbitmq.template.retry.initial-interval:1000}")
+    private long retryInitialMs = 1000;
+
+    @Value("${spring.rabbitmq.template.retry.multiplier:1.0}")
+    private double retryMultiplier = 1.0;
+
+    @Value("${spring.rabbitmq.template.retry.max-interval:10000}")
+    private long retryMaxIntervalMs = 10000;
+
+    public RoomSharding(MessageBus messageBus,
+                        NodeIdentity nodeIdentity,
+                        @Qualifier("roomReshardScheduler") TaskScheduler scheduler,
+                        MeterRegistry meterRegistry,
+                        @Value("${chat.rooms.queue-shards:0}") int queueShards,
+                        @Value("${chat.rooms.previous-queue-shards:-1}") int previousQueueShards,
+                        @Value("${chat.rooms.legacy-queues:20}") int legacyQueues,
+                        @Value("${chat.rooms.virtual-nodes:160}") int virtualNodes) {
+        this.messageBus = messageBus;
+        this.nodeId = nodeIdentity.getNodeId();
+        this.scheduler = scheduler;
+        this.meterRegistry = meterRegistry;
+        this.current = Topology.of(queueShards, legacyQueues, virtualNodes);
+        this.previous = previousQueueShards < 0 || previousQueueShards == queueShards
+                ? null : Topology.of(previousQueueShards, legacyQueues, virtualNodes);
+    }
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("chat.rooms.reshard.pending", this, RoomSharding::pending)
+                .description("Previous room queues not yet fenced plus rooms still routed to them")
+                .register(meterRegistry);
+        logger.info("Room queues: {}", previous == null ? current : previous + " -> " + current);
+        if (previous != null) {
+            long retryBudgetMs = retryBudgetMs();
+            if (publishGraceMs <= retryBudgetMs) {
+                logger.warn("chat.rooms.reshard.publish-grace-ms={} is within the publish retry back-off of {} ms; using {} ms",
+                        publishGraceMs, retryBudgetMs, retryBudgetMs + fenceIntervalMs);
+                publishGraceMs = retryBudgetMs + fenceIntervalMs;
+            }
+            scheduler.scheduleAtFixedRate(this::sendFences, Duration.ofMillis(fenceIntervalMs));
+        }
+    }
+
+    // Every queue to declare and consume: the current topology's, plus the previous one's while resharding.
+    public List<String> queueNames() {
+        Set<String> names = new LinkedHashSet<>(current.queues);
+        if (previous != null) {
+            names.addAll(previous.queues);
+        }
+        return new ArrayList<>(names);
+    }
+
+    // Queues are bound to the topic exchange under their own name.
+    public String routingKey(String roomId) {
+        String target = current.queue(roomId);
+        if (previous == null) {
+            return target;
+        }
+        String from = previous.queue(roomId);
+        if (from.equals(target) || !previous.contains(from)) {
+            return target;
+        }
+        Long state = previousRoutes.get(roomId);
+        if (state != null && state == SWITCHED) {
+            return target;
+        }
+        state = previousRoutes.compute(roomId, (room, last) -> {
+            if (last != null && last == SWITCHED) {
+                return last;
+            }
+            Long fence = fencedAt.get(from);
+            long since = last == null ? startNanos : last;
+            if (fence != null && fence - since > TimeUnit.MILLISECONDS.toNanos(publishGraceMs)) {
+                return SWITCHED;
+            }
+            return System.nanoTime();
+        });
+        return state == SWITCHED ? target : from;
+    }
+
+    // Called by the room consumer for each delivery, in queue order. Returns false for ordinary messages.
+    public boolean onFence(Message message) {
+        MessageProperties properties = message.getMessageProperties();
+        Object origin = properties.getHeader(RabbitMQConfig.RESHARD_FENCE_HEADER);
+        if (origin == null) {
+            return false;
+        }
+        String queue = properties.getReceivedRoutingKey();
+        long sentAt = ((Number) properties.getHeader(FENCE_SENT_HEADER)).longValue();
+        Number consumersHeader = properties.getHeader(FENCE_CONSUMERS_HEADER);
+        int consumers = consumersHeader == null ? 1 : consumersHeader.intValue();
+        Object seenHeader = properties.getHeader(FENCE_SEEN_HEADER);
+        Set<String> seen = new LinkedHashSet<>();
+        if (seenHeader != null && !seenHeader.toString().isEmpty()) {
+            seen.addAll(Arrays.asList(seenHeader.toString().split(",")));
+        }
+        seen.add(nodeId + "/" + properties.getConsumerTag());
+        if (nodeId.equals(origin.toString()) && seen.size() >= consumers) {
+            fencedAt.merge(queue, sentAt, Math::max);
+            return true;
+        }
+        Number hops = properties.getHeader(FENCE_HOPS_HEADER);
+        if (hops != null && hops.intValue() < MAX_FENCE_HOPS) {
+            try {
+                messageBus.publish(queue, fence(origin.toString(), sentAt, consumers, String.join(",", seen),
+                        hops.intValue() + 1));
+            } catch (AmqpException e) {
+                logger.warn("Could not forward a fence marker for {}: {}", origin, e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private void sendFences() {
+        if (pending() == 0) {
+            if (!settled) {
+                settled = true;
+                logger.info("Resharding settled on this node; every room now routes to {}", current);
+            }
+            return;
+        }
+        long sentAt = System.nanoTime();
+        for (String queue : previous.queues) {
+            try {
+                int consumers = Math.max(1, messageBus.consumerCount(queue));
+                messageBus.publish(queue, fence(nodeId, sentAt, consumers, "", 0));
+            } catch (AmqpException e) {
+                logger.warn("Could not publish a fence marker to {}: {}", queue, e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private int pending() {
+        if (previous == null) {
+            return 0;
+        }
+        long grace = TimeUnit.MILLISECONDS.toNanos(publishGraceMs);
+        int unfenced = 0;
+        for (String queue : previous.queues) {
+            Long fence = fencedAt.get(queue);
+            if (fence == null || fence - startNanos <= grace) {
+                unfenced++;
+            }
+        }
+        int routedToPrevious = 0;
+        for (Long state : previousRoutes.values()) {
+            if (state != SWITCHED) {
+                routedToPrevious++;
+            }
+        }
+        return unfenced + routedToPrevious;
+    }
+
+    // Total back-off of the retrying template, whose publishes can reach the queue this long after routing.
+    private long retryBudgetMs() {
+        if (!retryEnabled) {
+            return 0;
+        }
+        long total = 0;
+        double interval = retryInitialMs;
+        for (int attempt = 1; attempt < retryAttempts; attempt++) {
+            total += Math.min((long) interval, retryMaxIntervalMs);
+            interval *= retryMultiplier;
+        }
+        return total;
+    }
+
+    private static Message fence(String origin, long sentAt, int consumers, String seen, int hops) {
+        MessageProperties properties = new MessageProperties();
+        properties.setHeader(RabbitMQConfig.RESHARD_FENCE_HEADER, origin);
+        properties.setHeader(FENCE_SENT_HEADER, sentAt);
+        properties.setHeader(FENCE_CONSUMERS_HEADER, consumers);
+        properties.setHeader(FENCE_SEEN_HEADER, seen);
+        properties.setHeader(FENCE_HOPS_HEADER, hops);
+        return new Message(new byte[0], properties);
+    }
+
+    private static final class Topology {
+        private final String description;
+        private final List<String> queues = new ArrayList<>();
+        private final Set<String> queueSet;
+        // Ring positions in ascending order and the shard owning each; null for one queue per room.
+        private final long[] points;
+        private final int[] owners;
+
+        private Topology(int shards, int legacyQueues, int virtualNodes) {
+            if (shards == 0) {
+                for (int i = 1; i <= legacyQueues; i++) {
+                    queues.add(RabbitMQConfig.QUEUE_NAME_PREFIX + i);
+                }
+                this.description = legacyQueues + " per-room queues";
+                this.points = null;
+                this.owners = null;
+            } else {
+                TreeMap<Long, Integer> ring = new TreeMap<>();
+                for (int shard = 0; shard < shards; shard++) {
+                    queues.add(SHARD_QUEUE_PREFIX + shard);
+                    for (int v = 0; v < virtualNodes; v++) {
+                        ring.put(HASH.hashString("shard-" + shard + "-" + v, StandardCharsets.UTF_8).asLong(), shard);
+                    }
+                }
+                this.description = shards + " queue shards";
+                this.points = new long[ring.size()];
+                this.owners = new int[ring.size()];
+                int i = 0;
+                for (Map.Entry<Long, Integer> point : ring.entrySet()) {
+                    points[i] = point.getKey();
+                    owners[i++] = point.getValue();
+                }
+            }
+            this.queueSet = Set.copyOf(queues);
+        }
+
+        static Topology of(int shards, int legacyQueues, int virtualNodes) {
+            return new Topology(shards, legacyQueues, Math.max(1, virtualNodes));
+        }
+
+        // A room id beyond legacy-queues maps to a queue that is not declared, as before sharding.
+        String queue(String roomId) {
+            if (points == null) {
+                return RabbitMQConfig.QUEUE_NAME_PREFIX + roomId;
+            }
+            long hash = HASH.hashString(roomId, StandardCharsets.UTF_8).asLong();
+            int i = Arrays.binarySearch(points, hash);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return queues.get(owners[i == points.length ? 0 : i]);
+        }
+
+        boolean contains(String queue) {
+            return queueSet.contains(queue);
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+}
@@ -1,18 +1,35 @@
 package com.chat.cs6650assignment4.config;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 
 @Configuration
 @EnableAsync
 public class ThreadConfig {
 
+    // One switch for the whole app: Spring Boot moves Tomcat and the listener containers onto virtual
+    // threads, and the pools below follow it. Virtual pools are bounded by a concurrency limit instead of a
+    // thread count; submitters block while the limit is reached.
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
     @Bean(name = "dbWriterPool")
-    public Executor dbWriterPool() {
+    public Executor dbWriterPool(@Value("${chat.threads.virtual.db-writer-limit:50}") int virtualLimit) {
+        if (virtualThreads) {
+            return virtualExecutor("DB-Writer-", virtualLimit);
+        }
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
         executor.setCorePoolSize(10);
         executor.setMaxPoolSize(50);
@@ -23,7 +40,10 @@ public class ThreadConfig {
     }
 
     @Bean(name = "statsPool")
-    public Executor statsPool() {
+    public Executor statsPool(@Value("${chat.threads.virtual.stats-limit:10}") int virtualLimit) {
+        if (virtualThreads) {
+            return virtualExecutor("Stats-Calc-", virtualLimit);
+        }
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
         executor.setCorePoolSize(5);
         executor.setMaxPoolSize(10);
@@ -32,4 +52,182 @@ public class ThreadConfig {
         executor.initialize();
         return executor;
     }
-}
\ No newline at end of file
+
+    @Bean(name = "wsWriterPool")
+    public Executor wsWriterPool(@Value("${chat.outbound.writer-threads:16}") int writerThreads) {
+        if (virtualThreads) {
+            // No limit: drains re-submit themselves, and each session has at most one drain in flight anyway.
+            return virtualExecutor("WS-Writer-", SimpleAsyncTaskExecutor.UNBOUNDED_CONCURRENCY);
+        }
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(writerThreads);
+        executor.setMaxPoolSize(writerThreads);
+        executor.setThreadNamePrefix("WS-Writer-");
+        executor.initialize();
+        return executor;
+    }
+
+    // Closes evicted sessions and watches for stuck writes; kept apart from wsWriterPool so stuck
+    // sockets can never starve it.
+    @Bean(name = "wsCloseScheduler")
+    public ThreadPoolTaskScheduler wsCloseScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(2);
+        scheduler.setThreadNamePrefix("WS-Close-");
+        scheduler.initialize();
+        return scheduler;
+    }
+
+    // Single-threaded lanes for RoomFanout; a session always uses the same lane, which keeps its broadcasts in
+    // order. A full lane makes the submitting broadcast listener wait for room instead of running the task
+    // itself (which would overtake the queued ones), so a slow lane pushes back on the broadcast consumer.
+    @Bean(name = "fanoutLanes")
+    public List<ThreadPoolTaskExecutor> fanoutLanes(@Value("${chat.broadcast.fanout.lanes:0}") int laneCount,
+                                                    @Value("${chat.broadcast.fanout.lane-queue:1000}") int queueCapacity) {
+        int count = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+        List<ThreadPoolTaskExecutor> lanes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ThreadPoolTaskExecutor lane = new ThreadPoolTaskExecutor();
+            lane.setCorePoolSize(1);
+            lane.setMaxPoolSize(1);
+            lane.setQueueCapacity(queueCapacity);
+            lane.setRejectedExecutionHandler(ThreadConfig::awaitQueueSpace);
+            lane.setThreadNamePrefix("Fanout-" + i + "-");
+            lane.initialize();
+            lanes.add(lane);
+        }
+        return lanes;
+    }
+
+    @Bean(name = "queryPool")
+    public Executor queryPool(@Value("${chat.threads.virtual.query-limit:32}") int virtualLimit) {
+        if (virtualThreads) {
+            return virtualExecutor("Query-", virtualLimit);
+        }
+        return ForkJoinPool.commonPool();
+    }
+
+    @Bean(name = "coalesceScheduler")
+    public ThreadPoolTaskScheduler coalesceScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(2);
+        scheduler.setThreadNamePrefix("WS-Coalesce-");
+        scheduler.initialize();
+        return scheduler;
+    }
+
+    @Bean(name = "ingressBatchScheduler")
+    public ThreadPoolTaskScheduler ingressBatchScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(2);
+        scheduler.setThreadNamePrefix("Ingress-Batch-");
+        scheduler.initialize();
+        return scheduler;
+    }
+
+    // Publishes flushed ingress batches off the room lock. Each room has at most one drain queued, so the queue
+    // holds about one task per busy room; IngressBatcher bounds each room's own backlog.
+    @Bean(name = "ingressPublishPool")
+    public Executor ingressPublishPool(@Value("${chat.ingress.batch.publish-threads:4}") int publishThreads) {
+        if (virtualThreads) {
+            // No limit, as for wsWriterPool: one drain per room, and a limit would block flushes under the room lock.
+            return virtualExecutor("Ingress-Publish-", SimpleAsyncTaskExecutor.UNBOUNDED_CONCURRENCY);
+        }
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(publishThreads);
+        executor.setMaxPoolSize(publishThreads);
+        executor.setQueueCapacity(10_000);
+        executor.setThreadNamePrefix("Ingress-Publish-");
+        executor.initialize();
+        return executor;
+    }
+
+    @Bean(name = "ackScheduler")
+    public ThreadPoolTaskScheduler ackScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(1);
+        scheduler.setThreadNamePrefix("Ack-Window-");
+        scheduler.initialize();
+        return scheduler;
+    }
+
+    @Bean(name = "broadcastBatchScheduler")
+    public ThreadPoolTaskScheduler broadcastBatchScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(2);
+        scheduler.setThreadNamePrefix("Broadcast-Batch-");
+        scheduler.initialize();
+        return scheduler;
+    }
+
+    // Publishes flushed broadcast batches off the room lock, one drain per room as for ingressPublishPool.
+    @Bean(name = "broadcastPublishPool")
+    public Executor broadcastPublishPool(@Value("${chat.broadcast.batch.publish-threads:2}") int publishThreads) {
+        if (virtualThreads) {
+            return virtualExecutor("Broadcast-Publish-", SimpleAsyncTaskExecutor.UNBOUNDED_CONCURRENCY);
+        }
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(publishThreads);
+        executor.setMaxPoolSize(publishThreads);
+        executor.setQueueCapacity(10_000);
+        executor.setThreadNamePrefix("Broadcast-Publish-");
+        executor.initialize();
+        return executor;
+    }
+
+    @Bean(name = "consumerAckScheduler")
+    public ThreadPoolTaskScheduler consumerAckScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(1);
+        scheduler.setThreadNamePrefix("Consumer-Ack-");
+        scheduler.initialize();
+        return scheduler;
+    }
+
+    @Bean(name = "consumerAutoscaleScheduler")
+    public ThreadPoolTaskScheduler consumerAutoscaleScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(1);
+        scheduler.setThreadNamePrefix("Consumer-Autoscale-");
+        scheduler.initialize();
+        return scheduler;
+    }
+
+    // Single thread: room bind/unbind reconciles must not interleave.
+    @Bean(name = "roomBindingScheduler")
+    public ThreadPoolTaskScheduler roomBindingScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(1);
+        scheduler.setThreadNamePrefix("Room-Binding-");
+        scheduler.initialize();
+        return scheduler;
+    }
+
+    @Bean(name = "roomReshardScheduler")
+    public ThreadPoolTaskScheduler roomReshardScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(1);
+        scheduler.setThreadNamePrefix("Room-Reshard-");
+        scheduler.initialize();
+        return scheduler;
+    }
+
+    private static void awaitQueueSpace(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Executor is shut down");
+        }
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for queue space", e);
+        }
+    }
+
+    private static Executor virtualExecutor(String threadNamePrefix, int concurrencyLimit) {
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor(threadNamePrefix);
+        executor.setVirtualThreads(true);
+        executor.setConcurrencyLimit(concurrencyLimit);
+        return executor;
+    }
+}
@@ -1,7 +1,12 @@
 package com.chat.cs6650assignment4.config;
 
 import com.chat.cs6650assignment4.serverv4.ChatWebSocketHandler;
+import com.chat.cs6650assignment4.serverv4.FrameCompressionService;
+import com.chat.cs6650assignment4.serverv4.PerMessageDeflateFilter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
@@ -18,4 +23,15 @@ public class WebSocketConfig implements WebSocketConfigurer {
         registry.addHandler(chatWebSocketHandler, "/chat/{roomId}")
                 .setAllowedOrigins("*");
     }
+
+    @Bean
+    public FilterRegistrationBean<PerMessageDeflateFilter> perMessageDeflateFilter(
+            FrameCompressionService compressionService,
+            @Value("${chat.ws.deflate.server-context-takeover:true}") boolean serverContextTakeover,
+            @Value("${chat.ws.deflate.client-context-takeover:true}") boolean clientContextTakeover) {
+        FilterRegistrationBean<PerMessageDeflateFilter> registration = new FilterRegistrationBean<>(
+                new PerMessageDeflateFilter(compressionService, serverContextTakeover, clientContextTakeover));
+        registration.addUrlPatterns("/chat/*");
+        return registration;
+    }
 }
@@ -1,20 +1,148 @@
 package com.chat.cs6650assignment4.consumerv4;
 
+import com.chat.cs6650assignment4.bus.MessageBus;
+import com.chat.cs6650assignment4.config.NodeIdentity;
 import com.chat.cs6650assignment4.config.RabbitMQConfig;
 import com.chat.cs6650assignment4.model.QueueMessage;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import com.chat.cs6650assignment4.monitoring.PipelineTracer;
+import com.chat.cs6650assignment4.protocol.RawQueueMessage;
+import com.chat.cs6650assignment4.serverv4.LingerBatcher;
+import io.micrometer.core.instrument.Counter;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Service;
 
+import java.io.ByteArrayOutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// With batching on, broadcast bodies are grouped per room by a LingerBatcher and published as one envelope;
+// callers hold the work-queue ack until their batch is out, so pending batches are bounded by the consumers'
+// unacked deliveries.
 @Service
 public class BroadcastPublisherService {
+    private static final Logger logger = LoggerFactory.getLogger(BroadcastPublisherService.class);
+    private static final long SHUTDOWN_FLUSH_TIMEOUT_MS = 5000;
+
+    private final MessageBus messageBus;
+    private final String nodeId;
+    private final ObjectMapper objectMapper;
+    private final LingerBatcher<byte[]> batcher;
+    private final Counter failedBatches;
+    private final PipelineTracer pipelineTracer;
+
+    public BroadcastPublisherService(MessageBus messageBus, NodeIdentity nodeIdentity, ObjectMapper objectMapper,
+                                     @Qualifier("broadcastBatchScheduler") TaskScheduler batchScheduler,
+                                     @Qualifier("broadcastPublishPool") Executor batchPublishPool,
+                                     MeterRegistry meterRegistry, PipelineTracer pipelineTracer,
+                                     @Value("${chat.broadcast.batch.enabled:false}") boolean batching,
+                                     @Value("${chat.broadcast.batch.max-messages:50}") int batchMaxMessages,
+                                     @Value("${chat.broadcast.batch.linger-ms:2}") long batchLingerMs) {
+        this.messageBus = messageBus;
+        this.nodeId = nodeIdentity.getNodeId();
+        this.objectMapper = objectMapper;
+        this.pipelineTracer = pipelineTracer;
+        this.batcher = batching
+                ? new LingerBatcher<>("chat.broadcast.batch", this::publishBatch, batchScheduler, batchPublishPool,
+                        batchMaxMessages, batchLingerMs, Integer.MAX_VALUE, meterRegistry)
+                : null;
+        this.failedBatches = Counter.builder("chat.broadcast.batch.failed")
+                .register(meterRegistry);
+    }
+
+    // Publishes what the room batches still hold instead of leaving it to linger timers that no longer run.
+    @PreDestroy
+    public void stop() {
+        if (batcher != null) {
+            try {
+                batcher.flushAll().get(SHUTDOWN_FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                logger.warn("Broadcast batches still unpublished at shutdown; their deliveries will be redelivered: {}",
+                        e.getMessage());
+            }
+        }
+    }
+
+    // The returned future completes once the broadcast is published: at once without batching (a failure
+    // throws), or with its batch. Callers hold the work-queue ack until then.
+    public CompletableFuture<Void> publishBroadcast(QueueMessage message) {
+        pipelineTracer.broadcastPublished(message);
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(message);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (batcher != null) {
+            return batcher.add(message.getRoomId(), body);
+        }
+        messageBus.broadcast(message.getRoomId(), new Message(body, properties(message.getRoomId())));
+        return CompletableFuture.completedFuture(null);
+    }
+
+    // Forwards a QueueMessage body as received, without decoding and re-encoding it.
+    public CompletableFuture<Void> publishRawBroadcast(RawQueueMessage message) {
+        if (batcher != null) {
+            return batcher.add(message.getRoomId(), message.getBody());
+        }
+        messageBus.broadcast(message.getRoomId(), new Message(message.getBody(), properties(message.getRoomId())));
+        return CompletableFuture.completedFuture(null);
+    }
+
+    // A single attempt: a failure fails the batch, and its deliveries are requeued.
+    private CompletableFuture<Void> publishBatch(String roomId, List<byte[]> bodies) {
+        try {
+            sendBatch(roomId, bodies);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            failedBatches.increment();
+            logger.error("Failed to publish broadcast batch of {} for room {}", bodies.size(), roomId, e);
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 
-    private final RabbitTemplate rabbitTemplate;
+    // One message whose body is the JSON array of the room's broadcast bodies, spliced without re-encoding.
+    private void sendBatch(String roomId, List<byte[]> bodies) {
+        if (bodies.size() == 1) {
+            messageBus.broadcastOnce(roomId, new Message(bodies.get(0), properties(roomId)));
+            return;
+        }
+        int size = bodies.size() + 1;
+        for (byte[] body : bodies) {
+            size += body.length;
+        }
+        ByteArrayOutputStream envelope = new ByteArrayOutputStream(size);
+        envelope.write('[');
+        for (int i = 0; i < bodies.size(); i++) {
+            if (i > 0) {
+                envelope.write(',');
+            }
+            envelope.writeBytes(bodies.get(i));
+        }
+        envelope.write(']');
 
-    public BroadcastPublisherService(RabbitTemplate rabbitTemplate) {
-        this.rabbitTemplate = rabbitTemplate;
+        MessageProperties properties = properties(roomId);
+        properties.setHeader(RabbitMQConfig.BATCH_SIZE_HEADER, bodies.size());
+        messageBus.broadcastOnce(roomId, new Message(envelope.toByteArray(), properties));
     }
 
-    public void publishBroadcast(QueueMessage message) {
-        rabbitTemplate.convertAndSend(RabbitMQConfig.FANOUT_EXCHANGE_NAME, "", message);
+    private MessageProperties properties(String roomId) {
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+        properties.setHeader(RabbitMQConfig.ORIGIN_NODE_HEADER, nodeId);
+        properties.setHeader(RabbitMQConfig.ROOM_HEADER, roomId);
+        return properties;
     }
 }
\ No newline at end of file
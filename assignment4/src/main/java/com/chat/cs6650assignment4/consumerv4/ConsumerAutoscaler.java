@@ -0,0 +1,354 @@
+package com.chat.cs6650assignment4.consumerv4;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareBatchMessageListener;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareMessageListener;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Adjusts the room-queue containers from their backlog. Every interval it reads each queue's depth from
+ * the broker and the processing time the instrumented listeners recorded, then estimates how long the
+ * container needs to drain its backlog at the observed rate. A container that falls behind gets more
+ * prefetch while its messages are quick to process (it is waiting on deliveries), or another consumer
+ * once they are slow or prefetch is already at its bound (it is busy). A container that stays near empty
+ * steps back down, consumers first. After a change it waits a few intervals so the next decision sees
+ * its effect.
+ *
+ * A container with more than one consumer processes its rooms' messages in parallel, so broadcast order
+ * within a room is only kept while max-consumers is 1. A running consumer keeps the QoS its channel was
+ * opened with, so a prefetch change restarts the container: stop waits for the in-flight deliveries,
+ * prefetched ones go back to the queue (and redeliveries of processed but unacked ones are caught by the
+ * idempotency store), and the new consumers start with the new prefetch. A change that fails to apply
+ * is logged and not recorded.
+ */
+@Component
+public class ConsumerAutoscaler {
+    private static final Logger logger = LoggerFactory.getLogger(ConsumerAutoscaler.class);
+
+    public static final String ADD_CONSUMER = "add-consumer";
+    public static final String REMOVE_CONSUMER = "remove-consumer";
+    public static final String RAISE_PREFETCH = "raise-prefetch";
+    public static final String LOWER_PREFETCH = "lower-prefetch";
+
+    private final RabbitAdmin rabbitAdmin;
+    private final TaskScheduler scheduler;
+    private final MeterRegistry meterRegistry;
+    private final List<ScaledContainer> containers = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<String, Timer> processingTimers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> queueDepths = new ConcurrentHashMap<>();
+    private final ArrayDeque<ScalingDecision> history = new ArrayDeque<>();
+    private final Map<String, Counter> decisionCounters = new ConcurrentHashMap<>();
+
+    @Value("${chat.consumer.autoscale.enabled:false}")
+    private boolean enabled;
+
+    @Value("${chat.consumer.autoscale.interval-ms:5000}")
+    private long intervalMs = 5000;
+
+    @Value("${chat.consumer.autoscale.min-consumers:1}")
+    private int minConsumers = 1;
+
+    @Value("${chat.consumer.autoscale.max-consumers:1}")
+    private int maxConsumers = 1;
+
+    @Value("${chat.consumer.autoscale.min-prefetch:50}")
+    private int minPrefetch = 50;
+
+    @Value("${chat.consumer.autoscale.max-prefetch:1000}")
+    private int maxPrefetch = 1000;
+
+    @Value("${chat.consumer.autoscale.scale-up-depth:1000}")
+    private long scaleUpDepth = 1000;
+
+    @Value("${chat.consumer.autoscale.target-lag-ms:2000}")
+    private long targetLagMs = 2000;
+
+    @Value("${chat.consumer.autoscale.slow-processing-ms:2}")
+    private double slowProcessingMs = 2;
+
+    @Value("${chat.consumer.autoscale.scale-down-depth:50}")
+    private long scaleDownDepth = 50;
+
+    @Value("${chat.consumer.autoscale.scale-down-intervals:6}")
+    private int scaleDownIntervals = 6;
+
+    @Value("${chat.consumer.autoscale.cooldown-intervals:2}")
+    private int cooldownIntervals = 2;
+
+    @Value("${chat.consumer.autoscale.history-size:200}")
+    private int historySize = 200;
+
+    public record ScalingDecision(Instant at, String container, String action, String reason, long depth,
+                                  double messagesPerSecond, double processingMs, int consumersBefore,
+                                  int consumersAfter, int prefetchBefore, int prefetchAfter) {
+    }
+
+    private final class ScaledContainer {
+        private final String name;
+        private final SimpleMessageListenerContainer container;
+        private final List<String> queues;
+        private final int basePrefetch;
+        private volatile int consumers;
+        private volatile int prefetch;
+        private volatile long depth;
+        private volatile double messagesPerSecond;
+        private volatile double processingMs;
+        private long lastCount;
+        private double lastTotalNanos;
+        private long lastSampleNanos = System.nanoTime();
+        private int cooldown;
+        private int idleIntervals;
+
+        ScaledContainer(String name, SimpleMessageListenerContainer container, List<String> queues,
+                        int consumers, int prefetch) {
+            this.name = name;
+            this.container = container;
+            this.queues = queues;
+            this.consumers = consumers;
+            this.prefetch = prefetch;
+            this.basePrefetch = prefetch;
+        }
+    }
+
+    public ConsumerAutoscaler(RabbitAdmin rabbitAdmin,
+                              @Qualifier("consumerAutoscaleScheduler") TaskScheduler scheduler,
+                              MeterRegistry meterRegistry) {
+        this.rabbitAdmin = rabbitAdmin;
+        this.scheduler = scheduler;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            scheduler.scheduleAtFixedRate(this::evaluate, Duration.ofMillis(intervalMs));
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Call before the container starts; it is scaled from the concurrency and prefetch it was built with.
+    public void register(String name, SimpleMessageListenerContainer container, List<String> queues,
+                         int consumers, int prefetch) {
+        ScaledContainer scaled = new ScaledContainer(name, container, List.copyOf(queues), consumers, prefetch);
+        containers.add(scaled);
+        Gauge.builder("chat.consumer.autoscale.consumers", scaled, s -> s.consumers)
+                .tag("container", name)
+                .register(meterRegistry);
+        Gauge.builder("chat.consumer.autoscale.prefetch", scaled, s -> s.prefetch)
+                .tag("container", name)
+                .register(meterRegistry);
+        for (String queue : queues) {
+            Gauge.builder("chat.consumer.queue.depth", queueDepths.computeIfAbsent(queue, q -> new AtomicLong()),
+                            AtomicLong::get)
+                    .tag("queue", queue)
+                    .register(meterRegistry);
+        }
+    }
+
+    // Wraps a room-queue listener so the time spent per delivery is recorded against its queue.
+    public ChannelAwareMessageListener instrument(ChannelAwareMessageListener listener) {
+        return (message, channel) -> {
+            long start = System.nanoTime();
+            try {
+                listener.onMessage(message, channel);
+            } finally {
+                timerFor(message).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        };
+    }
+
+    public ChannelAwareBatchMessageListener instrument(ChannelAwareBatchMessageListener listener) {
+        return (messages, channel) -> {
+            long start = System.nanoTime();
+            try {
+                listener.onMessageBatch(messages, channel);
+            } finally {
+                long perMessage = (System.nanoTime() - start) / Math.max(1, messages.size());
+                for (Message message : messages) {
+                    timerFor(message).record(perMessage, TimeUnit.NANOSECONDS);
+                }
+            }
+        };
+    }
+
+    private Timer timerFor(Message message) {
+        String queue = message.getMessageProperties().getConsumerQueue();
+        return processingTimers.computeIfAbsent(queue == null ? "unknown" : queue,
+                q -> Timer.builder("chat.consumer.queue.processing")
+                        .description("Listener time per delivery, by room queue")
+                        .tag("queue", q)
+                        .register(meterRegistry));
+    }
+
+    public List<ScalingDecision> history() {
+        synchronized (history) {
+            return new ArrayList<>(history);
+        }
+    }
+
+    // Current state per container, for the actuator endpoint.
+    public List<Map<String, Object>> snapshot() {
+        List<Map<String, Object>> snapshot = new ArrayList<>(containers.size());
+        for (ScaledContainer scaled : containers) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("container", scaled.name);
+            entry.put("queues", scaled.queues);
+            entry.put("consumers", scaled.consumers);
+            entry.put("prefetch", scaled.prefetch);
+            entry.put("depth", scaled.depth);
+            entry.put("messagesPerSecond", scaled.messagesPerSecond);
+            entry.put("processingMs", scaled.processingMs);
+            snapshot.add(entry);
+        }
+        return snapshot;
+    }
+
+    public Map<String, Object> bounds() {
+        Map<String, Object> bounds = new LinkedHashMap<>();
+        bounds.put("consumers", List.of(minConsumers, maxConsumers));
+        bounds.put("prefetch", List.of(minPrefetch, maxPrefetch));
+        bounds.put("scaleUpDepth", scaleUpDepth);
+        bounds.put("targetLagMs", targetLagMs);
+        bounds.put("scaleDownDepth", scaleDownDepth);
+        return bounds;
+    }
+
+    private void evaluate() {
+        for (ScaledContainer scaled : containers) {
+            try {
+                evaluate(scaled);
+            } catch (AmqpException e) {
+                logger.warn("Skipping autoscale sample for {}: {}", scaled.name, e.getMessage());
+            } catch (RuntimeException e) {
+                logger.error("Autoscale evaluation failed for {}", scaled.name, e);
+            }
+        }
+    }
+
+    private void evaluate(ScaledContainer scaled) {
+        long depth = 0;
+        long count = 0;
+        double totalNanos = 0;
+        for (String queue : scaled.queues) {
+            QueueInformation info = rabbitAdmin.getQueueInfo(queue);
+            long queueDepth = info == null ? 0 : info.getMessageCount();
+            queueDepths.get(queue).set(queueDepth);
+            depth += queueDepth;
+            Timer timer = processingTimers.get(queue);
+            if (timer != null) {
+                count += timer.count();
+                totalNanos += timer.totalTime(TimeUnit.NANOSECONDS);
+            }
+        }
+        long now = System.nanoTime();
+        long processed = count - scaled.lastCount;
+        double seconds = Math.max(1e-3, (now - scaled.lastSampleNanos) / 1e9);
+        scaled.depth = depth;
+        scaled.messagesPerSecond = processed / seconds;
+        scaled.processingMs = processed > 0 ? (totalNanos - scaled.lastTotalNanos) / processed / 1e6 : 0;
+        scaled.lastCount = count;
+        scaled.lastTotalNanos = totalNanos;
+        scaled.lastSampleNanos = now;
+
+        if (scaled.cooldown > 0) {
+            scaled.cooldown--;
+            return;
+        }
+        double lagMs = scaled.messagesPerSecond > 0 ? depth / scaled.messagesPerSecond * 1000 : depth > 0 ? Double.MAX_VALUE : 0;
+
+        if (depth >= scaleUpDepth && lagMs >= targetLagMs) {
+            scaled.idleIntervals = 0;
+            if (scaled.processingMs < slowProcessingMs && scaled.prefetch < maxPrefetch) {
+                apply(scaled, RAISE_PREFETCH, String.format("lag %.0f ms, %.2f ms/msg: waiting on deliveries", lagMs,
+                        scaled.processingMs), scaled.consumers, Math.min(maxPrefetch, scaled.prefetch * 2));
+            } else if (scaled.consumers < maxConsumers) {
+                apply(scaled, ADD_CONSUMER, String.format("lag %.0f ms, %.2f ms/msg: processing-bound", lagMs,
+                        scaled.processingMs), scaled.consumers + 1, scaled.prefetch);
+            }
+        } else if (depth <= scaleDownDepth) {
+            if (++scaled.idleIntervals < scaleDownIntervals) {
+                return;
+            }
+            scaled.idleIntervals = 0;
+            if (scaled.consumers > minConsumers) {
+                apply(scaled, REMOVE_CONSUMER, "depth " + depth + " for " + scaleDownIntervals + " intervals",
+                        scaled.consumers - 1, scaled.prefetch);
+            } else if (scaled.prefetch > Math.max(minPrefetch, scaled.basePrefetch)) {
+                apply(scaled, LOWER_PREFETCH, "depth " + depth + " for " + scaleDownIntervals + " intervals",
+                        scaled.consumers, Math.max(Math.max(minPrefetch, scaled.basePrefetch), scaled.prefetch / 2));
+            }
+        } else {
+            scaled.idleIntervals = 0;
+        }
+    }
+
+    private void apply(ScaledContainer scaled, String action, String reason, int consumers, int prefetch) {
+        ScalingDecision decision = new ScalingDecision(Instant.now(), scaled.name, action, reason, scaled.depth,
+                scaled.messagesPerSecond, scaled.processingMs, scaled.consumers, consumers, scaled.prefetch, prefetch);
+        if (prefetch != scaled.prefetch) {
+            scaled.container.setPrefetchCount(prefetch);
+            try {
+                restart(scaled.container);
+            } catch (RuntimeException e) {
+                scaled.container.setPrefetchCount(scaled.prefetch);
+                throw e;
+            }
+            scaled.prefetch = prefetch;
+        }
+        if (consumers != scaled.consumers) {
+            scaled.container.setConcurrentConsumers(consumers);
+            scaled.consumers = consumers;
+        }
+        scaled.cooldown = cooldownIntervals;
+        decisionCounters.computeIfAbsent(action, a -> Counter.builder("chat.consumer.autoscale.decisions")
+                        .tag("action", a)
+                        .register(meterRegistry))
+                .increment();
+        logger.info("Autoscaler {} on {}: {} (consumers {} -> {}, prefetch {} -> {})", action, scaled.name, reason,
+                decision.consumersBefore(), consumers, decision.prefetchBefore(), prefetch);
+        synchronized (history) {
+            history.addLast(decision);
+            while (history.size() > historySize) {
+                history.removeFirst();
+            }
+        }
+    }
+
+    // Cycles the container's consumers so they open their channels with its current prefetch.
+    private static void restart(SimpleMessageListenerContainer container) {
+        if (!container.isRunning()) {
+            return;
+        }
+        container.stop();
+        container.start();
+    }
+}
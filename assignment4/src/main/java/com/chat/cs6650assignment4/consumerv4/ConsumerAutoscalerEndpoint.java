@@ -0,0 +1,29 @@
+package com.chat.cs6650assignment4.consumerv4;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// GET /actuator/autoscaler: the room-queue containers' current scale and the recent scaling decisions.
+@Component
+@Endpoint(id = "autoscaler")
+public class ConsumerAutoscalerEndpoint {
+    private final ConsumerAutoscaler autoscaler;
+
+    public ConsumerAutoscalerEndpoint(ConsumerAutoscaler autoscaler) {
+        this.autoscaler = autoscaler;
+    }
+
+    @ReadOperation
+    public Map<String, Object> autoscaler() {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("enabled", autoscaler.isEnabled());
+        body.put("bounds", autoscaler.bounds());
+        body.put("containers", autoscaler.snapshot());
+        body.put("history", autoscaler.history());
+        return body;
+    }
+}
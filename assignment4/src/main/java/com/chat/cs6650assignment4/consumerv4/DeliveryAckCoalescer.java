@@ -0,0 +1,319 @@
+package com.chat.cs6650assignment4.consumerv4;
+
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.amqp.rabbit.connection.ChannelProxy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Settles work-queue deliveries for the room consumers. When coalescing is enabled, acks are held per
+ * channel and sent as one basicAck(tag, multiple=true) every maxMessages deliveries or maxDelayMs after
+ * the first held one. A multiple ack covers every outstanding tag up to it, so it is only used while the
+ * settled tags are contiguous: a nack first flushes the held acks below it and is then sent on its own,
+ * and a tag that skips past an unsettled delivery is acked individually and remembered, so that once the
+ * gap is settled the contiguous prefix moves past it and coalescing resumes. Unacked deliveries on a channel
+ * that closes are redelivered by the broker and caught by the idempotency store. Deliveries from the
+ * in-process bus come with a channel that ignores their settlement.
+ *
+ * A cached channel that reopens its target starts its tags again at 1, so the state of a channel starts
+ * over when its target changes or a tag at or below the settled prefix comes in. A gap still open after
+ * more tags than a container's prefetch have been settled past it is given up: the prefix jumps over it,
+ * and a tag of the gap that comes in later is settled on its own, unless a multiple ack has covered it.
+ */
+@Component
+public class DeliveryAckCoalescer {
+    private static final Logger logger = LoggerFactory.getLogger(DeliveryAckCoalescer.class);
+
+    private final TaskScheduler scheduler;
+    private final ConcurrentHashMap<Channel, ChannelAcks> channels = new ConcurrentHashMap<>();
+
+    private final Counter acksSent;
+    private final Counter nacksSent;
+    private final DistributionSummary ackBatchSize;
+    private final Counter sizeFlushes;
+    private final Counter timerFlushes;
+    private final Counter nackFlushes;
+
+    private final boolean enabled;
+    private final int maxMessages;
+    private final long maxDelayMs;
+    private final int maxSettledAbove;
+
+    public DeliveryAckCoalescer(@Qualifier("consumerAckScheduler") TaskScheduler scheduler,
+                                MeterRegistry meterRegistry,
+                                @Value("${chat.consumer.ack.coalesce.enabled:false}") boolean enabled,
+                                @Value("${chat.consumer.ack.coalesce.max-messages:50}") int maxMessages,
+                                @Value("${chat.consumer.ack.coalesce.max-delay-ms:20}") long maxDelayMs,
+                                @Value("${chat.consumer.prefetch:200}") int prefetch,
+                                @Value("${chat.consumer.autoscale.max-prefetch:1000}") int maxPrefetch) {
+        this.scheduler = scheduler;
+        this.enabled = enabled;
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxDelayMs = Math.max(1, maxDelayMs);
+        // The most deliveries a container can hold unacked, with the autoscaler's largest prefetch.
+        this.maxSettledAbove = Math.max(1, Math.max(prefetch, maxPrefetch));
+        // rate(chat.consumer.acks) is the ack frames per second sent to the broker.
+        this.acksSent = Counter.builder("chat.consumer.acks")
+                .description("basicAck frames sent for work-queue deliveries")
+                .register(meterRegistry);
+        this.nacksSent = Counter.builder("chat.consumer.nacks")
+                .register(meterRegistry);
+        this.ackBatchSize = DistributionSummary.builder("chat.consumer.ack.batch.size")
+                .description("Deliveries settled per basicAck frame")
+                .publishPercentiles(0.5, 0.95)
+                .register(meterRegistry);
+        this.sizeFlushes = Counter.builder("chat.consumer.ack.flushes")
+                .tag("reason", "size")
+                .register(meterRegistry);
+        this.timerFlushes = Counter.builder("chat.consumer.ack.flushes")
+                .tag("reason", "timer")
+                .register(meterRegistry);
+        this.nackFlushes = Counter.builder("chat.consumer.ack.flushes")
+                .tag("reason", "nack")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            long period = Math.max(1, maxDelayMs / 2);
+            scheduler.scheduleAtFixedRate(this::flushExpired, Duration.ofMillis(period));
+        }
+    }
+
+    public void ack(Channel channel, long tag) throws IOException {
+        ackRange(channel, tag, tag);
+    }
+
+    public void nack(Channel channel, long tag, boolean requeue) throws IOException {
+        nackRange(channel, tag, tag, requeue);
+    }
+
+    // Settles the consecutive tags firstTag..lastTag of one channel, as a batch listener receives them.
+    // Listener batches can settle out of order once they wait on broadcast publishes, and a multiple ack
+    // would then settle an earlier batch still waiting, so without coalescing each tag goes on its own.
+    public void ackRange(Channel channel, long firstTag, long lastTag) throws IOException {
+        if (!enabled) {
+            for (long tag = firstTag; tag <= lastTag; tag++) {
+                channel.basicAck(tag, false);
+                acksSent.increment();
+                ackBatchSize.record(1);
+            }
+            return;
+        }
+        channels.computeIfAbsent(channel, ChannelAcks::new).ack(firstTag, lastTag);
+    }
+
+    public void nackRange(Channel channel, long firstTag, long lastTag, boolean requeue) throws IOException {
+        if (!enabled) {
+            for (long tag = firstTag; tag <= lastTag; tag++) {
+                channel.basicNack(tag, false, requeue);
+                nacksSent.increment();
+            }
+            return;
+        }
+        channels.computeIfAbsent(channel, ChannelAcks::new).nack(firstTag, lastTag, requeue);
+    }
+
+    private void flushExpired() {
+        long now = System.nanoTime();
+        channels.values().forEach(acks -> {
+            if (!acks.channel.isOpen()) {
+                channels.remove(acks.channel, acks);
+            } else {
+                acks.flushIfOlderThan(now);
+            }
+        });
+    }
+
+    private static Channel targetOf(Channel channel) {
+        return channel instanceof ChannelProxy proxy ? proxy.getTargetChannel() : channel;
+    }
+
+    private final class ChannelAcks {
+        private final Channel channel;
+        private final ReentrantLock lock = new ReentrantLock();
+        // The channel the tags were issued on; a ChannelProxy's target changes when it reopens.
+        private Channel target;
+        // Every tag up to settledThrough has been acked or nacked, or is held for the next flush.
+        private long settledThrough;
+        // Tags above settledThrough that were settled on their own, past a gap.
+        private final Set<Long> settledAbove = new HashSet<>();
+        // Tags up to abandonedThrough belong to a gap that was given up on.
+        private long abandonedThrough;
+        // The highest tag sent with multiple=true.
+        private long multipleThrough;
+        // The highest held tag; the next flush acks everything up to it.
+        private long heldThrough;
+        private int held;
+        private long firstHeldNanos;
+
+        ChannelAcks(Channel channel) {
+            this.channel = channel;
+            this.target = targetOf(channel);
+        }
+
+        void ack(long firstTag, long lastTag) throws IOException {
+            lock.lock();
+            try {
+                startOverIfReopened(firstTag);
+                if (firstTag != settledThrough + 1) {
+                    // An earlier delivery is still unsettled; a multiple ack would settle it too.
+                    for (long tag = firstTag; tag <= lastTag; tag++) {
+                        settleAlone(tag, true, false);
+                    }
+                    return;
+                }
+                if (held == 0) {
+                    firstHeldNanos = System.nanoTime();
+                }
+                held += (int) (lastTag - firstTag + 1);
+                heldThrough = lastTag;
+                advance(lastTag);
+                if (held >= maxMessages) {
+                    sizeFlushes.increment();
+                    flush();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void nack(long firstTag, long lastTag, boolean requeue) throws IOException {
+            lock.lock();
+            try {
+                startOverIfReopened(firstTag);
+                if (held > 0) {
+                    nackFlushes.increment();
+                    flush();
+                }
+                if (firstTag == settledThrough + 1) {
+                    channel.basicNack(lastTag, firstTag != lastTag, requeue);
+                    nacksSent.increment();
+                    multipleThrough = firstTag != lastTag ? lastTag : multipleThrough;
+                    advance(lastTag);
+                } else {
+                    for (long tag = firstTag; tag <= lastTag; tag++) {
+                        settleAlone(tag, false, requeue);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Caller holds the lock. Tags below the settled prefix mean the channel's target was reopened and
+        // numbers them from 1 again, unless they come from an abandoned gap.
+        private void startOverIfReopened(long firstTag) {
+            Channel current = targetOf(channel);
+            if (current != target || (firstTag <= settledThrough && firstTag > abandonedThrough)) {
+                startOver(current);
+            }
+        }
+
+        // Caller holds the lock. Held acks of the closed target are dropped; the broker redelivers them.
+        private void startOver(Channel current) {
+            target = current;
+            settledThrough = 0;
+            settledAbove.clear();
+            abandonedThrough = 0;
+            multipleThrough = 0;
+            held = 0;
+        }
+
+        // Caller holds the lock. Settles one tag with multiple=false.
+        private void settleAlone(long tag, boolean ack, boolean requeue) throws IOException {
+            if (tag <= abandonedThrough && tag <= multipleThrough) {
+                // Its gap was given up and a multiple ack has covered it since; it is already acked.
+                if (!ack) {
+                    logger.warn("Delivery {} was acked when its gap was given up and cannot be requeued", tag);
+                }
+                return;
+            }
+            if (ack) {
+                channel.basicAck(tag, false);
+                acksSent.increment();
+                ackBatchSize.record(1);
+            } else {
+                channel.basicNack(tag, false, requeue);
+                nacksSent.increment();
+            }
+            if (tag > abandonedThrough) {
+                settledAbove.add(tag);
+                if (settledAbove.size() > maxSettledAbove) {
+                    abandonGap();
+                }
+            }
+        }
+
+        // Caller holds the lock. A gap left open while more than a prefetch of later tags were settled (its
+        // settlement failed, most likely) would keep every later ack individual; the prefix jumps over it.
+        // The held acks are all below the gap, so they still go out first.
+        private void abandonGap() throws IOException {
+            flush();
+            long highest = settledThrough;
+            for (long tag : settledAbove) {
+                highest = Math.max(highest, tag);
+            }
+            settledThrough = highest;
+            abandonedThrough = highest;
+            settledAbove.clear();
+        }
+
+        // Caller holds the lock. Moves settledThrough to tag and on over any tags settled past the old gap.
+        private void advance(long tag) {
+            settledThrough = tag;
+            while (!settledAbove.isEmpty() && settledAbove.remove(settledThrough + 1)) {
+                settledThrough++;
+            }
+        }
+
+        void flushIfOlderThan(long now) {
+            if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                Channel current = targetOf(channel);
+                if (current != target) {
+                    startOver(current);
+                } else if (held > 0 && now - firstHeldNanos >= TimeUnit.MILLISECONDS.toNanos(maxDelayMs)) {
+                    timerFlushes.increment();
+                    flush();
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Failed to flush coalesced acks; the broker will redeliver them: {}", e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Caller holds the lock.
+        private void flush() throws IOException {
+            if (held == 0) {
+                return;
+            }
+            int count = held;
+            held = 0;
+            channel.basicAck(heldThrough, true);
+            multipleThrough = heldThrough;
+            acksSent.increment();
+            ackBatchSize.record(count);
+        }
+    }
+}
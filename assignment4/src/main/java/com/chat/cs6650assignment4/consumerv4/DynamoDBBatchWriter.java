@@ -1,6 +1,7 @@
 package com.chat.cs6650assignment4.consumerv4;
 
 import com.chat.cs6650assignment4.model.QueueMessage;
+import com.chat.cs6650assignment4.monitoring.PipelineTracer;
 import com.google.common.collect.Lists;
 import io.github.resilience4j.circuitbreaker.annotation.CircuitBreaker;
 import io.github.resilience4j.retry.annotation.Retry;
@@ -32,10 +33,13 @@ public class DynamoDBBatchWriter {
     private final DynamoDbClient dynamoDbClient;
     private final DlqService dlqService;
     private final Counter messagesWrittenCounter;
+    private final PipelineTracer pipelineTracer;
 
-    public DynamoDBBatchWriter(DynamoDbClient dynamoDbClient, DlqService dlqService, MeterRegistry registry) {
+    public DynamoDBBatchWriter(DynamoDbClient dynamoDbClient, DlqService dlqService, PipelineTracer pipelineTracer,
+                               MeterRegistry registry) {
         this.dynamoDbClient = dynamoDbClient;
         this.dlqService = dlqService;
+        this.pipelineTracer = pipelineTracer;
         this.messagesWrittenCounter = Counter.builder("db.messages.written.total").register(registry);
     }
 
@@ -48,6 +52,9 @@ public class DynamoDBBatchWriter {
         for (List<QueueMessage> chunk : chunks) {
             writePhysicalBatch(chunk);
         }
+        if (pipelineTracer.isEnabled()) {
+            messages.forEach(pipelineTracer::persisted);
+        }
     }
 
     private void writePhysicalBatch(List<QueueMessage> chunk) {
@@ -0,0 +1,326 @@
+package com.chat.cs6650assignment4.consumerv4;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Message ids the room consumers have already handled, bounded in time and memory. Ids are stored as
+ * 128-bit keys (a UUID's own bits, or a murmur3 hash for anything else) in open-addressing tables of
+ * primitive longs, one table per generation. New ids go into the current generation; when it is older
+ * than retention / (generations - 1), or full, the oldest generation is cleared and becomes current.
+ * An id is therefore remembered for at least the retention unless the capacity forces an early rotation,
+ * which is counted as a capacity eviction. The heap cost is fixed at generations * table size * 16 bytes
+ * once every generation has been used, whatever the message rate.
+ *
+ * Keys are spread over independent stripes by hash, each with its own lock, generations and rotation
+ * clock, so consumer threads only contend when their ids land on the same stripe.
+ */
+@Component
+public class IdempotencyStore {
+    private static final double LOAD_FACTOR = 0.75;
+
+    private final MeterRegistry meterRegistry;
+    private final Stripe[] stripes;
+    private final int stripeMask;
+    private final int generationCount;
+    private final int generationCapacity;
+    private final int tableSlots;
+    private final long spanNanos;
+
+    private final Counter duplicates;
+    private final Counter firstSeen;
+    private final Counter expiredEvictions;
+    private final Counter capacityEvictions;
+
+    public IdempotencyStore(MeterRegistry meterRegistry,
+                            @Value("${chat.dedup.retention-seconds:300}") long retentionSeconds,
+                            @Value("${chat.dedup.generations:4}") int generationCount,
+                            @Value("${chat.dedup.max-entries:1000000}") int maxEntries,
+                            @Value("${chat.dedup.stripes:16}") int stripeCount) {
+        this.meterRegistry = meterRegistry;
+        int count = Math.max(2, generationCount);
+        int stripeTotal = Integer.highestOneBit(Math.max(1, Math.min(stripeCount, 1024)));
+        this.generationCount = count;
+        this.generationCapacity = Math.max(1, maxEntries / count / stripeTotal);
+        this.tableSlots = Integer.highestOneBit(Math.max(2, (int) Math.ceil(generationCapacity / LOAD_FACTOR)) - 1) << 1;
+        this.spanNanos = TimeUnit.SECONDS.toNanos(Math.max(1, retentionSeconds)) / (count - 1);
+        this.stripeMask = stripeTotal - 1;
+        this.stripes = new Stripe[stripeTotal];
+        long now = System.nanoTime();
+        for (int i = 0; i < stripeTotal; i++) {
+            stripes[i] = new Stripe(now + spanNanos);
+        }
+
+        this.duplicates = Counter.builder("chat.dedup.lookups")
+                .tag("result", "duplicate")
+                .register(meterRegistry);
+        this.firstSeen = Counter.builder("chat.dedup.lookups")
+                .tag("result", "new")
+                .register(meterRegistry);
+        this.expiredEvictions = Counter.builder("chat.dedup.evictions")
+                .tag("reason", "expired")
+                .register(meterRegistry);
+        this.capacityEvictions = Counter.builder("chat.dedup.evictions")
+                .tag("reason", "capacity")
+                .description("Ids dropped before their retention because a generation filled up")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void registerGauges() {
+        Gauge.builder("chat.dedup.entries", this, IdempotencyStore::entries)
+                .description("Message ids held by the idempotency store")
+                .register(meterRegistry);
+        Gauge.builder("chat.dedup.memory", this, IdempotencyStore::allocatedBytes)
+                .description("Heap held by the idempotency store's tables")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    // Returns false if the id was already recorded within the retention.
+    public boolean add(String messageId) {
+        long high = keyHigh(messageId);
+        long low = keyLow(messageId);
+        Stripe stripe = stripeFor(high, low);
+        boolean added;
+        stripe.lock.lock();
+        try {
+            added = stripe.add(high, low);
+        } finally {
+            stripe.lock.unlock();
+        }
+        (added ? firstSeen : duplicates).increment();
+        return added;
+    }
+
+    // Forgets an id whose processing failed, so the redelivery is not treated as a duplicate.
+    public void remove(String messageId) {
+        long high = keyHigh(messageId);
+        long low = keyLow(messageId);
+        Stripe stripe = stripeFor(high, low);
+        stripe.lock.lock();
+        try {
+            stripe.remove(high, low);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private double entries() {
+        long total = 0;
+        for (Stripe stripe : stripes) {
+            total += stripe.entries;
+        }
+        return total;
+    }
+
+    private double allocatedBytes() {
+        long total = 0;
+        for (Stripe stripe : stripes) {
+            total += stripe.allocatedBytes;
+        }
+        return total;
+    }
+
+    // Uses other bits of the key than Generation.home, so a stripe's table still spreads its keys.
+    private Stripe stripeFor(long high, long low) {
+        long mixed = (low ^ Long.rotateLeft(high, 17)) * 0xC2B2AE3D27D4EB4FL;
+        return stripes[(int) (mixed >>> 40) & stripeMask];
+    }
+
+    private final class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Generation[] generations = new Generation[generationCount];
+        private int current;
+        private long rotateAt;
+
+        private volatile long entries;
+        private volatile long allocatedBytes;
+
+        Stripe(long rotateAt) {
+            this.rotateAt = rotateAt;
+        }
+
+        // Caller holds the lock.
+        boolean add(long high, long low) {
+            for (Generation generation : generations) {
+                if (generation != null && generation.contains(high, low)) {
+                    return false;
+                }
+            }
+            long now = System.nanoTime();
+            Generation target = generations[current];
+            if (target == null) {
+                target = allocate(current);
+            }
+            if (now - rotateAt >= 0) {
+                target = rotate(now, expiredEvictions);
+            } else if (target.size >= generationCapacity) {
+                target = rotate(now, capacityEvictions);
+            }
+            target.insert(high, low);
+            entries++;
+            return true;
+        }
+
+        // Caller holds the lock.
+        void remove(long high, long low) {
+            for (Generation generation : generations) {
+                if (generation != null && generation.remove(high, low)) {
+                    entries--;
+                    return;
+                }
+            }
+        }
+
+        private Generation rotate(long now, Counter evictions) {
+            current = (current + 1) % generations.length;
+            rotateAt = now + spanNanos;
+            Generation next = generations[current];
+            if (next == null) {
+                return allocate(current);
+            }
+            evictions.increment(next.size);
+            entries -= next.size;
+            next.clear();
+            return next;
+        }
+
+        private Generation allocate(int index) {
+            Generation generation = new Generation(tableSlots);
+            generations[index] = generation;
+            allocatedBytes += (long) tableSlots * 2 * Long.BYTES;
+            return generation;
+        }
+    }
+
+    private static long keyHigh(String id) {
+        return isUuid(id) ? parseHex(id, 0, 18) : hash(id).asLong();
+    }
+
+    // A zero key marks an empty slot, so the nil UUID is stored with a low half of 1. Non-UUID ids are
+    // hashed once per half; they only come from older publishers.
+    private static long keyLow(String id) {
+        if (!isUuid(id)) {
+            return ByteBuffer.wrap(hash(id).asBytes(), Long.BYTES, Long.BYTES).getLong();
+        }
+        long low = parseHex(id, 19, 36);
+        return low == 0L && parseHex(id, 0, 18) == 0L ? 1L : low;
+    }
+
+    private static boolean isUuid(String id) {
+        if (id.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = id.charAt(i);
+            boolean dash = i == 8 || i == 13 || i == 18 || i == 23;
+            if (dash ? c != '-' : Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseHex(String id, int from, int to) {
+        long bits = 0;
+        for (int i = from; i < to; i++) {
+            char c = id.charAt(i);
+            if (c != '-') {
+                bits = (bits << 4) | Character.digit(c, 16);
+            }
+        }
+        return bits;
+    }
+
+    private static HashCode hash(String id) {
+        return Hashing.murmur3_128().hashString(id, StandardCharsets.UTF_8);
+    }
+
+    // Linear-probing table of (high, low) pairs with backward-shift deletion, so no tombstones build up.
+    private static final class Generation {
+        private final long[] keys;
+        private final int mask;
+        private int size;
+
+        Generation(int slots) {
+            this.keys = new long[slots * 2];
+            this.mask = slots - 1;
+        }
+
+        boolean contains(long high, long low) {
+            return size > 0 && find(high, low) >= 0;
+        }
+
+        void insert(long high, long low) {
+            int slot = home(high, low);
+            while (!isEmpty(slot)) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot * 2] = high;
+            keys[slot * 2 + 1] = low;
+            size++;
+        }
+
+        boolean remove(long high, long low) {
+            int free = size > 0 ? find(high, low) : -1;
+            if (free < 0) {
+                return false;
+            }
+            int slot = free;
+            while (true) {
+                slot = (slot + 1) & mask;
+                if (isEmpty(slot)) {
+                    break;
+                }
+                int home = home(keys[slot * 2], keys[slot * 2 + 1]);
+                if (((slot - home) & mask) >= ((slot - free) & mask)) {
+                    keys[free * 2] = keys[slot * 2];
+                    keys[free * 2 + 1] = keys[slot * 2 + 1];
+                    free = slot;
+                }
+            }
+            keys[free * 2] = 0L;
+            keys[free * 2 + 1] = 0L;
+            size--;
+            return true;
+        }
+
+        void clear() {
+            Arrays.fill(keys, 0L);
+            size = 0;
+        }
+
+        private int find(long high, long low) {
+            int slot = home(high, low);
+            while (!isEmpty(slot)) {
+                if (keys[slot * 2] == high && keys[slot * 2 + 1] == low) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private boolean isEmpty(int slot) {
+            return keys[slot * 2] == 0L && keys[slot * 2 + 1] == 0L;
+        }
+
+        private int home(long high, long low) {
+            long mixed = (high ^ Long.rotateLeft(low, 32)) * 0x9E3779B97F4A7C15L;
+            return (int) (mixed >>> 32) & mask;
+        }
+    }
+}
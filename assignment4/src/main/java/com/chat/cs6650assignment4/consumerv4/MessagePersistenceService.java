@@ -1,6 +1,7 @@
 package com.chat.cs6650assignment4.consumerv4;
 
 import com.chat.cs6650assignment4.model.QueueMessage;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
@@ -21,8 +22,10 @@ public class MessagePersistenceService {
 
     private static final Logger logger = LoggerFactory.getLogger(MessagePersistenceService.class);
 
-    private final BlockingQueue<QueueMessage> messageBuffer;
+    // Holds QueueMessages, or raw JSON bodies from the pass-through path that are decoded on the writer pool.
+    private final BlockingQueue<Object> messageBuffer;
     private final DynamoDBBatchWriter writer;
+    private final ObjectMapper objectMapper;
     private final Executor dbWriterPool;
 
     private final Thread coordinatorThread;
@@ -34,9 +37,10 @@ public class MessagePersistenceService {
     @Value("${chat.db.flush-interval-ms:100}")
     private long flushIntervalMs;
 
-    public MessagePersistenceService(DynamoDBBatchWriter writer,
+    public MessagePersistenceService(DynamoDBBatchWriter writer, ObjectMapper objectMapper,
                                      @Qualifier("dbWriterPool") Executor dbWriterPool) {
         this.writer = writer;
+        this.objectMapper = objectMapper;
         this.dbWriterPool = dbWriterPool;
         this.messageBuffer = new LinkedBlockingQueue<>(50000);
         this.coordinatorThread = new Thread(this::processBufferLoop, "Buffer-Coordinator");
@@ -51,20 +55,31 @@ public class MessagePersistenceService {
         messageBuffer.offer(message);
     }
 
+    public void persistRawAsync(byte[] body) {
+        messageBuffer.offer(body);
+    }
+
+    // Entries are QueueMessages or raw JSON bodies, as from the batch listener.
+    public void persistAllAsync(List<Object> entries) {
+        for (Object entry : entries) {
+            messageBuffer.offer(entry);
+        }
+    }
+
     private void processBufferLoop() {
-        List<QueueMessage> batch = new ArrayList<>(batchSize);
+        List<Object> batch = new ArrayList<>(batchSize);
         while (running || !messageBuffer.isEmpty()) {
             try {
-                QueueMessage msg = messageBuffer.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                Object msg = messageBuffer.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
                 if (msg != null) {
                     batch.add(msg);
                     messageBuffer.drainTo(batch, batchSize - 1);
                 }
 
                 if (!batch.isEmpty()) {
-                    List<QueueMessage> batchToProcess = new ArrayList<>(batch);
+                    List<Object> batchToProcess = new ArrayList<>(batch);
 
-                    dbWriterPool.execute(() -> writer.writeLogicalBatch(batchToProcess));
+                    dbWriterPool.execute(() -> writer.writeLogicalBatch(decode(batchToProcess)));
 
                     batch.clear();
                 }
@@ -77,6 +92,22 @@ public class MessagePersistenceService {
         }
     }
 
+    private List<QueueMessage> decode(List<Object> batch) {
+        List<QueueMessage> messages = new ArrayList<>(batch.size());
+        for (Object entry : batch) {
+            if (entry instanceof QueueMessage message) {
+                messages.add(message);
+                continue;
+            }
+            try {
+                messages.add(objectMapper.readValue((byte[]) entry, QueueMessage.class));
+            } catch (Exception e) {
+                logger.error("Dropping undecodable message body from persistence batch", e);
+            }
+        }
+        return messages;
+    }
+
     @PreDestroy
     public void stop() {
         running = false;
@@ -1,20 +1,31 @@
 package com.chat.cs6650assignment4.consumerv4;
 
+import com.chat.cs6650assignment4.config.RabbitMQConfig;
+import com.chat.cs6650assignment4.config.RoomSharding;
 import com.chat.cs6650assignment4.model.QueueMessage;
+import com.chat.cs6650assignment4.monitoring.PipelineTracer;
+import com.chat.cs6650assignment4.protocol.RawQueueMessage;
+import com.chat.cs6650assignment4.serverv4.BroadcastConsumerService;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.Channel;
 import io.micrometer.core.annotation.Timed;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareBatchMessageListener;
 import org.springframework.amqp.rabbit.listener.api.ChannelAwareMessageListener;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 
-import java.util.Collections;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 public class RabbitMQConsumerService implements ChannelAwareMessageListener {
@@ -23,20 +34,40 @@ public class RabbitMQConsumerService implements ChannelAwareMessageListener {
     private final Counter messagesProcessedCounter;
     private final Counter duplicateMessagesCounter;
     private final Counter failedMessagesCounter;
+    private final Counter batchesReceivedCounter;
+    private final DistributionSummary listenerBatchSize;
+    private final Timer listenerBatchTimer;
 
     private final ObjectMapper objectMapper;
-    private final Set<String> processedMessageIds = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final IdempotencyStore processedMessageIds;
+    private final DeliveryAckCoalescer acks;
+    private final RoomSharding roomSharding;
 
     private final BroadcastPublisherService broadcastPublisher;
     private final MessagePersistenceService persistenceService; // New dependency
+    private final BroadcastConsumerService localBroadcasts;
+    private final PipelineTracer pipelineTracer;
+
+    @Value("${chat.broadcast.passthrough.enabled:false}")
+    private boolean passThrough;
 
     public RabbitMQConsumerService(ObjectMapper objectMapper,
                                    MeterRegistry meterRegistry,
                                    BroadcastPublisherService broadcastPublisher,
-                                   MessagePersistenceService persistenceService) {
+                                   MessagePersistenceService persistenceService,
+                                   BroadcastConsumerService localBroadcasts,
+                                   PipelineTracer pipelineTracer,
+                                   IdempotencyStore processedMessageIds,
+                                   DeliveryAckCoalescer acks,
+                                   RoomSharding roomSharding) {
         this.objectMapper = objectMapper;
         this.broadcastPublisher = broadcastPublisher;
         this.persistenceService = persistenceService; // Set dependency
+        this.localBroadcasts = localBroadcasts;
+        this.pipelineTracer = pipelineTracer;
+        this.processedMessageIds = processedMessageIds;
+        this.acks = acks;
+        this.roomSharding = roomSharding;
 
         this.messagesProcessedCounter = Counter.builder("chat.messages.processed")
                 .description("Total number of messages processed by the 'work' consumer")
@@ -45,32 +76,358 @@ public class RabbitMQConsumerService implements ChannelAwareMessageListener {
                 .register(meterRegistry);
         this.failedMessagesCounter = Counter.builder("chat.messages.failed")
                 .register(meterRegistry);
+        this.batchesReceivedCounter = Counter.builder("chat.messages.batches")
+                .description("Batch envelopes received by the 'work' consumer")
+                .register(meterRegistry);
+        this.listenerBatchSize = DistributionSummary.builder("chat.messages.listener.batch.size")
+                .description("Deliveries per call in batch listener mode")
+                .publishPercentiles(0.5, 0.95)
+                .register(meterRegistry);
+        this.listenerBatchTimer = Timer.builder("chat.messages.batch.processing.time")
+                .register(meterRegistry);
+    }
+
+    // Listener for containers with consumer batching enabled (see DynamicConsumerConfig).
+    public ChannelAwareBatchMessageListener batchListener() {
+        return this::onMessageBatch;
     }
 
     @Override
     @Timed("chat.message.processing.time")
     public void onMessage(Message message, Channel channel) throws Exception {
         long tag = message.getMessageProperties().getDeliveryTag();
-        QueueMessage payload = objectMapper.readValue(message.getBody(), QueueMessage.class);
+        if (roomSharding.onFence(message)) {
+            acks.ack(channel, tag);
+            return;
+        }
+        if (message.getMessageProperties().getHeader(RabbitMQConfig.BATCH_SIZE_HEADER) != null) {
+            onBatch(message, channel, tag);
+            return;
+        }
+        if (passThrough && onRaw(message, channel, tag, false)) {
+            return;
+        }
+        QueueMessage payload = decode(message, channel, tag, QueueMessage.class);
+        if (payload == null) {
+            return;
+        }
+        pipelineTracer.dequeued(payload);
 
         if (!processedMessageIds.add(payload.getMessageId())) { // idempotency chk
             duplicateMessagesCounter.increment();
-            channel.basicAck(tag, false);
+            acks.ack(channel, tag);
             return;
         }
 
         try {
-            broadcastPublisher.publishBroadcast(payload);
+            CompletableFuture<Void> published = broadcastPublisher.publishBroadcast(payload);
+            deliverLocalWhenPublished(published, payload);
 
             persistenceService.persistAsync(payload);
 
             messagesProcessedCounter.increment();
-            channel.basicAck(tag, false);
+            settleWhenPublished(channel, tag, List.of(new Published(0, payload.getMessageId(), published)), false);
 
         } catch (Exception e) {
             logger.error("Error processing message {}. NACKing.", payload.getMessageId(), e);
+            processedMessageIds.remove(payload.getMessageId());
+            failedMessagesCounter.increment();
+            acks.nack(channel, tag, true);
+        }
+    }
+
+    // A batch envelope is acked or requeued as a whole. Messages already handled before a failure keep
+    // their idempotency entry, so the redelivery skips them.
+    private void onBatch(Message message, Channel channel, long tag) throws Exception {
+        if (passThrough && onRaw(message, channel, tag, true)) {
+            return;
+        }
+        QueueMessage[] payloads = decode(message, channel, tag, QueueMessage[].class);
+        if (payloads == null) {
+            return;
+        }
+        batchesReceivedCounter.increment();
+
+        List<Published> published = new ArrayList<>(payloads.length);
+        for (QueueMessage payload : payloads) {
+            if (!processedMessageIds.add(payload.getMessageId())) {
+                duplicateMessagesCounter.increment();
+                continue;
+            }
+            pipelineTracer.dequeued(payload);
+            try {
+                CompletableFuture<Void> future = broadcastPublisher.publishBroadcast(payload);
+                published.add(new Published(0, payload.getMessageId(), future));
+                deliverLocalWhenPublished(future, payload);
+                persistenceService.persistAsync(payload);
+                messagesProcessedCounter.increment();
+            } catch (Exception e) {
+                logger.error("Error processing message {} in batch. NACKing batch.", payload.getMessageId(), e);
+                processedMessageIds.remove(payload.getMessageId());
+                failedMessagesCounter.increment();
+                settleWhenPublished(channel, tag, published, true);
+                return;
+            }
+        }
+        settleWhenPublished(channel, tag, published, false);
+    }
+
+    // A body that cannot be decoded would fail again on every redelivery, so it is rejected without requeue.
+    // Every delivery is settled one way or the other, which keeps coalesced acks contiguous.
+    private <T> T decode(Message message, Channel channel, long tag, Class<T> type) throws IOException {
+        try {
+            return objectMapper.readValue(message.getBody(), type);
+        } catch (IOException e) {
+            logger.error("Rejecting undecodable work-queue message: {}", e.getMessage());
             failedMessagesCounter.increment();
-            channel.basicNack(tag, false, true);
+            acks.nack(channel, tag, false);
+            return null;
+        }
+    }
+
+    // Pass-through: only messageId and roomId are read; the body bytes go to the broadcast exchange as
+    // received and are decoded for persistence on the DB writer pool. Returns false, without acking, when
+    // the body cannot be peeked, or carries a stage trace to stamp, so the caller falls back to the decoding path.
+    private boolean onRaw(Message message, Channel channel, long tag, boolean batch) throws IOException {
+        List<RawQueueMessage> payloads;
+        if (batch) {
+            payloads = RawQueueMessage.peekBatch(message.getBody());
+        } else {
+            RawQueueMessage single = RawQueueMessage.peek(message.getBody());
+            payloads = single == null ? null : List.of(single);
+        }
+        if (payloads == null || payloads.stream().anyMatch(RawQueueMessage::isTraced)) {
+            return false;
+        }
+        if (batch) {
+            batchesReceivedCounter.increment();
+        }
+
+        List<Published> published = new ArrayList<>(payloads.size());
+        for (RawQueueMessage payload : payloads) {
+            if (!processedMessageIds.add(payload.getMessageId())) {
+                duplicateMessagesCounter.increment();
+                continue;
+            }
+            try {
+                CompletableFuture<Void> future = broadcastPublisher.publishRawBroadcast(payload);
+                published.add(new Published(0, payload.getMessageId(), future));
+                deliverLocalWhenPublished(future, payload);
+                persistenceService.persistRawAsync(payload.getBody());
+                messagesProcessedCounter.increment();
+            } catch (Exception e) {
+                logger.error("Error forwarding message {}. NACKing.", payload.getMessageId(), e);
+                processedMessageIds.remove(payload.getMessageId());
+                failedMessagesCounter.increment();
+                settleWhenPublished(channel, tag, published, true);
+                return true;
+            }
+        }
+        settleWhenPublished(channel, tag, published, false);
+        return true;
+    }
+
+    // Acks the delivery once every broadcast it produced has been published, or requeues it (failed, or a
+    // broadcast failed). The ids of failed broadcasts leave the idempotency store so the redelivery
+    // publishes them again. Without broadcast batching the futures are already complete and this settles
+    // on the listener thread, as before.
+    private void settleWhenPublished(Channel channel, long tag, List<Published> published, boolean failed) {
+        allPublished(published).whenComplete((ignored, ex) -> {
+            boolean requeue = forgetFailed(published) || failed;
+            try {
+                if (requeue) {
+                    acks.nack(channel, tag, true);
+                } else {
+                    acks.ack(channel, tag);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.error("Failed to settle delivery {}; the broker will redeliver it: {}", tag, e.getMessage());
+            }
+        });
+    }
+
+    private static CompletableFuture<Void> allPublished(List<Published> published) {
+        if (published.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[published.size()];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = published.get(i).future();
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    // Returns whether any broadcast failed, after removing the failed ones' ids from the idempotency store.
+    private boolean forgetFailed(List<Published> published) {
+        boolean anyFailed = false;
+        for (Published p : published) {
+            if (p.future().isCompletedExceptionally()) {
+                processedMessageIds.remove(p.messageId());
+                failedMessagesCounter.increment();
+                anyFailed = true;
+            }
+        }
+        return anyFailed;
+    }
+
+    // Batch listener mode: the deliveries come from one channel with consecutive tags. They are decoded and
+    // deduplicated in order and broadcast one by one; the new ones go to persistence in one hand-off, and
+    // the batch is settled as a range once its broadcasts are out. Batches can finish out of order, so the
+    // range is acked tag by tag, or coalesced only while it is contiguous with everything settled before
+    // (see DeliveryAckCoalescer). A failed broadcast requeues that delivery and every one after it;
+    // undecodable ones are rejected in place.
+    @Override
+    public void onMessageBatch(List<Message> messages, Channel channel) {
+        Timer.Sample sample = Timer.start();
+        listenerBatchSize.record(messages.size());
+        boolean[] rejected = new boolean[messages.size()];
+        int failedAt = messages.size();
+        List<Object> toPersist = new ArrayList<>(messages.size());
+        List<Published> published = new ArrayList<>(messages.size());
+
+        for (int i = 0; i < messages.size() && failedAt == messages.size(); i++) {
+            List<?> payloads = payloadsOf(messages.get(i));
+            if (payloads == null) {
+                failedMessagesCounter.increment();
+                rejected[i] = true;
+                continue;
+            }
+            for (Object payload : payloads) {
+                String messageId = payload instanceof RawQueueMessage raw
+                        ? raw.getMessageId() : ((QueueMessage) payload).getMessageId();
+                if (!processedMessageIds.add(messageId)) {
+                    duplicateMessagesCounter.increment();
+                    continue;
+                }
+                try {
+                    toPersist.add(broadcast(payload, i, messageId, published));
+                    messagesProcessedCounter.increment();
+                } catch (Exception e) {
+                    logger.error("Error processing message {} in listener batch. NACKing the rest.", messageId, e);
+                    processedMessageIds.remove(messageId);
+                    failedMessagesCounter.increment();
+                    failedAt = i;
+                    break;
+                }
+            }
+        }
+
+        persistenceService.persistAllAsync(toPersist);
+        int processedThrough = failedAt;
+        // Settled once the broadcasts are out; a failed one requeues its delivery and every one after it.
+        allPublished(published).whenComplete((ignored, ex) -> {
+            int requeueFrom = processedThrough;
+            if (forgetFailed(published)) {
+                for (Published p : published) {
+                    if (p.future().isCompletedExceptionally()) {
+                        requeueFrom = Math.min(requeueFrom, p.delivery());
+                    }
+                }
+            }
+            try {
+                settle(messages, channel, rejected, requeueFrom);
+            } catch (IOException | RuntimeException e) {
+                logger.error("Failed to settle a listener batch of {}; the broker will redeliver it", messages.size(), e);
+            }
+        });
+        sample.stop(listenerBatchTimer);
+    }
+
+    // Returns QueueMessages, RawQueueMessages in pass-through mode, or null if the body cannot be decoded.
+    // A resharding fence has no payloads; the deliveries before it in the batch have been broadcast.
+    private List<?> payloadsOf(Message message) {
+        if (roomSharding.onFence(message)) {
+            return List.of();
+        }
+        boolean envelope = message.getMessageProperties().getHeader(RabbitMQConfig.BATCH_SIZE_HEADER) != null;
+        if (envelope) {
+            batchesReceivedCounter.increment();
+        }
+        if (passThrough) {
+            List<RawQueueMessage> raw = envelope
+                    ? RawQueueMessage.peekBatch(message.getBody())
+                    : single(RawQueueMessage.peek(message.getBody()));
+            if (raw != null && raw.stream().noneMatch(RawQueueMessage::isTraced)) {
+                return raw;
+            }
         }
+        try {
+            List<QueueMessage> decoded = envelope
+                    ? Arrays.asList(objectMapper.readValue(message.getBody(), QueueMessage[].class))
+                    : List.of(objectMapper.readValue(message.getBody(), QueueMessage.class));
+            decoded.forEach(pipelineTracer::dequeued);
+            return decoded;
+        } catch (IOException e) {
+            logger.error("Rejecting undecodable work-queue message: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static List<RawQueueMessage> single(RawQueueMessage message) {
+        return message == null ? null : List.of(message);
+    }
+
+    // Publishes one payload, noting its publish under the delivery index, and returns what persistence
+    // should receive for it.
+    private Object broadcast(Object payload, int delivery, String messageId, List<Published> published) {
+        CompletableFuture<Void> future = payload instanceof RawQueueMessage raw
+                ? broadcastPublisher.publishRawBroadcast(raw)
+                : broadcastPublisher.publishBroadcast((QueueMessage) payload);
+        published.add(new Published(delivery, messageId, future));
+        deliverLocalWhenPublished(future, payload);
+        return payload instanceof RawQueueMessage raw ? raw.getBody() : payload;
+    }
+
+    // Local sessions get a payload once its broker publish has succeeded: at once without broadcast batching,
+    // otherwise on the publish thread, in the room's batch order. A failed publish requeues the delivery and
+    // its id leaves the idempotency store, so the redelivery is the only one delivered locally; a publish
+    // that went out keeps its id, and the redelivery skips it.
+    private void deliverLocalWhenPublished(CompletableFuture<Void> published, Object payload) {
+        if (!localBroadcasts.isLocalDeliveryEnabled()) {
+            return;
+        }
+        published.thenRun(() -> {
+            try {
+                if (payload instanceof RawQueueMessage raw) {
+                    localBroadcasts.deliverLocal(raw);
+                } else {
+                    localBroadcasts.deliverLocal((QueueMessage) payload);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted delivering a broadcast locally");
+            }
+        });
+    }
+
+    // Acks runs of handled deliveries with one range each, rejects undecodable ones, and requeues from
+    // failedAt to the end of the batch.
+    private void settle(List<Message> messages, Channel channel, boolean[] rejected, int failedAt) throws IOException {
+        int runStart = 0;
+        for (int i = 0; i <= failedAt && i < messages.size(); i++) {
+            if (i < failedAt && !rejected[i]) {
+                continue;
+            }
+            if (runStart < i) {
+                acks.ackRange(channel, tagOf(messages.get(runStart)), tagOf(messages.get(i - 1)));
+            }
+            if (i < failedAt) {
+                acks.nack(channel, tagOf(messages.get(i)), false);
+            } else {
+                acks.nackRange(channel, tagOf(messages.get(i)), tagOf(messages.get(messages.size() - 1)), true);
+            }
+            runStart = i + 1;
+        }
+        if (failedAt == messages.size() && runStart < messages.size()) {
+            acks.ackRange(channel, tagOf(messages.get(runStart)), tagOf(messages.get(messages.size() - 1)));
+        }
+    }
+
+    private static long tagOf(Message message) {
+        return message.getMessageProperties().getDeliveryTag();
+    }
+
+    // A broadcast handed to the publisher: the delivery it came from (its index in a listener batch) and its id.
+    private record Published(int delivery, String messageId, CompletableFuture<Void> future) {
     }
-}
\ No newline at end of file
+}
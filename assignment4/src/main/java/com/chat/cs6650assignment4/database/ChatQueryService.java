@@ -1,5 +1,6 @@
 package com.chat.cs6650assignment4.database;
 
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Service;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
@@ -8,6 +9,7 @@ import software.amazon.awssdk.services.dynamodb.model.*;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 @Service
@@ -19,8 +21,11 @@ public class ChatQueryService {
     private static final String GSI_TIME = "TimeIndex";
     private static final int NUM_SHARDS = 5;
 
-    public ChatQueryService(DynamoDbClient dynamoDbClient) {
+    private final Executor queryPool;
+
+    public ChatQueryService(DynamoDbClient dynamoDbClient, @Qualifier("queryPool") Executor queryPool) {
         this.dynamoDbClient = dynamoDbClient;
+        this.queryPool = queryPool;
     }
 
     @Cacheable(value = "roomHistory", key = "{#roomId, #start, #end}")
@@ -114,7 +119,7 @@ public class ChatQueryService {
                     .limit(50)
                     .build();
             return dynamoDbClient.query(request).items();
-        });
+        }, queryPool);
     }
 
     private Map<String, Object> calculateStats(List<Map<String, AttributeValue>> items, String start, String end) {
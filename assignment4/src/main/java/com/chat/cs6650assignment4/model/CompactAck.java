@@ -0,0 +1,72 @@
+package com.chat.cs6650assignment4.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/*
+ * Short-form ack for sessions that opted into ?ack=compact or ?ack=cumulative. Field names are kept to
+ * one letter because this object is sent once per inbound frame:
+ *   id  original client messageId
+ *   s   status code (BinaryFrameCodec.STATUS_*)
+ *   q   per-connection frame sequence (cumulative mode); with no id, "every frame up to q is resolved"
+ *   r   retry-after in ms, THROTTLED only
+ *   d   error detail, non-OK only
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CompactAck {
+    private String id;
+    private Integer s;
+    private Long q;
+    private Long r;
+    private String d;
+
+    public CompactAck() {
+    }
+
+    public CompactAck(String id, Integer s, Long q, Long r, String d) {
+        this.id = id;
+        this.s = s;
+        this.q = q;
+        this.r = r;
+        this.d = d;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Integer getS() {
+        return s;
+    }
+
+    public void setS(Integer s) {
+        this.s = s;
+    }
+
+    public Long getQ() {
+        return q;
+    }
+
+    public void setQ(Long q) {
+        this.q = q;
+    }
+
+    public Long getR() {
+        return r;
+    }
+
+    public void setR(Long r) {
+        this.r = r;
+    }
+
+    public String getD() {
+        return d;
+    }
+
+    public void setD(String d) {
+        this.d = d;
+    }
+}
@@ -1,5 +1,7 @@
 package com.chat.cs6650assignment4.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 public class QueueMessage {
     private String messageId;
     private String roomId;
@@ -11,6 +13,7 @@ public class QueueMessage {
     private String serverId;
     private String clientIp;
     private String clientMessageId;
+    private StageTrace trace;
 
     public QueueMessage() {
     }
@@ -101,4 +104,13 @@ public class QueueMessage {
 
     public String getClientMessageId() { return clientMessageId; }
     public void setClientMessageId(String clientMessageId) { this.clientMessageId = clientMessageId; }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public StageTrace getTrace() {
+        return trace;
+    }
+
+    public void setTrace(StageTrace trace) {
+        this.trace = trace;
+    }
 }
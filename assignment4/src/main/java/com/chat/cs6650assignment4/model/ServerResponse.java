@@ -1,10 +1,13 @@
 package com.chat.cs6650assignment4.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 public class ServerResponse {
     private String status;
     private String serverTimestamp;
     private Object message;
     private String originalMessageId;
+    private Long retryAfterMs;
 
 
     public ServerResponse(String status, String serverTimestamp) {
@@ -49,4 +52,13 @@ public class ServerResponse {
     public void setOriginalMessageId(String originalMessageId) {
         this.originalMessageId = originalMessageId;
     }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+
+    public void setRetryAfterMs(Long retryAfterMs) {
+        this.retryAfterMs = retryAfterMs;
+    }
 }
@@ -0,0 +1,62 @@
+package com.chat.cs6650assignment4.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/*
+ * Pipeline stage stamps for a sampled message, in epoch microseconds; 0 means the stage has not been
+ * reached. Only sampled messages carry one, so unsampled traffic pays nothing on the wire.
+ */
+@JsonInclude(JsonInclude.Include.NON_DEFAULT)
+public class StageTrace {
+    @JsonProperty("gr")
+    private long gatewayReceived;
+    @JsonProperty("pub")
+    private long published;
+    @JsonProperty("deq")
+    private long consumerDequeued;
+    @JsonProperty("bpub")
+    private long broadcastPublished;
+    @JsonProperty("brx")
+    private long broadcastReceived;
+
+    public long getGatewayReceived() {
+        return gatewayReceived;
+    }
+
+    public void setGatewayReceived(long gatewayReceived) {
+        this.gatewayReceived = gatewayReceived;
+    }
+
+    public long getPublished() {
+        return published;
+    }
+
+    public void setPublished(long published) {
+        this.published = published;
+    }
+
+    public long getConsumerDequeued() {
+        return consumerDequeued;
+    }
+
+    public void setConsumerDequeued(long consumerDequeued) {
+        this.consumerDequeued = consumerDequeued;
+    }
+
+    public long getBroadcastPublished() {
+        return broadcastPublished;
+    }
+
+    public void setBroadcastPublished(long broadcastPublished) {
+        this.broadcastPublished = broadcastPublished;
+    }
+
+    public long getBroadcastReceived() {
+        return broadcastReceived;
+    }
+
+    public void setBroadcastReceived(long broadcastReceived) {
+        this.broadcastReceived = broadcastReceived;
+    }
+}
@@ -0,0 +1,219 @@
+package com.chat.cs6650assignment4.monitoring;
+
+import com.chat.cs6650assignment4.model.QueueMessage;
+import com.chat.cs6650assignment4.model.StageTrace;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Samples a fraction of chat messages at the gateway and follows them through the pipeline. Each hop
+ * stamps its time on the message's StageTrace, and the hop that ends a stage records it into
+ * chat.pipeline.stage{stage,room}. The room tag is "all" unless per-room tagging is on, and even then only
+ * the first maxRooms rooms seen get their own timers; the rest share "other". Stamps are wall-clock micros
+ * because the hops run on different nodes, so cross-node stages are only as accurate as the hosts' clock
+ * sync.
+ *
+ * Socket writes complete on the writer pool with no reference to the QueueMessage, so traced frames
+ * are registered by identity in a weak-keyed cache and matched when the dispatcher reports a write.
+ */
+@Component
+public class PipelineTracer {
+    public static final String STAGE_CLIENT = "client_to_gateway";
+    public static final String STAGE_INGRESS = "gateway_publish";
+    public static final String STAGE_QUEUE = "queue";
+    public static final String STAGE_CONSUME = "consume";
+    public static final String STAGE_BROADCAST = "broadcast_queue";
+    public static final String STAGE_SOCKET_WRITE = "socket_write";
+    public static final String STAGE_PERSIST = "persist";
+    public static final String STAGE_END_TO_END = "end_to_end";
+
+    private static final String ALL_ROOMS = "all";
+    private static final String OTHER_ROOMS = "other";
+
+    private final MeterRegistry meterRegistry;
+    private final double sampleRate;
+    private final boolean perRoom;
+    private final int maxRooms;
+    private final Set<String> taggedRooms = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Cache<Object, TracedFrame> tracedFrames = CacheBuilder.newBuilder()
+            .weakKeys()
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build();
+
+    private record TracedFrame(String roomId, StageTrace trace) {
+    }
+
+    public PipelineTracer(MeterRegistry meterRegistry,
+                          @Value("${chat.trace.sample-rate:0.0}") double sampleRate,
+                          @Value("${chat.trace.per-room:false}") boolean perRoom,
+                          @Value("${chat.trace.per-room-max-rooms:20}") int maxRooms) {
+        this.meterRegistry = meterRegistry;
+        this.sampleRate = Math.max(0.0, Math.min(1.0, sampleRate));
+        this.perRoom = perRoom;
+        this.maxRooms = Math.max(0, maxRooms);
+    }
+
+    public boolean isEnabled() {
+        return sampleRate > 0.0;
+    }
+
+    // Decides sampling at gateway receive; returns the receive time, or 0 when the message is not sampled.
+    public long sample() {
+        if (sampleRate <= 0.0 || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return 0L;
+        }
+        return nowMicros();
+    }
+
+    public void start(QueueMessage message, long receivedMicros) {
+        if (receivedMicros == 0L) {
+            return;
+        }
+        StageTrace trace = new StageTrace();
+        trace.setGatewayReceived(receivedMicros);
+        message.setTrace(trace);
+        try {
+            long sentMicros = toMicros(Instant.parse(message.getTimestamp()));
+            record(STAGE_CLIENT, message.getRoomId(), sentMicros, receivedMicros);
+        } catch (RuntimeException e) {
+            // Client timestamps are not validated on this path; skip the stage rather than the trace.
+        }
+    }
+
+    public void published(QueueMessage message) {
+        StageTrace trace = message.getTrace();
+        if (trace != null && trace.getPublished() == 0L) {
+            trace.setPublished(nowMicros());
+            record(STAGE_INGRESS, message.getRoomId(), trace.getGatewayReceived(), trace.getPublished());
+        }
+    }
+
+    public void dequeued(QueueMessage message) {
+        StageTrace trace = message.getTrace();
+        if (trace != null) {
+            trace.setConsumerDequeued(nowMicros());
+            record(STAGE_QUEUE, message.getRoomId(), trace.getPublished(), trace.getConsumerDequeued());
+        }
+    }
+
+    public void broadcastPublished(QueueMessage message) {
+        StageTrace trace = message.getTrace();
+        if (trace != null) {
+            trace.setBroadcastPublished(nowMicros());
+            record(STAGE_CONSUME, message.getRoomId(), trace.getConsumerDequeued(), trace.getBroadcastPublished());
+        }
+    }
+
+    public void broadcastReceived(QueueMessage message) {
+        StageTrace trace = message.getTrace();
+        if (trace != null) {
+            trace.setBroadcastReceived(nowMicros());
+            record(STAGE_BROADCAST, message.getRoomId(), trace.getBroadcastPublished(), trace.getBroadcastReceived());
+        }
+    }
+
+    public void persisted(QueueMessage message) {
+        StageTrace trace = message.getTrace();
+        if (trace != null) {
+            record(STAGE_PERSIST, message.getRoomId(), trace.getConsumerDequeued(), nowMicros());
+        }
+    }
+
+    // Registers a shared outbound frame so its socket write completions are recorded for the given message.
+    public void registerFrame(TextMessage frame, QueueMessage message) {
+        register(frame, message);
+    }
+
+    public void registerFrame(byte[] frame, QueueMessage message) {
+        register(frame, message);
+    }
+
+    private void register(Object key, QueueMessage message) {
+        if (message != null && message.getTrace() != null) {
+            tracedFrames.put(key, new TracedFrame(message.getRoomId(), message.getTrace()));
+        }
+    }
+
+    public void frameWritten(WebSocketMessage<?> frame) {
+        if (tracedFrames.size() == 0) {
+            return;
+        }
+        TracedFrame traced = tracedFrames.getIfPresent(keyOf(frame));
+        if (traced != null) {
+            long now = nowMicros();
+            record(STAGE_SOCKET_WRITE, traced.roomId(), traced.trace().getBroadcastReceived(), now);
+            record(STAGE_END_TO_END, traced.roomId(), traced.trace().getGatewayReceived(), now);
+        }
+    }
+
+    // Binary frames are wrapped per session around a shared array, so they are keyed by that array.
+    private static Object keyOf(WebSocketMessage<?> frame) {
+        if (frame instanceof BinaryMessage binary) {
+            ByteBuffer payload = binary.getPayload();
+            if (payload.hasArray()) {
+                return payload.array();
+            }
+        }
+        return frame;
+    }
+
+    private void record(String stage, String roomId, long fromMicros, long toMicros) {
+        if (fromMicros == 0L || toMicros < fromMicros) {
+            return;
+        }
+        String room = roomTag(roomId);
+        timers.computeIfAbsent(stage + '|' + room, key -> Timer.builder("chat.pipeline.stage")
+                        .description("Per-stage latency of sampled chat messages")
+                        .tag("stage", stage)
+                        .tag("room", room)
+                        .publishPercentiles(0.5, 0.95, 0.99)
+                        .publishPercentileHistogram()
+                        .maximumExpectedValue(Duration.ofSeconds(30))
+                        .register(meterRegistry))
+                .record(toMicros - fromMicros, TimeUnit.MICROSECONDS);
+    }
+
+    private String roomTag(String roomId) {
+        if (!perRoom || roomId == null) {
+            return ALL_ROOMS;
+        }
+        if (taggedRooms.contains(roomId)) {
+            return roomId;
+        }
+        if (taggedRooms.size() >= maxRooms) {
+            return OTHER_ROOMS;
+        }
+        synchronized (taggedRooms) {
+            if (taggedRooms.contains(roomId) || taggedRooms.size() < maxRooms) {
+                taggedRooms.add(roomId);
+                return roomId;
+            }
+        }
+        return OTHER_ROOMS;
+    }
+
+    public static long nowMicros() {
+        return toMicros(Instant.now());
+    }
+
+    private static long toMicros(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000L + instant.getNano() / 1_000L;
+    }
+}
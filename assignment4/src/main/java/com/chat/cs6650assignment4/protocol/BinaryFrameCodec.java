@@ -0,0 +1,364 @@
+package com.chat.cs6650assignment4.protocol;
+
+import com.chat.cs6650assignment4.model.ChatMessage;
+import com.chat.cs6650assignment4.model.CompactAck;
+import com.chat.cs6650assignment4.model.QueueMessage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * Wire format of the "chat.bin.v1" subprotocol. Every frame starts with a one-byte frame type,
+ * followed by the frame's fields in a fixed order. Strings are a varint of (UTF-8 length + 1)
+ * followed by the bytes, with 0 meaning null. Enums are one byte of (ordinal + 1), 0 meaning null.
+ *
+ *   CHAT      messageId userId username message timestamp messageType
+ *   ACK       status originalMessageId serverTimestamp detail [retryAfterMs varint, THROTTLED only]
+ *   BROADCAST messageId roomId userId username message timestamp messageType serverId clientIp clientMessageId
+ *   BATCH     count, then count x (varint length, frame bytes)
+ *   ACK_COMPACT    status originalMessageId seq(varlong, 0 outside cumulative mode) [retryAfterMs varint, THROTTLED only]
+ *   ACK_CUMULATIVE seq(varlong): every frame up to and including seq has been resolved
+ *
+ * Under "chat.bin.deflate.v1" the server may also send DEFLATED frames: the type byte followed by one
+ * of the frames above compressed as a raw deflate stream with no shared context between frames.
+ */
+public final class BinaryFrameCodec {
+
+    public static final String SUBPROTOCOL = "chat.bin.v1";
+    public static final String DEFLATE_SUBPROTOCOL = "chat.bin.deflate.v1";
+
+    public static final byte FRAME_CHAT = 1;
+    public static final byte FRAME_ACK = 2;
+    public static final byte FRAME_BROADCAST = 3;
+    public static final byte FRAME_BATCH = 4;
+    public static final byte FRAME_ACK_COMPACT = 5;
+    public static final byte FRAME_ACK_CUMULATIVE = 6;
+    public static final byte FRAME_DEFLATED = 16;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    public static final byte STATUS_NACK = 2;
+    public static final byte STATUS_THROTTLED = 3;
+
+    private static final ChatMessage.MessageType[] MESSAGE_TYPES = ChatMessage.MessageType.values();
+    private static final int MAX_INFLATED_BYTES = 64 * 1024;
+
+    private BinaryFrameCodec() {
+    }
+
+    public static byte frameType(ByteBuffer frame) {
+        return frame.get(frame.position());
+    }
+
+    public static byte[] encodeChatMessage(ChatMessage message) {
+        FrameWriter writer = new FrameWriter(128);
+        writer.writeByte(FRAME_CHAT);
+        writer.writeString(message.getMessageId());
+        writer.writeString(message.getUserId());
+        writer.writeString(message.getUsername());
+        writer.writeString(message.getMessage());
+        writer.writeString(message.getTimestamp());
+        writer.writeEnum(message.getMessageType());
+        return writer.toByteArray();
+    }
+
+    // Decodes a CHAT frame into the client-supplied fields of a QueueMessage.
+    public static QueueMessage decodeChatMessage(ByteBuffer frame) {
+        ByteBuffer buffer = frame.duplicate();
+        expectType(buffer, FRAME_CHAT);
+        QueueMessage message = new QueueMessage();
+        message.setClientMessageId(readString(buffer));
+        message.setUserId(readString(buffer));
+        message.setUsername(readString(buffer));
+        message.setMessage(readString(buffer));
+        message.setTimestamp(readString(buffer));
+        message.setMessageType(readMessageType(buffer));
+        return message;
+    }
+
+    public static byte[] encodeAck(byte status, String originalMessageId, String serverTimestamp, String detail) {
+        return encodeAck(status, originalMessageId, serverTimestamp, detail, -1);
+    }
+
+    public static byte[] encodeAck(byte status, String originalMessageId, String serverTimestamp, String detail,
+                                   long retryAfterMs) {
+        FrameWriter writer = new FrameWriter(64);
+        writer.writeByte(FRAME_ACK);
+        writer.writeByte(status);
+        writer.writeString(originalMessageId);
+        writer.writeString(serverTimestamp);
+        writer.writeString(detail);
+        if (status == STATUS_THROTTLED) {
+            writer.writeVarInt((int) Math.min(Integer.MAX_VALUE, Math.max(0, retryAfterMs)));
+        }
+        return writer.toByteArray();
+    }
+
+    public static byte[] encodeCompactAck(byte status, String originalMessageId, long seq, long retryAfterMs) {
+        FrameWriter writer = new FrameWriter(48);
+        writer.writeByte(FRAME_ACK_COMPACT);
+        writer.writeByte(status);
+        writer.writeString(originalMessageId);
+        writer.writeVarLong(seq);
+        if (status == STATUS_THROTTLED) {
+            writer.writeVarInt((int) Math.min(Integer.MAX_VALUE, Math.max(0, retryAfterMs)));
+        }
+        return writer.toByteArray();
+    }
+
+    public static CompactAck decodeCompactAck(ByteBuffer frame) {
+        ByteBuffer buffer = frame.duplicate();
+        expectType(buffer, FRAME_ACK_COMPACT);
+        CompactAck ack = new CompactAck();
+        ack.setS((int) buffer.get());
+        ack.setId(readString(buffer));
+        long seq = readVarLong(buffer);
+        ack.setQ(seq == 0 ? null : seq);
+        if (ack.getS() == STATUS_THROTTLED) {
+            ack.setR((long) readVarInt(buffer));
+        }
+        return ack;
+    }
+
+    public static byte[] encodeCumulativeAck(long seq) {
+        FrameWriter writer = new FrameWriter(10);
+        writer.writeByte(FRAME_ACK_CUMULATIVE);
+        writer.writeVarLong(seq);
+        return writer.toByteArray();
+    }
+
+    public static long decodeCumulativeAck(ByteBuffer frame) {
+        ByteBuffer buffer = frame.duplicate();
+        expectType(buffer, FRAME_ACK_CUMULATIVE);
+        return readVarLong(buffer);
+    }
+
+    public static byte[] encodeBroadcast(QueueMessage message) {
+        FrameWriter writer = new FrameWriter(192);
+        writer.writeByte(FRAME_BROADCAST);
+        writer.writeString(message.getMessageId());
+        writer.writeString(message.getRoomId());
+        writer.writeString(message.getUserId());
+        writer.writeString(message.getUsername());
+        writer.writeString(message.getMessage());
+        writer.writeString(message.getTimestamp());
+        writer.writeEnum(message.getMessageType());
+        writer.writeString(message.getServerId());
+        writer.writeString(message.getClientIp());
+        writer.writeString(message.getClientMessageId());
+        return writer.toByteArray();
+    }
+
+    public static QueueMessage decodeBroadcast(ByteBuffer frame) {
+        ByteBuffer buffer = frame.duplicate();
+        expectType(buffer, FRAME_BROADCAST);
+        QueueMessage message = new QueueMessage();
+        message.setMessageId(readString(buffer));
+        message.setRoomId(readString(buffer));
+        message.setUserId(readString(buffer));
+        message.setUsername(readString(buffer));
+        message.setMessage(readString(buffer));
+        message.setTimestamp(readString(buffer));
+        message.setMessageType(readMessageType(buffer));
+        message.setServerId(readString(buffer));
+        message.setClientIp(readString(buffer));
+        message.setClientMessageId(readString(buffer));
+        return message;
+    }
+
+    public static byte[] encodeBatch(List<byte[]> frames) {
+        int size = 6;
+        for (byte[] frame : frames) {
+            size += frame.length + 5;
+        }
+        FrameWriter writer = new FrameWriter(size);
+        writer.writeByte(FRAME_BATCH);
+        writer.writeVarInt(frames.size());
+        for (byte[] frame : frames) {
+            writer.writeVarInt(frame.length);
+            writer.writeBytes(frame);
+        }
+        return writer.toByteArray();
+    }
+
+    // Splits a BATCH frame into views over its inner frames.
+    public static List<ByteBuffer> splitBatch(ByteBuffer frame) {
+        ByteBuffer buffer = frame.duplicate();
+        expectType(buffer, FRAME_BATCH);
+        int count = readVarInt(buffer);
+        List<ByteBuffer> frames = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            int length = readVarInt(buffer);
+            if (length > buffer.remaining()) {
+                throw new IllegalArgumentException("Batched frame length " + length + " exceeds frame size");
+            }
+            ByteBuffer inner = buffer.slice(buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            frames.add(inner);
+        }
+        return frames;
+    }
+
+    // Returns the inner frame of a DEFLATED frame, or the frame itself if it is not compressed.
+    public static ByteBuffer inflate(ByteBuffer frame) {
+        if (frameType(frame) != FRAME_DEFLATED) {
+            return frame;
+        }
+        ByteBuffer input = frame.duplicate();
+        input.get();
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            byte[] out = new byte[Math.min(MAX_INFLATED_BYTES, Math.max(256, input.remaining() * 4))];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == out.length) {
+                    if (out.length == MAX_INFLATED_BYTES) {
+                        throw new IllegalArgumentException("Inflated frame exceeds " + MAX_INFLATED_BYTES + " bytes");
+                    }
+                    out = Arrays.copyOf(out, Math.min(MAX_INFLATED_BYTES, out.length * 2));
+                }
+                int n = inflater.inflate(out, length, out.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated deflated frame");
+                }
+                length += n;
+            }
+            return ByteBuffer.wrap(out, 0, length);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Malformed deflated frame", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void expectType(ByteBuffer buffer, byte type) {
+        byte actual = buffer.get();
+        if (actual != type) {
+            throw new IllegalArgumentException("Unexpected frame type " + actual + ", expected " + type);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int encodedLength = readVarInt(buffer);
+        if (encodedLength == 0) {
+            return null;
+        }
+        int length = encodedLength - 1;
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("String length " + length + " exceeds frame size");
+        }
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    private static ChatMessage.MessageType readMessageType(ByteBuffer buffer) {
+        int ordinal = buffer.get() - 1;
+        if (ordinal < 0) {
+            return null;
+        }
+        if (ordinal >= MESSAGE_TYPES.length) {
+            throw new IllegalArgumentException("Unknown messageType " + ordinal);
+        }
+        return MESSAGE_TYPES[ordinal];
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static final class FrameWriter {
+        private byte[] buf;
+        private int pos;
+
+        FrameWriter(int initialCapacity) {
+            this.buf = new byte[initialCapacity];
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length + 1);
+            writeBytes(bytes);
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void writeEnum(Enum<?> value) {
+            writeByte(value == null ? 0 : value.ordinal() + 1);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void ensure(int extra) {
+            if (pos + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.chat.cs6650assignment4.protocol;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * A QueueMessage kept as its JSON bytes, with only the fields routing needs pulled out. The peek walks
+ * the tokens once and skips every other value without materializing it, so forwarding a message costs
+ * a scan instead of a full decode and re-encode. Batch envelopes (a JSON array) are split into the byte
+ * ranges of their elements. Sampled messages carry a stage trace that later hops stamp, so the peek
+ * reports it and callers route those few through the decoding path.
+ */
+public final class RawQueueMessage {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    // For virtual threads, where a per-thread buffer cache would be filled once and dropped with the task.
+    private static final JsonFactory UNCACHED_JSON_FACTORY = JsonFactory.builder()
+            .disable(JsonFactory.Feature.USE_THREAD_LOCAL_FOR_BUFFER_RECYCLING)
+            .build();
+
+    private final String messageId;
+    private final String roomId;
+    private final byte[] body;
+    private final boolean traced;
+
+    private record Ids(String messageId, String roomId, boolean traced) {
+    }
+
+    private RawQueueMessage(Ids ids, byte[] body) {
+        this.messageId = ids.messageId();
+        this.roomId = ids.roomId();
+        this.traced = ids.traced();
+        this.body = body;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public boolean isTraced() {
+        return traced;
+    }
+
+    // Returns null unless the body is a JSON object carrying string messageId and roomId fields.
+    public static RawQueueMessage peek(byte[] body) {
+        try (JsonParser parser = jsonFactory().createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            Ids ids = readIds(parser);
+            return ids == null ? null : new RawQueueMessage(ids, body);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Returns null if the envelope is not an array of peekable objects.
+    public static List<RawQueueMessage> peekBatch(byte[] body) {
+        try (JsonParser parser = jsonFactory().createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                return null;
+            }
+            List<RawQueueMessage> messages = new ArrayList<>();
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                int start = (int) parser.currentTokenLocation().getByteOffset();
+                Ids ids = readIds(parser);
+                if (ids == null) {
+                    return null;
+                }
+                int end = (int) parser.currentLocation().getByteOffset();
+                messages.add(new RawQueueMessage(ids, Arrays.copyOfRange(body, start, end)));
+            }
+            return parser.currentToken() == JsonToken.END_ARRAY ? messages : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Reads the object the parser is positioned on through its END_OBJECT.
+    private static Ids readIds(JsonParser parser) throws IOException {
+        String messageId = null;
+        String roomId = null;
+        boolean traced = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_STRING && "messageId".equals(field)) {
+                messageId = parser.getText();
+            } else if (value == JsonToken.VALUE_STRING && "roomId".equals(field)) {
+                roomId = parser.getText();
+            } else if (value == JsonToken.START_OBJECT && "trace".equals(field)) {
+                traced = true;
+                parser.skipChildren();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (parser.currentToken() != JsonToken.END_OBJECT || messageId == null || roomId == null) {
+            return null;
+        }
+        return new Ids(messageId, roomId, traced);
+    }
+
+    private static JsonFactory jsonFactory() {
+        return Thread.currentThread().isVirtual() ? UNCACHED_JSON_FACTORY : JSON_FACTORY;
+    }
+}
@@ -0,0 +1,21 @@
+package com.chat.cs6650assignment4.serverv4;
+
+// How a session wants its publish acks: the original ServerResponse, one CompactAck per frame, or
+// one cumulative ack per window with individual acks only for frames that were not accepted.
+public enum AckMode {
+    FULL,
+    COMPACT,
+    CUMULATIVE;
+
+    static AckMode parse(String value, AckMode fallback) {
+        if (value == null || value.isBlank()) {
+            return fallback;
+        }
+        for (AckMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(value.trim())) {
+                return mode;
+            }
+        }
+        return fallback;
+    }
+}
@@ -0,0 +1,210 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import com.chat.cs6650assignment4.model.CompactAck;
+import com.chat.cs6650assignment4.model.ServerResponse;
+import com.chat.cs6650assignment4.protocol.BinaryFrameCodec;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Map;
+
+/*
+ * Builds and sends publish acks in the session's ack mode. FULL is the original ServerResponse (or
+ * binary ACK); COMPACT drops the timestamp and sends only the client id and a status code; CUMULATIVE
+ * acks accepted frames by sequence through the session's CumulativeAckWindow and sends individual
+ * compact acks only for rejected ones.
+ */
+@Service
+public class AckService {
+    private static final Logger logger = LoggerFactory.getLogger(AckService.class);
+
+    public static final String MODE_PARAMETER = "ack";
+    public static final String STATUS_OK = "OK";
+    public static final String STATUS_ERROR = "ERROR";
+    public static final String STATUS_NACK = "NACK";
+    public static final String STATUS_THROTTLED = "THROTTLED";
+
+    private final ObjectMapper objectMapper;
+    private final ObjectWriter compactWriter;
+    private final FrameCompressionService compressionService;
+    private final OutboundMessageDispatcher outboundDispatcher;
+    private final TaskScheduler scheduler;
+    private final AckMode defaultMode;
+
+    private final Map<AckMode, Counter> ackFrames = new EnumMap<>(AckMode.class);
+    private final Map<AckMode, Counter> ackBytes = new EnumMap<>(AckMode.class);
+    private final DistributionSummary cumulativeSpan;
+    private final Counter countFlushes;
+    private final Counter delayFlushes;
+
+    @Value("${chat.acks.cumulative.every-messages:32}")
+    private int cumulativeEvery = 32;
+
+    @Value("${chat.acks.cumulative.max-delay-ms:20}")
+    private long cumulativeMaxDelayMs = 20;
+
+    public AckService(ObjectMapper objectMapper, FrameCompressionService compressionService,
+                      OutboundMessageDispatcher outboundDispatcher, @Qualifier("ackScheduler") TaskScheduler scheduler,
+                      @Value("${chat.acks.default-mode:full}") String defaultMode, MeterRegistry meterRegistry) {
+        this.objectMapper = objectMapper;
+        this.compactWriter = objectMapper.writerFor(CompactAck.class);
+        this.compressionService = compressionService;
+        this.outboundDispatcher = outboundDispatcher;
+        this.scheduler = scheduler;
+        this.defaultMode = AckMode.parse(defaultMode, AckMode.FULL);
+        for (AckMode mode : AckMode.values()) {
+            String tag = mode.name().toLowerCase();
+            ackFrames.put(mode, Counter.builder("chat.acks.frames")
+                    .description("Ack frames sent to clients")
+                    .tag("mode", tag)
+                    .register(meterRegistry));
+            ackBytes.put(mode, Counter.builder("chat.acks.bytes")
+                    .description("Ack payload bytes sent to clients")
+                    .tag("mode", tag)
+                    .register(meterRegistry));
+        }
+        this.cumulativeSpan = DistributionSummary.builder("chat.acks.cumulative.span")
+                .description("Frames covered by one cumulative ack")
+                .publishPercentiles(0.5, 0.95)
+                .register(meterRegistry);
+        this.countFlushes = Counter.builder("chat.acks.cumulative.flushes")
+                .tag("reason", "count")
+                .register(meterRegistry);
+        this.delayFlushes = Counter.builder("chat.acks.cumulative.flushes")
+                .tag("reason", "delay")
+                .register(meterRegistry);
+    }
+
+    // Clients pick a mode with ?ack=full|compact|cumulative on the handshake URI.
+    public AckMode modeFor(WebSocketSession session) {
+        if (session.getUri() == null) {
+            return defaultMode;
+        }
+        String requested = UriComponentsBuilder.fromUri(session.getUri()).build().getQueryParams().getFirst(MODE_PARAMETER);
+        return AckMode.parse(requested, defaultMode);
+    }
+
+    public CumulativeAckWindow createWindow(SessionContext context) {
+        return context.getAckMode() == AckMode.CUMULATIVE
+                ? new CumulativeAckWindow(context, this, cumulativeEvery)
+                : null;
+    }
+
+    public void send(SessionContext context, long seq, String status, String originalId, String detail,
+                     Object original, Long retryAfterMs) {
+        switch (context.getAckMode()) {
+            case FULL -> sendFull(context, status, originalId, detail, original, retryAfterMs);
+            case COMPACT -> sendCompact(context, AckMode.COMPACT, status, originalId, 0, detail, retryAfterMs);
+            case CUMULATIVE -> {
+                if (!STATUS_OK.equals(status)) {
+                    sendCompact(context, AckMode.CUMULATIVE, status, originalId, seq, detail, retryAfterMs);
+                }
+                CumulativeAckWindow window = context.getAckWindow();
+                if (seq > 0 && window != null) {
+                    window.resolve(seq);
+                }
+            }
+        }
+    }
+
+    void scheduleFlush(CumulativeAckWindow window, long generation) {
+        scheduler.schedule(() -> window.flush(generation), Instant.now().plus(Duration.ofMillis(cumulativeMaxDelayMs)));
+    }
+
+    void sendCumulative(SessionContext context, long seq, long covered, boolean countTriggered) {
+        cumulativeSpan.record(covered);
+        if (countTriggered) {
+            countFlushes.increment();
+        } else {
+            delayFlushes.increment();
+        }
+        if (context.isBinaryProtocol()) {
+            deliver(context, AckMode.CUMULATIVE, BinaryFrameCodec.encodeCumulativeAck(seq));
+        } else {
+            deliver(context, AckMode.CUMULATIVE, new CompactAck(null, null, seq, null, null));
+        }
+    }
+
+    private void sendCompact(SessionContext context, AckMode mode, String status, String originalId, long seq,
+                             String detail, Long retryAfterMs) {
+        byte code = statusCode(status);
+        if (context.isBinaryProtocol()) {
+            deliver(context, mode, BinaryFrameCodec.encodeCompactAck(code, originalId, seq,
+                    retryAfterMs == null ? -1 : retryAfterMs));
+        } else {
+            deliver(context, mode, new CompactAck(originalId, (int) code, seq > 0 ? seq : null, retryAfterMs,
+                    code == BinaryFrameCodec.STATUS_OK ? null : detail));
+        }
+    }
+
+    private void sendFull(SessionContext context, String status, String originalId, String detail, Object original,
+                          Long retryAfterMs) {
+        String serverTimestamp = Instant.now().toString();
+        if (context.isBinaryProtocol()) {
+            byte[] frame = BinaryFrameCodec.encodeAck(statusCode(status), originalId, serverTimestamp, detail,
+                    retryAfterMs == null ? -1 : retryAfterMs);
+            if (context.isDeflateProtocol()) {
+                frame = compressionService.compress(context.getRoomId(), frame);
+            }
+            deliver(context, AckMode.FULL, frame);
+            return;
+        }
+
+        ServerResponse response = new ServerResponse(status, serverTimestamp, original);
+        if (detail != null) {
+            response.setMessage(detail);
+        }
+        response.setOriginalMessageId(originalId);
+        response.setRetryAfterMs(retryAfterMs);
+        try {
+            deliver(context, AckMode.FULL, new TextMessage(objectMapper.writeValueAsString(response)));
+        } catch (JsonProcessingException e) {
+            logger.warn("Failed to serialize ack for {}: {}", originalId, e.getMessage());
+        }
+    }
+
+    private void deliver(SessionContext context, AckMode mode, CompactAck ack) {
+        try {
+            deliver(context, mode, new TextMessage(compactWriter.writeValueAsString(ack)));
+        } catch (JsonProcessingException e) {
+            logger.warn("Failed to serialize compact ack: {}", e.getMessage());
+        }
+    }
+
+    private void deliver(SessionContext context, AckMode mode, byte[] frame) {
+        deliver(context, mode, new BinaryMessage(frame));
+    }
+
+    private void deliver(SessionContext context, AckMode mode, WebSocketMessage<?> message) {
+        ackFrames.get(mode).increment();
+        ackBytes.get(mode).increment(message.getPayloadLength());
+        outboundDispatcher.send(context, message);
+    }
+
+    private static byte statusCode(String status) {
+        return switch (status) {
+            case STATUS_OK -> BinaryFrameCodec.STATUS_OK;
+            case STATUS_NACK -> BinaryFrameCodec.STATUS_NACK;
+            case STATUS_THROTTLED -> BinaryFrameCodec.STATUS_THROTTLED;
+            default -> BinaryFrameCodec.STATUS_ERROR;
+        };
+    }
+}
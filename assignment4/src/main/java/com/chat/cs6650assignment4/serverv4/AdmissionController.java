@@ -0,0 +1,139 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Admission check in front of publish: every frame draws from its session's bucket and from its user's
+ * bucket, and only when both have a permit, so a frame one of them rejects costs the other nothing.
+ * Room queues are length-capped, so a flood that got through would silently push other users' messages
+ * out of them.
+ */
+@Service
+public class AdmissionController {
+    public static final String SCOPE_SESSION = "session";
+    public static final String SCOPE_USER = "user";
+
+    private final Counter sessionThrottles;
+    private final Counter userThrottles;
+    private final Cache<String, TokenBucket> userBuckets;
+
+    @Value("${chat.admission.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${chat.admission.session.rate-per-second:100}")
+    private double sessionRate = 100;
+
+    @Value("${chat.admission.session.burst:200}")
+    private int sessionBurst = 200;
+
+    @Value("${chat.admission.user.rate-per-second:50}")
+    private double userRate = 50;
+
+    @Value("${chat.admission.user.burst:100}")
+    private int userBurst = 100;
+
+    public AdmissionController(MeterRegistry meterRegistry,
+                               @Value("${chat.admission.user.max-tracked:200000}") long maxTrackedUsers,
+                               @Value("${chat.admission.user.idle-expiry-seconds:300}") long idleExpirySeconds) {
+        this.sessionThrottles = throttleCounter(meterRegistry, SCOPE_SESSION);
+        this.userThrottles = throttleCounter(meterRegistry, SCOPE_USER);
+        this.userBuckets = CacheBuilder.newBuilder()
+                .maximumSize(maxTrackedUsers)
+                .expireAfterAccess(idleExpirySeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public TokenBucket newSessionBucket() {
+        return enabled ? new TokenBucket(sessionRate, sessionBurst) : null;
+    }
+
+    // Returns null when the frame is admitted, otherwise the rejection with its retry-after hint.
+    public Throttle admit(SessionContext context, String userId) {
+        if (!enabled) {
+            return null;
+        }
+        long now = System.nanoTime();
+        TokenBucket sessionBucket = context.getRateLimiter();
+        TokenBucket userBucket = userId == null ? null : userBucket(userId);
+        // Check both first; the acquires below only fail if another frame took the last permit in between.
+        if (sessionBucket != null) {
+            long waitNanos = sessionBucket.waitNanos(now);
+            if (waitNanos > 0) {
+                return throttled(SCOPE_SESSION, sessionThrottles, waitNanos);
+            }
+        }
+        if (userBucket != null) {
+            long waitNanos = userBucket.waitNanos(now);
+            if (waitNanos > 0) {
+                return throttled(SCOPE_USER, userThrottles, waitNanos);
+            }
+        }
+        if (sessionBucket != null) {
+            long waitNanos = sessionBucket.tryAcquire(now);
+            if (waitNanos > 0) {
+                return throttled(SCOPE_SESSION, sessionThrottles, waitNanos);
+            }
+        }
+        if (userBucket != null) {
+            long waitNanos = userBucket.tryAcquire(now);
+            if (waitNanos > 0) {
+                if (sessionBucket != null) {
+                    sessionBucket.refund();
+                }
+                return throttled(SCOPE_USER, userThrottles, waitNanos);
+            }
+        }
+        return null;
+    }
+
+    private TokenBucket userBucket(String userId) {
+        TokenBucket bucket = userBuckets.getIfPresent(userId);
+        if (bucket != null) {
+            return bucket;
+        }
+        try {
+            return userBuckets.get(userId, () -> new TokenBucket(userRate, userBurst));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Throttle throttled(String scope, Counter counter, long waitNanos) {
+        counter.increment();
+        return new Throttle(scope, TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+    }
+
+    // No room tag: room ids come from clients, and a tag per room would grow without bound.
+    private static Counter throttleCounter(MeterRegistry meterRegistry, String scope) {
+        return Counter.builder("chat.admission.throttled")
+                .description("Frames rejected by admission control")
+                .tag("scope", scope)
+                .register(meterRegistry);
+    }
+
+    public static class Throttle {
+        private final String scope;
+        private final long retryAfterMs;
+
+        Throttle(String scope, long retryAfterMs) {
+            this.scope = scope;
+            this.retryAfterMs = retryAfterMs;
+        }
+
+        public String getScope() {
+            return scope;
+        }
+
+        public long getRetryAfterMs() {
+            return retryAfterMs;
+        }
+    }
+}
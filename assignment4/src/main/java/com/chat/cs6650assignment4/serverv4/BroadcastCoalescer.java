@@ -0,0 +1,90 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+@Service
+public class BroadcastCoalescer {
+    public static final String OPT_IN_PARAMETER = "coalesce";
+
+    private final OutboundMessageDispatcher outboundDispatcher;
+    private final TaskScheduler scheduler;
+
+    private final DistributionSummary messagesPerFrame;
+    private final Timer addedLatency;
+    private final Counter windowFlushes;
+    private final Counter sizeFlushes;
+
+    @Value("${chat.broadcast.coalesce.enabled:false}")
+    private boolean enabled;
+
+    @Value("${chat.broadcast.coalesce.window-ms:3}")
+    private long windowMs = 3;
+
+    @Value("${chat.broadcast.coalesce.max-messages:32}")
+    private int maxMessages = 32;
+
+    @Value("${chat.broadcast.coalesce.max-bytes:65536}")
+    private int maxBytes = 65536;
+
+    public BroadcastCoalescer(OutboundMessageDispatcher outboundDispatcher,
+                              @Qualifier("coalesceScheduler") TaskScheduler scheduler, MeterRegistry meterRegistry) {
+        this.outboundDispatcher = outboundDispatcher;
+        this.scheduler = scheduler;
+        this.messagesPerFrame = DistributionSummary.builder("chat.broadcast.coalesce.messages-per-frame")
+                .description("Broadcasts packed into one coalesced frame")
+                .publishPercentiles(0.5, 0.95)
+                .register(meterRegistry);
+        this.addedLatency = Timer.builder("chat.broadcast.coalesce.delay")
+                .description("Time the oldest broadcast in a coalesced frame was held back")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        this.windowFlushes = Counter.builder("chat.broadcast.coalesce.flushes")
+                .tag("reason", "window")
+                .register(meterRegistry);
+        this.sizeFlushes = Counter.builder("chat.broadcast.coalesce.flushes")
+                .tag("reason", "size")
+                .register(meterRegistry);
+    }
+
+    // Clients opt in with ?coalesce=true on the handshake URI; null means the session gets one frame per broadcast.
+    public SessionCoalescingBuffer createBuffer(WebSocketSession session, SessionContext context) {
+        if (!enabled || session.getUri() == null) {
+            return null;
+        }
+        String optIn = UriComponentsBuilder.fromUri(session.getUri()).build().getQueryParams().getFirst(OPT_IN_PARAMETER);
+        if (!"true".equalsIgnoreCase(optIn)) {
+            return null;
+        }
+        return new SessionCoalescingBuffer(context, this, maxMessages, maxBytes);
+    }
+
+    void scheduleFlush(SessionCoalescingBuffer buffer, long generation) {
+        scheduler.schedule(() -> buffer.flush(generation), Instant.now().plus(Duration.ofMillis(windowMs)));
+    }
+
+    void send(SessionContext context, WebSocketMessage<?> frame, int messageCount,
+              long heldNanos, boolean sizeTriggered) {
+        messagesPerFrame.record(messageCount);
+        addedLatency.record(heldNanos, TimeUnit.NANOSECONDS);
+        if (sizeTriggered) {
+            sizeFlushes.increment();
+        } else {
+            windowFlushes.increment();
+        }
+        outboundDispatcher.send(context, frame);
+    }
+}
@@ -1,44 +1,219 @@
 package com.chat.cs6650assignment4.serverv4;
 
+import com.chat.cs6650assignment4.config.NodeIdentity;
+import com.chat.cs6650assignment4.config.RabbitMQConfig;
 import com.chat.cs6650assignment4.model.QueueMessage;
+import com.chat.cs6650assignment4.monitoring.PipelineTracer;
+import com.chat.cs6650assignment4.protocol.RawQueueMessage;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.core.Message;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.socket.TextMessage;
-import org.springframework.web.socket.WebSocketSession;
-import java.util.Set;
+
+import java.util.List;
 
 @Service
 public class BroadcastConsumerService {
     private static final Logger logger = LoggerFactory.getLogger(BroadcastConsumerService.class);
     private final SessionManager sessionManager;
     private final ObjectMapper objectMapper;
+    private final ObjectWriter clientWriter;
+    private final FrameCompressionService compressionService;
+    private final RoomFanout roomFanout;
+    private final PipelineTracer pipelineTracer;
+    private final Counter broadcastsReceived;
+    private final Counter broadcastsDelivered;
+    private final Counter localDeliveries;
+    private final Counter selfSkipped;
+    private final MeterRegistry meterRegistry;
+    private final String nodeId;
+    private OrderedLanes listenerLanes;
+
+    @Value("${chat.broadcast.local-delivery.enabled:false}")
+    private boolean localDelivery;
+
+    @Value("${chat.broadcast.passthrough.enabled:false}")
+    private boolean passThrough;
 
-    public BroadcastConsumerService(SessionManager sessionManager, ObjectMapper objectMapper) {
+    @Value("${chat.broadcast.listener.lanes:1}")
+    private int laneCount = 1;
+
+    @Value("${chat.broadcast.listener.lane-capacity:10000}")
+    private int laneCapacity = 10000;
+
+    public BroadcastConsumerService(SessionManager sessionManager, ObjectMapper objectMapper,
+                                    FrameCompressionService compressionService, RoomFanout roomFanout,
+                                    PipelineTracer pipelineTracer, NodeIdentity nodeIdentity,
+                                    MeterRegistry meterRegistry) {
         this.sessionManager = sessionManager;
         this.objectMapper = objectMapper;
+        this.clientWriter = BroadcastFrames.clientWriter(objectMapper);
+        this.roomFanout = roomFanout;
+        this.pipelineTracer = pipelineTracer;
+        this.meterRegistry = meterRegistry;
+        this.nodeId = nodeIdentity.getNodeId();
+        this.compressionService = compressionService;
+        // received - delivered is the traffic this node consumed for rooms it has no sessions in.
+        this.broadcastsReceived = Counter.builder("chat.broadcast.received")
+                .description("Broadcast messages consumed from the broker by this node")
+                .register(meterRegistry);
+        this.broadcastsDelivered = Counter.builder("chat.broadcast.delivered")
+                .description("Broadcast messages that reached at least one local session")
+                .register(meterRegistry);
+        this.localDeliveries = Counter.builder("chat.broadcast.local")
+                .description("Broadcasts handed to local sessions directly by the room consumer")
+                .register(meterRegistry);
+        this.selfSkipped = Counter.builder("chat.broadcast.self-skipped")
+                .description("Broker copies of this node's own broadcasts, already delivered in-process")
+                .register(meterRegistry);
+    }
+
+    // With more than one lane, the listener thread only picks the room's lane and hands the message over,
+    // so rooms are processed in parallel while each room keeps broker order.
+    @PostConstruct
+    public void init() {
+        if (laneCount > 1) {
+            listenerLanes = new OrderedLanes("chat.broadcast.listener", laneCount, laneCapacity, meterRegistry);
+        }
+    }
+
+    public boolean isLocalDeliveryEnabled() {
+        return localDelivery;
+    }
+
+    // Short-circuit for the room consumer in this process: local sessions get the message without the
+    // broker round trip, and the broker copy that comes back to this node is dropped on arrival.
+    public void deliverLocal(QueueMessage message) throws InterruptedException {
+        deliverLocal(message.getRoomId(), null, message);
+    }
+
+    public void deliverLocal(RawQueueMessage message) throws InterruptedException {
+        deliverLocal(message.getRoomId(), message.getBody(), null);
+    }
+
+    private void deliverLocal(String roomId, byte[] body, QueueMessage message) throws InterruptedException {
+        localDeliveries.increment();
+        if (listenerLanes == null) {
+            try {
+                fanOut(roomId, body, message);
+            } catch (Exception e) {
+                // The broker publish already succeeded; a failure here must not make the consumer requeue.
+                logger.error("Error delivering broadcast locally for room {}", roomId, e);
+            }
+        } else {
+            listenerLanes.execute(roomId, () -> fanOut(roomId, body, message));
+        }
+    }
+
+    // Subscribed to the message bus's broadcasts by DynamicConsumerConfig.
+    public void receiveBroadcast(Message amqpMessage) throws InterruptedException {
+        if (localDelivery && nodeId.equals(amqpMessage.getMessageProperties().getHeader(RabbitMQConfig.ORIGIN_NODE_HEADER))) {
+            selfSkipped.increment();
+            return;
+        }
+        if (listenerLanes == null) {
+            process(amqpMessage);
+        } else {
+            listenerLanes.execute(roomKeyOf(amqpMessage), () -> process(amqpMessage));
+        }
     }
 
-    @RabbitListener(queues = "#{serverBroadcastQueue.name}")
-    public void receiveBroadcast(QueueMessage message) {
+    // Publishers tag broadcasts with their room; older ones only have it in the routing key or the body.
+    private String roomKeyOf(Message amqpMessage) {
+        Object roomHeader = amqpMessage.getMessageProperties().getHeader(RabbitMQConfig.ROOM_HEADER);
+        if (roomHeader != null) {
+            return roomHeader.toString();
+        }
+        String routingKey = amqpMessage.getMessageProperties().getReceivedRoutingKey();
+        if (routingKey != null && routingKey.startsWith(RabbitMQConfig.BROADCAST_ROUTING_KEY_PREFIX)) {
+            return routingKey.substring(RabbitMQConfig.BROADCAST_ROUTING_KEY_PREFIX.length());
+        }
+        RawQueueMessage raw = RawQueueMessage.peek(amqpMessage.getBody());
+        return raw == null ? null : raw.getRoomId();
+    }
+
+    // In pass-through mode the broker body is itself the JSON broadcast frame: text sessions share one
+    // TextMessage over those bytes, and the body is only decoded if a binary session needs re-encoding
+    // (see BroadcastFrames). Sampled broadcasts are decoded as well so their trace can be stamped, and
+    // re-encoded without it.
+    private void process(Message amqpMessage) {
+        if (amqpMessage.getMessageProperties().getHeader(RabbitMQConfig.BATCH_SIZE_HEADER) != null) {
+            processBatch(amqpMessage);
+            return;
+        }
+        broadcastsReceived.increment();
         try {
-            String messageJson = objectMapper.writeValueAsString(message);
-            TextMessage textMessage = new TextMessage(messageJson);
-
-            Set<WebSocketSession> sessionsInRoom = sessionManager.getSessions(message.getRoomId());
-            for (WebSocketSession session : sessionsInRoom) {
-                try {
-                    if (session.isOpen()) {
-                        synchronized(session) { session.sendMessage(textMessage); }
-                    }
-                } catch (Exception e) {
-                    logger.error("Failed to send broadcast to session {}", session.getId());
+            byte[] body = amqpMessage.getBody();
+            QueueMessage message = null;
+            String roomId;
+            if (passThrough) {
+                RawQueueMessage raw = RawQueueMessage.peek(body);
+                if (raw == null) {
+                    logger.warn("Dropping broadcast without messageId/roomId");
+                    return;
+                }
+                roomId = raw.getRoomId();
+                if (raw.isTraced()) {
+                    message = objectMapper.readValue(body, QueueMessage.class);
                 }
+            } else {
+                message = objectMapper.readValue(body, QueueMessage.class);
+                roomId = message.getRoomId();
             }
+
+            fanOut(roomId, passThrough ? body : null, message);
         } catch (Exception e) {
             logger.error("Critical error processing broadcast message", e);
         }
     }
-}
\ No newline at end of file
+
+    private void fanOut(String roomId, byte[] body, QueueMessage message) {
+        if (message != null && message.getTrace() != null) {
+            pipelineTracer.broadcastReceived(message);
+            body = null;
+        }
+        SessionContext[] sessionsInRoom = sessionManager.getSessions(roomId);
+        if (sessionsInRoom.length > 0) {
+            broadcastsDelivered.increment();
+            roomFanout.fanOut(sessionsInRoom,
+                    new BroadcastFrames(roomId, body, message, objectMapper, clientWriter, compressionService, pipelineTracer));
+        }
+    }
+
+    // Batch envelopes are a JSON array of broadcasts, delivered in array order.
+    private void processBatch(Message amqpMessage) {
+        List<RawQueueMessage> batch = RawQueueMessage.peekBatch(amqpMessage.getBody());
+        if (batch == null) {
+            logger.warn("Dropping malformed broadcast batch");
+            return;
+        }
+        for (RawQueueMessage raw : batch) {
+            broadcastsReceived.increment();
+            try {
+                if (passThrough) {
+                    fanOut(raw.getRoomId(), raw.getBody(),
+                            raw.isTraced() ? objectMapper.readValue(raw.getBody(), QueueMessage.class) : null);
+                } else {
+                    fanOut(raw.getRoomId(), null, objectMapper.readValue(raw.getBody(), QueueMessage.class));
+                }
+            } catch (Exception e) {
+                logger.error("Critical error processing broadcast message {} in batch", raw.getMessageId(), e);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (listenerLanes != null) {
+            listenerLanes.shutdown();
+        }
+    }
+
+}
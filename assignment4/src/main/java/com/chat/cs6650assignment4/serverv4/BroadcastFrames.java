@@ -0,0 +1,104 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import com.chat.cs6650assignment4.model.QueueMessage;
+import com.chat.cs6650assignment4.monitoring.PipelineTracer;
+import com.chat.cs6650assignment4.protocol.BinaryFrameCodec;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.springframework.web.socket.TextMessage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/*
+ * The encodings of one broadcast, each built the first time a session needs it and then shared by every
+ * session in the room. Fan-out lanes may ask concurrently, so the getters are synchronized; each is
+ * built once per broadcast, so the lock is only contended on first use. Frames of a sampled message are
+ * registered with the tracer so their socket writes are timed; coalesced frames are new objects and
+ * are not. The stage trace itself stays on the server: JSON frames are written without it, so a sampled
+ * broadcast is always re-encoded rather than forwarded as received.
+ */
+class BroadcastFrames {
+    private final String roomId;
+    private final byte[] body;
+    private final ObjectMapper objectMapper;
+    private final ObjectWriter clientWriter;
+    private final FrameCompressionService compressionService;
+    private final PipelineTracer pipelineTracer;
+
+    private QueueMessage message;
+    private TextMessage textMessage;
+    private byte[] binaryFrame;
+    private byte[] deflatedFrame;
+
+    // Either body (the JSON frame bytes) or message must be set; the other is derived when needed.
+    BroadcastFrames(String roomId, byte[] body, QueueMessage message,
+                    ObjectMapper objectMapper, ObjectWriter clientWriter,
+                    FrameCompressionService compressionService, PipelineTracer pipelineTracer) {
+        this.roomId = roomId;
+        this.body = body;
+        this.message = message;
+        this.objectMapper = objectMapper;
+        this.clientWriter = clientWriter;
+        this.compressionService = compressionService;
+        this.pipelineTracer = pipelineTracer;
+    }
+
+    // Writes QueueMessages for clients, leaving out the stage trace.
+    static ObjectWriter clientWriter(ObjectMapper objectMapper) {
+        return objectMapper.copy()
+                .addMixIn(QueueMessage.class, ClientQueueMessage.class)
+                .writerFor(QueueMessage.class);
+    }
+
+    @JsonIgnoreProperties("trace")
+    private abstract static class ClientQueueMessage {
+    }
+
+    String roomId() {
+        return roomId;
+    }
+
+    synchronized TextMessage text() {
+        if (textMessage == null) {
+            try {
+                textMessage = body != null
+                        ? new TextMessage(body)
+                        : new TextMessage(clientWriter.writeValueAsString(message()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            pipelineTracer.registerFrame(textMessage, message);
+        }
+        return textMessage;
+    }
+
+    synchronized byte[] binary() {
+        if (binaryFrame == null) {
+            binaryFrame = BinaryFrameCodec.encodeBroadcast(message());
+            pipelineTracer.registerFrame(binaryFrame, message);
+        }
+        return binaryFrame;
+    }
+
+    // Compressed once per room message; frames carry no shared context, so every session can reuse it.
+    synchronized byte[] deflated() {
+        if (deflatedFrame == null) {
+            deflatedFrame = compressionService.compress(roomId, binary());
+            pipelineTracer.registerFrame(deflatedFrame, message);
+        }
+        return deflatedFrame;
+    }
+
+    private QueueMessage message() {
+        if (message == null) {
+            try {
+                message = objectMapper.readValue(body, QueueMessage.class);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return message;
+    }
+}
@@ -1,35 +1,68 @@
 package com.chat.cs6650assignment4.serverv4;
 
-import com.chat.cs6650assignment4.model.ChatMessage;
+import com.chat.cs6650assignment4.config.NodeIdentity;
 import com.chat.cs6650assignment4.model.QueueMessage;
-import com.chat.cs6650assignment4.model.ServerResponse;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.chat.cs6650assignment4.monitoring.PipelineTracer;
+import com.chat.cs6650assignment4.protocol.BinaryFrameCodec;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PongMessage;
+import org.springframework.web.socket.SubProtocolCapable;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
-import java.io.IOException;
-import java.time.Instant;
-import java.time.format.DateTimeParseException;
-import java.util.regex.Pattern;
+import java.util.List;
+import java.util.concurrent.CompletionException;
 
 @Component
-public class ChatWebSocketHandler  extends TextWebSocketHandler {
+public class ChatWebSocketHandler extends AbstractWebSocketHandler implements SubProtocolCapable {
     private final RabbitMQProducerService producerService;
     private final SessionManager sessionManager;
-    private final ObjectMapper objectMapper;
-    private final String serverId = "server-" + java.util.UUID.randomUUID().toString().substring(0, 8);
-
-    private static final Pattern USERNAME_PATTERN = Pattern.compile("^[a-zA-Z0-9_]{3,20}$");
+    private final InboundMessageDecoder messageDecoder;
+    private final OutboundMessageDispatcher outboundDispatcher;
+    private final BroadcastCoalescer broadcastCoalescer;
+    private final AdmissionController admissionController;
+    private final IdleSessionReaper idleSessionReaper;
+    private final IngressBatcher ingressBatcher;
+    private final AckService ackService;
+    private final PipelineTracer pipelineTracer;
+    private final String serverId;
 
     public static final String ROOM_ID_ATTRIBUTE = "roomId";
 
-    public ChatWebSocketHandler(RabbitMQProducerService producerService, SessionManager sessionManager, ObjectMapper objectMapper) {
+    private static final List<String> SUB_PROTOCOLS =
+            List.of(BinaryFrameCodec.DEFLATE_SUBPROTOCOL, BinaryFrameCodec.SUBPROTOCOL);
+
+    private final Counter jsonBytesIn;
+    private final Counter binaryBytesIn;
+
+    public ChatWebSocketHandler(RabbitMQProducerService producerService, SessionManager sessionManager,
+                                InboundMessageDecoder messageDecoder, OutboundMessageDispatcher outboundDispatcher,
+                                BroadcastCoalescer broadcastCoalescer, AdmissionController admissionController,
+                                IdleSessionReaper idleSessionReaper, IngressBatcher ingressBatcher,
+                                AckService ackService, PipelineTracer pipelineTracer, NodeIdentity nodeIdentity,
+                                MeterRegistry meterRegistry) {
         this.producerService = producerService;
         this.sessionManager = sessionManager;
-        this.objectMapper = objectMapper;
+        this.messageDecoder = messageDecoder;
+        this.outboundDispatcher = outboundDispatcher;
+        this.broadcastCoalescer = broadcastCoalescer;
+        this.admissionController = admissionController;
+        this.idleSessionReaper = idleSessionReaper;
+        this.ingressBatcher = ingressBatcher;
+        this.ackService = ackService;
+        this.pipelineTracer = pipelineTracer;
+        this.serverId = nodeIdentity.getNodeId();
+        this.jsonBytesIn = Counter.builder("chat.ingress.bytes")
+                .tag("encoding", "json")
+                .register(meterRegistry);
+        this.binaryBytesIn = Counter.builder("chat.ingress.bytes")
+                .tag("encoding", "binary")
+                .register(meterRegistry);
     }
 
     @Override
@@ -41,7 +74,14 @@ public class ChatWebSocketHandler  extends TextWebSocketHandler {
                 return;
             }
 
-            sessionManager.addSession(roomId, session);
+            session.getAttributes().put(ROOM_ID_ATTRIBUTE, roomId);
+            SessionOutboundQueue outboundQueue = outboundDispatcher.register(session);
+            SessionContext context = sessionManager.addSession(roomId, session, session.getAcceptedProtocol(), outboundQueue);
+            context.setCoalescingBuffer(broadcastCoalescer.createBuffer(session, context));
+            context.setRateLimiter(admissionController.newSessionBucket());
+            context.setAckMode(ackService.modeFor(session));
+            context.setAckWindow(ackService.createWindow(context));
+            idleSessionReaper.track(context);
 
         } catch (Exception e) {
             System.err.println("Error during connection establishment: " + e.getMessage());
@@ -50,52 +90,113 @@ public class ChatWebSocketHandler  extends TextWebSocketHandler {
 
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+        jsonBytesIn.increment(message.getPayload().length());
+        SessionContext context = SessionManager.contextOf(session);
+        if (context == null) {
+            return;
+        }
+        context.touch();
+        long receivedMicros = pipelineTracer.sample();
+        long seq = nextSequence(context);
         try {
-            ChatMessage chatMessage = objectMapper.readValue(message.getPayload(), ChatMessage.class);
-            validateMessage(chatMessage);
-            QueueMessage queueMessage = new QueueMessage();
-            queueMessage.setMessageId(java.util.UUID.randomUUID().toString());
-            queueMessage.setRoomId(getRoomId(session));
-            queueMessage.setUserId(chatMessage.getUserId());
-            queueMessage.setUsername(chatMessage.getUsername());
-            queueMessage.setMessage(chatMessage.getMessage());
-            queueMessage.setTimestamp(chatMessage.getTimestamp());
-            queueMessage.setMessageType(chatMessage.getMessageType());
-            queueMessage.setServerId(serverId);
-            queueMessage.setClientIp(session.getRemoteAddress().toString());
-            queueMessage.setClientMessageId(chatMessage.getMessageId());
-            producerService.publishMessage(queueMessage);
-            String originalId = chatMessage.getMessageId();
-            ServerResponse response = new ServerResponse("OK", Instant.now().toString(), message);
-            response.setOriginalMessageId(originalId);
-            synchronized (session) {
-                if (session.isOpen()) {
-                    session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
-                }
-            }
+            handleChatMessage(context, seq, messageDecoder.decode(message.getPayload()), message, receivedMicros);
+        } catch (Exception e) {
+            sendError(context, seq, e);
+        }
+    }
 
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        binaryBytesIn.increment(message.getPayloadLength());
+        SessionContext context = SessionManager.contextOf(session);
+        if (context == null) {
+            return;
+        }
+        context.touch();
+        long receivedMicros = pipelineTracer.sample();
+        long seq = nextSequence(context);
+        try {
+            handleChatMessage(context, seq, messageDecoder.decodeBinary(message.getPayload()), null,
+                    receivedMicros);
         } catch (Exception e) {
-            System.out.println("Error while publishing message to queue: " + e.getMessage());
-            ServerResponse errorResponse = new ServerResponse("ERROR", Instant.now().toString());
-            errorResponse.setMessage(e.getMessage());
-            try {
-                synchronized (session) {
-                    if (session.isOpen()) {
-                        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(errorResponse)));
-                    }
-                }
-            } catch (IOException ioException) {
+            sendError(context, seq, e);
+        }
+    }
 
-            }
+    @Override
+    protected void handlePongMessage(WebSocketSession session, PongMessage message) throws Exception {
+        SessionContext context = SessionManager.contextOf(session);
+        if (context != null) {
+            idleSessionReaper.onPong(context, message);
+        }
+    }
+
+    @Override
+    public List<String> getSubProtocols() {
+        return SUB_PROTOCOLS;
+    }
+
+    private static long nextSequence(SessionContext context) {
+        CumulativeAckWindow window = context.getAckWindow();
+        return window == null ? 0 : window.nextSequence();
+    }
+
+    private void handleChatMessage(SessionContext context, long seq, QueueMessage queueMessage, Object original,
+                                   long receivedMicros) {
+        AdmissionController.Throttle throttle = admissionController.admit(context, queueMessage.getUserId());
+        if (throttle != null) {
+            ackService.send(context, seq, AckService.STATUS_THROTTLED, queueMessage.getClientMessageId(),
+                    "Rate limit exceeded (" + throttle.getScope() + ")", null, throttle.getRetryAfterMs());
+            return;
+        }
+
+        queueMessage.setMessageId(java.util.UUID.randomUUID().toString());
+        queueMessage.setRoomId(context.getRoomId());
+        queueMessage.setServerId(serverId);
+        queueMessage.setClientIp(context.getClientIp());
+        pipelineTracer.start(queueMessage, receivedMicros);
+        String originalId = queueMessage.getClientMessageId();
+
+        if (ingressBatcher.isEnabled()) {
+            ingressBatcher.submit(queueMessage)
+                    .whenComplete((ignored, ex) -> completePublish(context, seq, originalId, original, ex));
+            return;
+        }
+        if (producerService.isConfirmModeEnabled()) {
+            producerService.publishMessageConfirmed(queueMessage)
+                    .whenComplete((ignored, ex) -> completePublish(context, seq, originalId, original, ex));
+            return;
+        }
+
+        producerService.publishMessage(queueMessage);
+        ackService.send(context, seq, AckService.STATUS_OK, originalId, null, original, null);
+    }
+
+    private void completePublish(SessionContext context, long seq, String originalId, Object original, Throwable ex) {
+        if (ex == null) {
+            ackService.send(context, seq, AckService.STATUS_OK, originalId, null, original, null);
+        } else {
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            ackService.send(context, seq, AckService.STATUS_NACK, originalId, cause.getMessage(), null, null);
         }
     }
 
+    private void sendError(SessionContext context, long seq, Exception e) {
+        System.out.println("Error while publishing message to queue: " + e.getMessage());
+        ackService.send(context, seq, AckService.STATUS_ERROR, null, e.getMessage(), null, null);
+    }
+
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
         String roomId = (String) session.getAttributes().get(ROOM_ID_ATTRIBUTE);
+        SessionContext context = SessionManager.contextOf(session);
+        outboundDispatcher.unregister(session);
 
+        if (context != null) {
+            context.markClosed();
+            sessionManager.removeSession(context);
+        }
         if (roomId != null) {
-            sessionManager.removeSession(roomId, session);
             System.out.println("Connection closed from " + session.getRemoteAddress() + " for room " + roomId + " with status " + status);
         } else {
             System.out.println("Connection closed from " + session.getRemoteAddress() + " (room ID unknown) with status " + status);
@@ -113,35 +214,4 @@ public class ChatWebSocketHandler  extends TextWebSocketHandler {
         }
         return path.substring(lastSlash + 1);
     }
-
-    private void validateMessage(ChatMessage msg) {
-        if (msg.getUserId() == null) throw new IllegalArgumentException("userId is required.");
-        try {
-            int userIdInt = Integer.parseInt(msg.getUserId());
-            if (userIdInt < 1 || userIdInt > 100000) {
-                throw new IllegalArgumentException("userId must be between 1 and 100000.");
-            }
-        } catch (NumberFormatException e) {
-            throw new IllegalArgumentException("userId must be a valid integer string.");
-        }
-
-        if (msg.getUsername() == null || !USERNAME_PATTERN.matcher(msg.getUsername()).matches()) {
-            throw new IllegalArgumentException("username must be 3-20 alphanumeric characters.");
-        }
-
-        if (msg.getMessage() == null || msg.getMessage().length() < 1 || msg.getMessage().length() > 500) {
-            throw new IllegalArgumentException("message must be between 1 and 500 characters.");
-        }
-
-        if (msg.getTimestamp() == null) throw new IllegalArgumentException("timestamp is required.");
-        try {
-            Instant.parse(msg.getTimestamp());
-        } catch (DateTimeParseException e) {
-            throw new IllegalArgumentException("timestamp must be a valid ISO-8601 timestamp.");
-        }
-
-        if (msg.getMessageType() == null) {
-            throw new IllegalArgumentException("messageType must be TEXT, JOIN, or LEAVE.");
-        }
-    }
 }
@@ -0,0 +1,101 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Cumulative acks for one session. Inbound frames are numbered 1, 2, 3... in arrival order, which the
+ * client can mirror because a WebSocket delivers frames in order. Publishes resolve out of order
+ * (confirms, ingress batches), so resolved sequences are marked in a ring and the window only acks the
+ * highest contiguous one, every N resolutions or after T ms. A frame that failed has already had its
+ * individual ack queued before it is resolved here, so the client always sees the failure first.
+ */
+public class CumulativeAckWindow {
+    private final SessionContext context;
+    private final AckService ackService;
+    private final int everyMessages;
+
+    // Written only by the session's inbound thread: the container delivers one session's frames serially.
+    private long nextSeq;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean[] resolved = new boolean[64];
+    private long contiguous;
+    private long lastAcked;
+    private long generation;
+    private boolean flushScheduled;
+
+    CumulativeAckWindow(SessionContext context, AckService ackService, int everyMessages) {
+        this.context = context;
+        this.ackService = ackService;
+        this.everyMessages = everyMessages;
+    }
+
+    public long nextSequence() {
+        return ++nextSeq;
+    }
+
+    public void resolve(long seq) {
+        lock.lock();
+        try {
+            if (seq <= contiguous) {
+                return;
+            }
+            if (seq - contiguous > resolved.length) {
+                grow(seq - contiguous);
+            }
+            int mask = resolved.length - 1;
+            resolved[(int) (seq & mask)] = true;
+            int next;
+            while (resolved[next = (int) ((contiguous + 1) & mask)]) {
+                resolved[next] = false;
+                contiguous++;
+            }
+
+            long pending = contiguous - lastAcked;
+            if (pending >= everyMessages) {
+                flushLocked(true);
+            } else if (pending > 0 && !flushScheduled) {
+                flushScheduled = true;
+                ackService.scheduleFlush(this, generation);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void flush(long expectedGeneration) {
+        lock.lock();
+        try {
+            // A timer from a window that already went out on count must not ack the next one early.
+            if (expectedGeneration == generation) {
+                flushLocked(false);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLocked(boolean countTriggered) {
+        generation++;
+        flushScheduled = false;
+        if (contiguous > lastAcked && context.isActive()) {
+            ackService.sendCumulative(context, contiguous, contiguous - lastAcked, countTriggered);
+        }
+        lastAcked = contiguous;
+    }
+
+    // The ring holds the sequences in (contiguous, contiguous + length]; resize keeping their slots.
+    private void grow(long span) {
+        int capacity = resolved.length;
+        while (capacity < span) {
+            capacity <<= 1;
+        }
+        boolean[] grown = new boolean[capacity];
+        int oldMask = resolved.length - 1;
+        int newMask = capacity - 1;
+        for (long s = contiguous + 1; s <= contiguous + resolved.length; s++) {
+            grown[(int) (s & newMask)] = resolved[(int) (s & oldMask)];
+        }
+        resolved = grown;
+    }
+}
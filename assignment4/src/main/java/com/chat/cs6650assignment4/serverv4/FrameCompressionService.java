@@ -0,0 +1,213 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import com.chat.cs6650assignment4.protocol.BinaryFrameCodec;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+@Service
+public class FrameCompressionService {
+    private static final Logger logger = LoggerFactory.getLogger(FrameCompressionService.class);
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    // Raw deflaters with their output buffers, pooled per level and reset after each frame (no context
+    // takeover). Pooled rather than per thread so their native memory is freed: a compressor the pool has
+    // no room for, and every pooled one at shutdown, is end()ed.
+    private final List<LinkedBlockingQueue<Compressor>> pools = new ArrayList<>();
+
+    private final DistributionSummary compressionRatio;
+    private final Timer compressionCpuTime;
+    private final Counter bytesBeforeCompression;
+    private final Counter bytesAfterCompression;
+    private final Counter belowThreshold;
+    private final Counter incompressible;
+
+    @Value("${chat.ws.deflate.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${chat.ws.deflate.level:6}")
+    private int defaultLevel = 6;
+
+    @Value("${chat.ws.deflate.min-bytes:128}")
+    private int minBytes = 128;
+
+    // Comma-separated roomId:level overrides, e.g. "1:9,2:1,7:0". Level 0 turns compression off for the room.
+    @Value("${chat.ws.deflate.room-levels:}")
+    private String roomLevelsSpec = "";
+
+    // Idle compressors kept per level; about the number of threads that compress at once.
+    @Value("${chat.ws.deflate.pool-size:16}")
+    private int poolSize = 16;
+
+    private final Map<String, Integer> roomLevels = new HashMap<>();
+    private boolean cpuTimeSupported;
+
+    public FrameCompressionService(MeterRegistry meterRegistry) {
+        for (int level = Deflater.NO_COMPRESSION; level <= Deflater.BEST_COMPRESSION; level++) {
+            pools.add(new LinkedBlockingQueue<>());
+        }
+        this.compressionRatio = DistributionSummary.builder("chat.ws.deflate.ratio")
+                .description("Uncompressed size divided by compressed size per frame")
+                .publishPercentiles(0.5, 0.95)
+                .register(meterRegistry);
+        this.compressionCpuTime = Timer.builder("chat.ws.deflate.cpu.time")
+                .description("Thread CPU time spent compressing one frame")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        this.bytesBeforeCompression = Counter.builder("chat.ws.deflate.bytes")
+                .tag("stage", "in")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.bytesAfterCompression = Counter.builder("chat.ws.deflate.bytes")
+                .tag("stage", "out")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.belowThreshold = Counter.builder("chat.ws.deflate.skipped")
+                .tag("reason", "below-threshold")
+                .register(meterRegistry);
+        this.incompressible = Counter.builder("chat.ws.deflate.skipped")
+                .tag("reason", "incompressible")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        defaultLevel = clampLevel(defaultLevel);
+        for (String entry : roomLevelsSpec.split(",")) {
+            String trimmed = entry.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int colon = trimmed.indexOf(':');
+            try {
+                roomLevels.put(trimmed.substring(0, colon).trim(),
+                        clampLevel(Integer.parseInt(trimmed.substring(colon + 1).trim())));
+            } catch (RuntimeException e) {
+                logger.warn("Ignoring malformed chat.ws.deflate.room-levels entry '{}'", trimmed);
+            }
+        }
+        cpuTimeSupported = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported();
+        if (cpuTimeSupported && !THREAD_MX_BEAN.isThreadCpuTimeEnabled()) {
+            THREAD_MX_BEAN.setThreadCpuTimeEnabled(true);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        for (LinkedBlockingQueue<Compressor> pool : pools) {
+            Compressor compressor;
+            while ((compressor = pool.poll()) != null) {
+                compressor.deflater.end();
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isEnabledForRoom(String roomId) {
+        return enabled && levelFor(roomId) != Deflater.NO_COMPRESSION;
+    }
+
+    public int levelFor(String roomId) {
+        if (roomId == null) {
+            return defaultLevel;
+        }
+        return roomLevels.getOrDefault(roomId, defaultLevel);
+    }
+
+    // Wraps a binary frame in a DEFLATED frame, or returns it untouched when compressing would not pay off.
+    public byte[] compress(String roomId, byte[] frame) {
+        if (!isEnabledForRoom(roomId)) {
+            return frame;
+        }
+        if (frame.length < minBytes) {
+            belowThreshold.increment();
+            return frame;
+        }
+
+        long startCpu = cpuTimeSupported ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : System.nanoTime();
+        int level = levelFor(roomId);
+        Compressor compressor = acquire(level);
+        Deflater deflater = compressor.deflater;
+        byte[] out = compressor.out;
+        int length = 1;
+        byte[] result = frame;
+        try {
+            deflater.setInput(frame);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                    compressor.out = out;
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            if (length < frame.length) {
+                out[0] = BinaryFrameCodec.FRAME_DEFLATED;
+                result = Arrays.copyOf(out, length);
+            }
+        } finally {
+            release(level, compressor);
+        }
+        long elapsed = (cpuTimeSupported ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : System.nanoTime()) - startCpu;
+        compressionCpuTime.record(elapsed, TimeUnit.NANOSECONDS);
+
+        bytesBeforeCompression.increment(frame.length);
+        if (result == frame) {
+            incompressible.increment();
+            bytesAfterCompression.increment(frame.length);
+            return frame;
+        }
+        bytesAfterCompression.increment(length);
+        compressionRatio.record((double) frame.length / length);
+        return result;
+    }
+
+    private Compressor acquire(int level) {
+        Compressor compressor = pools.get(level).poll();
+        return compressor != null ? compressor : new Compressor(level);
+    }
+
+    private void release(int level, Compressor compressor) {
+        compressor.deflater.reset();
+        LinkedBlockingQueue<Compressor> pool = pools.get(level);
+        // Racing releases may overshoot pool-size by a few; the bound only has to stop unbounded growth.
+        if (pool.size() >= poolSize || !pool.offer(compressor)) {
+            compressor.deflater.end();
+        }
+    }
+
+    private static int clampLevel(int level) {
+        return Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, level));
+    }
+
+    private static final class Compressor {
+        private final Deflater deflater;
+        private byte[] out = new byte[4096];
+
+        Compressor(int level) {
+            this.deflater = new Deflater(level, true);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.PongMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Heartbeats and idle reaping on a hashed timing wheel. Each session sits in the bucket of its next
+ * deadline (next ping or idle timeout, whichever comes first); a tick only visits the current bucket,
+ * so the cost per tick is proportional to the sessions actually due, not to all sessions. Inbound
+ * frames just bump a timestamp on the session context; the wheel re-files a session when it finds
+ * the deadline has moved. The wheel is owned by a single thread, other threads only enqueue.
+ */
+@Service
+public class IdleSessionReaper {
+    private static final Logger logger = LoggerFactory.getLogger(IdleSessionReaper.class);
+
+    private final SessionManager sessionManager;
+    private final OutboundMessageDispatcher outboundDispatcher;
+    private final TaskScheduler closeScheduler;
+    private final ConcurrentLinkedQueue<WheelEntry> pendingEntries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger trackedSessions = new AtomicInteger();
+    private final Counter reapedCounter;
+    private final Counter pingsSent;
+    private final Timer heartbeatRtt;
+    private final Thread wheelThread;
+    private volatile boolean running = true;
+
+    private List<ArrayDeque<WheelEntry>> wheel;
+    private long tickNanos;
+    private long currentTick;
+
+    @Value("${chat.sessions.reaper.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${chat.sessions.heartbeat-interval-ms:15000}")
+    private long heartbeatIntervalMs = 15000;
+
+    @Value("${chat.sessions.idle-timeout-ms:45000}")
+    private long idleTimeoutMs = 45000;
+
+    @Value("${chat.sessions.wheel.tick-ms:100}")
+    private long tickMs = 100;
+
+    @Value("${chat.sessions.wheel.size:512}")
+    private int wheelSize = 512;
+
+    public IdleSessionReaper(SessionManager sessionManager, OutboundMessageDispatcher outboundDispatcher,
+                             @Qualifier("wsCloseScheduler") TaskScheduler closeScheduler,
+                             MeterRegistry meterRegistry) {
+        this.sessionManager = sessionManager;
+        this.outboundDispatcher = outboundDispatcher;
+        this.closeScheduler = closeScheduler;
+        this.reapedCounter = Counter.builder("chat.sessions.reaped")
+                .description("Sessions closed by the server after the idle timeout")
+                .register(meterRegistry);
+        this.pingsSent = Counter.builder("chat.ws.heartbeat.pings")
+                .register(meterRegistry);
+        this.heartbeatRtt = Timer.builder("chat.ws.heartbeat.rtt")
+                .description("Server ping to client pong round trip")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        Gauge.builder("chat.sessions.tracked", trackedSessions, AtomicInteger::get)
+                .description("Sessions on the heartbeat wheel")
+                .register(meterRegistry);
+        this.wheelThread = new Thread(this::runWheel, "Session-Reaper");
+        this.wheelThread.setDaemon(true);
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        wheel = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            wheel.add(new ArrayDeque<>());
+        }
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        wheelThread.start();
+    }
+
+    public void track(SessionContext context) {
+        if (enabled) {
+            trackedSessions.incrementAndGet();
+            pendingEntries.add(new WheelEntry(context));
+        }
+    }
+
+    // Pong payload is the System.nanoTime() the ping was sent with.
+    public void onPong(SessionContext context, PongMessage message) {
+        context.touch();
+        ByteBuffer payload = message.getPayload();
+        if (payload.remaining() == Long.BYTES) {
+            long rtt = System.nanoTime() - payload.getLong(payload.position());
+            if (rtt >= 0) {
+                heartbeatRtt.record(rtt, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void runWheel() {
+        long startNanos = System.nanoTime();
+        while (running) {
+            long nextTickAt = startNanos + (currentTick + 1) * tickNanos;
+            long sleepNanos = nextTickAt - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            currentTick++;
+            try {
+                WheelEntry added;
+                while ((added = pendingEntries.poll()) != null) {
+                    schedule(added, System.nanoTime());
+                }
+                processBucket(wheel.get((int) (currentTick % wheelSize)));
+            } catch (Exception e) {
+                logger.error("Error on heartbeat wheel tick", e);
+            }
+        }
+    }
+
+    private void processBucket(ArrayDeque<WheelEntry> bucket) {
+        long now = System.nanoTime();
+        long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        long heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatIntervalMs);
+
+        for (int i = bucket.size(); i > 0; i--) {
+            WheelEntry entry = bucket.pollFirst();
+            if (entry.deadlineTick > currentTick) {
+                bucket.addLast(entry);
+                continue;
+            }
+            SessionContext context = entry.context;
+            if (!context.isActive()) {
+                trackedSessions.decrementAndGet();
+                continue;
+            }
+            long idleNanos = now - context.getLastActivityNanos();
+            if (idleNanos >= idleTimeoutNanos) {
+                trackedSessions.decrementAndGet();
+                reap(context);
+                continue;
+            }
+            if (idleNanos >= heartbeatNanos && now - entry.lastPingNanos >= heartbeatNanos) {
+                entry.lastPingNanos = now;
+                ByteBuffer payload = ByteBuffer.allocate(Long.BYTES).putLong(0, now);
+                outboundDispatcher.send(context, new PingMessage(payload));
+                pingsSent.increment();
+            }
+            schedule(entry, now);
+        }
+    }
+
+    private void schedule(WheelEntry entry, long now) {
+        long idleDeadline = entry.context.getLastActivityNanos() + TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        long pingDeadline = Math.max(entry.context.getLastActivityNanos(), entry.lastPingNanos)
+                + TimeUnit.MILLISECONDS.toNanos(heartbeatIntervalMs);
+        long deadline = Math.min(idleDeadline, pingDeadline);
+        long ticksAway = Math.max(1, (deadline - now + tickNanos - 1) / tickNanos);
+        entry.deadlineTick = currentTick + ticksAway;
+        wheel.get((int) (entry.deadlineTick % wheelSize)).addLast(entry);
+    }
+
+    private void reap(SessionContext context) {
+        reapedCounter.increment();
+        context.markClosed();
+        WebSocketSession session = context.getSession();
+        // Leave the room and drop queued output now; the container may not notice the dead socket for minutes.
+        sessionManager.removeSession(context);
+        outboundDispatcher.unregister(session);
+        // The peer is likely gone and the close frame can block on a full send buffer, so keep it off the writers.
+        closeScheduler.schedule(() -> {
+            try {
+                session.close(CloseStatus.SESSION_NOT_RELIABLE.withReason("Idle timeout"));
+            } catch (IOException e) {
+                logger.warn("Failed to close idle session {}: {}", session.getId(), e.getMessage());
+            }
+        }, Instant.now());
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        wheelThread.interrupt();
+    }
+
+    private static final class WheelEntry {
+        private final SessionContext context;
+        private long deadlineTick;
+        private long lastPingNanos;
+
+        WheelEntry(SessionContext context) {
+            this.context = context;
+            this.lastPingNanos = context.getLastActivityNanos();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import com.chat.cs6650assignment4.model.ChatMessage;
+import com.chat.cs6650assignment4.model.QueueMessage;
+import com.chat.cs6650assignment4.protocol.BinaryFrameCodec;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.regex.Pattern;
+
+@Component
+public class InboundMessageDecoder {
+
+    private static final Pattern USERNAME_PATTERN = Pattern.compile("^[a-zA-Z0-9_]{3,20}$");
+    private static final int MAX_USER_ID = 100000;
+    private static final int MAX_MESSAGE_LENGTH = 500;
+    private static final ChatMessage.MessageType[] MESSAGE_TYPES = ChatMessage.MessageType.values();
+
+    private final ObjectMapper objectMapper;
+    private final JsonFactory jsonFactory;
+    private final Counter streamingDecodes;
+    private final Counter fallbackDecodes;
+    private final Counter binaryDecodes;
+
+    @Value("${chat.ingress.streaming-decoder.enabled:true}")
+    private boolean streamingEnabled = true;
+
+    public InboundMessageDecoder(ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.objectMapper = objectMapper;
+        // Parsers from the shared factory draw their char/token buffers from Jackson's per-thread BufferRecycler,
+        // except under virtual threads (see AppConfig).
+        this.jsonFactory = objectMapper.getFactory();
+        this.streamingDecodes = Counter.builder("chat.ingress.decode")
+                .tag("path", "streaming")
+                .register(meterRegistry);
+        this.fallbackDecodes = Counter.builder("chat.ingress.decode")
+                .tag("path", "fallback")
+                .register(meterRegistry);
+        this.binaryDecodes = Counter.builder("chat.ingress.decode")
+                .tag("path", "binary")
+                .register(meterRegistry);
+    }
+
+    public QueueMessage decode(String payload) throws IOException {
+        if (streamingEnabled) {
+            QueueMessage decoded = decodeStreaming(payload);
+            if (decoded != null) {
+                streamingDecodes.increment();
+                return decoded;
+            }
+        }
+        fallbackDecodes.increment();
+        return decodeWithObjectMapper(payload);
+    }
+
+    // Single-pass parse and validate. Returns null for anything that is not a valid frame in the
+    // canonical shape, so that the ObjectMapper path stays the authority on error messages.
+    public QueueMessage decodeStreaming(String payload) {
+        String messageId = null;
+        String userId = null;
+        String username = null;
+        String text = null;
+        String timestamp = null;
+        ChatMessage.MessageType messageType = null;
+
+        try (JsonParser parser = jsonFactory.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                if (parser.nextToken() != JsonToken.VALUE_STRING) {
+                    return null;
+                }
+                switch (field) {
+                    case "messageId" -> messageId = parser.getText();
+                    case "userId" -> {
+                        if (!isValidUserId(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength())) {
+                            return null;
+                        }
+                        userId = parser.getText();
+                    }
+                    case "username" -> {
+                        if (!isValidUsername(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength())) {
+                            return null;
+                        }
+                        username = parser.getText();
+                    }
+                    case "message" -> {
+                        int length = parser.getTextLength();
+                        if (length < 1 || length > MAX_MESSAGE_LENGTH) {
+                            return null;
+                        }
+                        text = parser.getText();
+                    }
+                    case "timestamp" -> {
+                        if (!isCanonicalInstant(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength())) {
+                            return null;
+                        }
+                        timestamp = parser.getText();
+                    }
+                    case "messageType" -> {
+                        messageType = matchMessageType(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                        if (messageType == null) {
+                            return null;
+                        }
+                    }
+                    default -> {
+                        return null;
+                    }
+                }
+            }
+            if (parser.currentToken() != JsonToken.END_OBJECT) {
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        if (messageId == null || userId == null || username == null || text == null
+                || timestamp == null || messageType == null) {
+            return null;
+        }
+
+        QueueMessage queueMessage = new QueueMessage();
+        queueMessage.setUserId(userId);
+        queueMessage.setUsername(username);
+        queueMessage.setMessage(text);
+        queueMessage.setTimestamp(timestamp);
+        queueMessage.setMessageType(messageType);
+        queueMessage.setClientMessageId(messageId);
+        return queueMessage;
+    }
+
+    public QueueMessage decodeWithObjectMapper(String payload) throws IOException {
+        ChatMessage chatMessage = objectMapper.readValue(payload, ChatMessage.class);
+        validateMessage(chatMessage.getUserId(), chatMessage.getUsername(), chatMessage.getMessage(),
+                chatMessage.getTimestamp(), chatMessage.getMessageType());
+
+        QueueMessage queueMessage = new QueueMessage();
+        queueMessage.setUserId(chatMessage.getUserId());
+        queueMessage.setUsername(chatMessage.getUsername());
+        queueMessage.setMessage(chatMessage.getMessage());
+        queueMessage.setTimestamp(chatMessage.getTimestamp());
+        queueMessage.setMessageType(chatMessage.getMessageType());
+        queueMessage.setClientMessageId(chatMessage.getMessageId());
+        return queueMessage;
+    }
+
+    public QueueMessage decodeBinary(ByteBuffer payload) {
+        QueueMessage queueMessage = BinaryFrameCodec.decodeChatMessage(payload);
+        validateMessage(queueMessage.getUserId(), queueMessage.getUsername(), queueMessage.getMessage(),
+                queueMessage.getTimestamp(), queueMessage.getMessageType());
+        binaryDecodes.increment();
+        return queueMessage;
+    }
+
+    private void validateMessage(String userId, String username, String message, String timestamp,
+                                 ChatMessage.MessageType messageType) {
+        if (userId == null) throw new IllegalArgumentException("userId is required.");
+        try {
+            int userIdInt = Integer.parseInt(userId);
+            if (userIdInt < 1 || userIdInt > MAX_USER_ID) {
+                throw new IllegalArgumentException("userId must be between 1 and 100000.");
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("userId must be a valid integer string.");
+        }
+
+        if (username == null || !USERNAME_PATTERN.matcher(username).matches()) {
+            throw new IllegalArgumentException("username must be 3-20 alphanumeric characters.");
+        }
+
+        if (message == null || message.length() < 1 || message.length() > MAX_MESSAGE_LENGTH) {
+            throw new IllegalArgumentException("message must be between 1 and 500 characters.");
+        }
+
+        if (timestamp == null) throw new IllegalArgumentException("timestamp is required.");
+        try {
+            Instant.parse(timestamp);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("timestamp must be a valid ISO-8601 timestamp.");
+        }
+
+        if (messageType == null) {
+            throw new IllegalArgumentException("messageType must be TEXT, JOIN, or LEAVE.");
+        }
+    }
+
+    private static boolean isValidUserId(char[] buf, int offset, int length) {
+        if (length < 1 || length > 6) {
+            return false;
+        }
+        int value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            char c = buf[i];
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value >= 1 && value <= MAX_USER_ID;
+    }
+
+    private static boolean isValidUsername(char[] buf, int offset, int length) {
+        if (length < 3 || length > 20) {
+            return false;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            char c = buf[i];
+            boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+            if (!ok) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ChatMessage.MessageType matchMessageType(char[] buf, int offset, int length) {
+        for (ChatMessage.MessageType type : MESSAGE_TYPES) {
+            String name = type.name();
+            if (name.length() != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && name.charAt(i) == buf[offset + i]) {
+                i++;
+            }
+            if (i == length) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    // Accepts exactly what Instant.toString() produces: yyyy-MM-ddTHH:mm:ss[.fraction]Z with a four-digit year.
+    private static boolean isCanonicalInstant(char[] buf, int offset, int length) {
+        if (length < 20 || length > 30) {
+            return false;
+        }
+        int year = digits(buf, offset, 4);
+        int month = digits(buf, offset + 5, 2);
+        int day = digits(buf, offset + 8, 2);
+        int hour = digits(buf, offset + 11, 2);
+        int minute = digits(buf, offset + 14, 2);
+        int second = digits(buf, offset + 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return false;
+        }
+        if (buf[offset + 4] != '-' || buf[offset + 7] != '-' || buf[offset + 10] != 'T'
+                || buf[offset + 13] != ':' || buf[offset + 16] != ':' || buf[offset + length - 1] != 'Z') {
+            return false;
+        }
+        int fractionLength = length - 21;
+        if (fractionLength == -1) {
+            return true;
+        }
+        if (fractionLength < 1 || buf[offset + 19] != '.') {
+            return false;
+        }
+        return digits(buf, offset + 20, fractionLength) >= 0;
+    }
+
+    private static int digits(char[] buf, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            char c = buf[i];
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        return switch (month) {
+            case 2 -> (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4, 6, 9, 11 -> 30;
+            default -> 31;
+        };
+    }
+}
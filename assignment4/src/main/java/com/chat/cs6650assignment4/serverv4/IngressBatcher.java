@@ -0,0 +1,48 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import com.chat.cs6650assignment4.model.QueueMessage;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/*
+ * Groups inbound QueueMessages per room into one AMQP publish. A room's batch is published when it
+ * reaches max-messages or when linger-ms has passed since its first message, whichever comes first.
+ * Each caller gets a future that completes with the publish (or its broker confirm) of the batch it
+ * landed in, so per-message acks to the client keep their meaning.
+ *
+ * Batches are published on ingressPublishPool (see LingerBatcher), so neither the WebSocket threads nor
+ * the linger scheduler wait on the broker, and at most max-pending of a room's batches wait to go out.
+ */
+@Service
+public class IngressBatcher {
+
+    private final boolean enabled;
+    private final LingerBatcher<QueueMessage> batcher;
+
+    public IngressBatcher(RabbitMQProducerService producerService,
+                          @Qualifier("ingressBatchScheduler") TaskScheduler scheduler,
+                          @Qualifier("ingressPublishPool") Executor publishPool,
+                          MeterRegistry meterRegistry,
+                          @Value("${chat.ingress.batch.enabled:false}") boolean enabled,
+                          @Value("${chat.ingress.batch.max-messages:50}") int maxMessages,
+                          @Value("${chat.ingress.batch.linger-ms:2}") long lingerMs,
+                          @Value("${chat.ingress.batch.max-pending:64}") int maxPending) {
+        this.enabled = enabled;
+        this.batcher = new LingerBatcher<>("chat.ingress.batch", producerService::publishBatch, scheduler,
+                publishPool, maxMessages, lingerMs, maxPending, meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public CompletableFuture<Void> submit(QueueMessage message) {
+        return batcher.add(message.getRoomId(), message);
+    }
+}
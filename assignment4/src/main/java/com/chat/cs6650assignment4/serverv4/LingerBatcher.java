@@ -0,0 +1,280 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.amqp.AmqpException;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+
+/*
+ * Groups items per key (a room) and hands them to the publisher as one batch when the key reaches maxItems
+ * or lingerMs after its first item, whichever comes first. Every add returns a future that completes with
+ * the publish of the batch the item landed in, or fails with it; a batch's futures complete in add order.
+ *
+ * A flush only takes the batch; the publish runs on publishPool, outside the key's lock, so neither the
+ * adding threads nor the linger scheduler wait on it. Each key drains its flushed batches one at a time, in
+ * flush order, and at most maxPending of them wait: past that, new batches fail at once.
+ *
+ * A key's state is dropped once it has been idle for IDLE_EVICT_MS with nothing buffered or in flight, so
+ * the map only holds recently active rooms. An add that races the eviction retries on a fresh entry.
+ */
+public class LingerBatcher<T> {
+
+    // Batches a drain publishes before handing its thread to other keys.
+    private static final int DRAIN_BURST = 16;
+    private static final long IDLE_EVICT_MS = 60_000;
+
+    private final BiFunction<String, List<T>, CompletableFuture<Void>> publisher;
+    private final TaskScheduler scheduler;
+    private final Executor publishPool;
+    private final int maxItems;
+    private final long lingerMs;
+    private final int maxPending;
+    private final ConcurrentHashMap<String, KeyBatch> batches = new ConcurrentHashMap<>();
+
+    private final DistributionSummary batchFill;
+    private final Timer lingerTimer;
+    private final Counter sizeFlushes;
+    private final Counter lingerFlushes;
+    private final Counter backlogRejections;
+
+    // Meters are registered as <name>.size, .linger, .flushes{reason}, .rejected and .keys.
+    public LingerBatcher(String name, BiFunction<String, List<T>, CompletableFuture<Void>> publisher,
+                         TaskScheduler scheduler, Executor publishPool, int maxItems, long lingerMs, int maxPending,
+                         MeterRegistry meterRegistry) {
+        this.publisher = publisher;
+        this.scheduler = scheduler;
+        this.publishPool = publishPool;
+        this.maxItems = Math.max(1, maxItems);
+        this.lingerMs = Math.max(1, lingerMs);
+        this.maxPending = Math.max(1, maxPending);
+        this.batchFill = DistributionSummary.builder(name + ".size")
+                .description("Items per published batch")
+                .publishPercentiles(0.5, 0.95)
+                .register(meterRegistry);
+        this.lingerTimer = Timer.builder(name + ".linger")
+                .description("Time from a batch's first item to its publish")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        this.sizeFlushes = Counter.builder(name + ".flushes")
+                .tag("reason", "size")
+                .register(meterRegistry);
+        this.lingerFlushes = Counter.builder(name + ".flushes")
+                .tag("reason", "linger")
+                .register(meterRegistry);
+        this.backlogRejections = Counter.builder(name + ".rejected")
+                .description("Batches failed because their key already had max-pending batches waiting to publish")
+                .register(meterRegistry);
+        Gauge.builder(name + ".keys", batches, ConcurrentHashMap::size)
+                .description("Keys with batching state held")
+                .register(meterRegistry);
+        scheduler.scheduleAtFixedRate(this::evictIdle, Duration.ofMillis(IDLE_EVICT_MS));
+    }
+
+    public CompletableFuture<Void> add(String key, T item) {
+        while (true) {
+            CompletableFuture<Void> future = batches.computeIfAbsent(key, KeyBatch::new).add(item);
+            if (future != null) {
+                return future;
+            }
+        }
+    }
+
+    // Flushes every key without waiting for its linger. The returned future completes once every batch
+    // flushed so far has been published.
+    public CompletableFuture<Void> flushAll() {
+        List<CompletableFuture<Void>> published = new ArrayList<>();
+        for (KeyBatch batch : batches.values()) {
+            published.add(batch.flushNow());
+        }
+        return CompletableFuture.allOf(published.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private void evictIdle() {
+        long idleSince = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(IDLE_EVICT_MS);
+        batches.values().forEach(batch -> batch.retireIfIdle(idleSince));
+    }
+
+    private final class KeyBatch {
+        private final String key;
+        private final ReentrantLock lock = new ReentrantLock();
+        private List<T> items = new ArrayList<>();
+        private List<CompletableFuture<Void>> futures = new ArrayList<>();
+        private long firstItemNanos;
+        private long generation;
+        // Flushed batches not yet handed to the publisher, oldest first, and whether a drain owns them.
+        private final ArrayDeque<PendingBatch<T>> outbox = new ArrayDeque<>();
+        private boolean draining;
+        // The last future of the last batch flushed; futures complete in order, so it completes last.
+        private CompletableFuture<Void> lastFlushed = CompletableFuture.completedFuture(null);
+        private long lastAddNanos = System.nanoTime();
+        // Set under the lock when the entry leaves the map; adds that still find it go to a new one.
+        private boolean retired;
+
+        KeyBatch(String key) {
+            this.key = key;
+        }
+
+        // Returns null if the entry was retired, without taking the item.
+        CompletableFuture<Void> add(T item) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            lock.lock();
+            try {
+                if (retired) {
+                    return null;
+                }
+                lastAddNanos = System.nanoTime();
+                items.add(item);
+                futures.add(future);
+                if (items.size() == 1) {
+                    firstItemNanos = System.nanoTime();
+                    long expected = generation;
+                    scheduler.schedule(() -> flushIfCurrent(expected), Instant.now().plus(Duration.ofMillis(lingerMs)));
+                }
+                if (items.size() >= maxItems) {
+                    sizeFlushes.increment();
+                    flushLocked();
+                }
+            } finally {
+                lock.unlock();
+            }
+            return future;
+        }
+
+        private void flushIfCurrent(long expectedGeneration) {
+            lock.lock();
+            try {
+                // A linger timer from a batch that already went out on size must not cut the next one short.
+                if (expectedGeneration == generation && !items.isEmpty()) {
+                    lingerFlushes.increment();
+                    flushLocked();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void retireIfIdle(long idleSince) {
+            if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                if (lastAddNanos - idleSince < 0 && items.isEmpty() && outbox.isEmpty() && !draining
+                        && lastFlushed.isDone()) {
+                    retired = true;
+                    batches.remove(key, this);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        CompletableFuture<Void> flushNow() {
+            lock.lock();
+            try {
+                if (!items.isEmpty()) {
+                    flushLocked();
+                }
+                return lastFlushed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void flushLocked() {
+            List<T> batch = items;
+            List<CompletableFuture<Void>> waiting = futures;
+            items = new ArrayList<>(maxItems);
+            futures = new ArrayList<>(maxItems);
+            generation++;
+            lastFlushed = waiting.get(waiting.size() - 1);
+
+            batchFill.record(batch.size());
+            lingerTimer.record(System.nanoTime() - firstItemNanos, TimeUnit.NANOSECONDS);
+
+            if (outbox.size() >= maxPending) {
+                backlogRejections.increment();
+                complete(waiting, new AmqpException("Publish backlog full for room " + key));
+                return;
+            }
+            outbox.addLast(new PendingBatch<>(batch, waiting));
+            if (!draining) {
+                draining = true;
+                schedule();
+            }
+        }
+
+        // Caller holds the lock and has set draining.
+        private void schedule() {
+            try {
+                publishPool.execute(this::drain);
+            } catch (TaskRejectedException e) {
+                draining = false;
+                PendingBatch<T> rejected;
+                while ((rejected = outbox.pollFirst()) != null) {
+                    complete(rejected.futures(), e);
+                }
+            }
+        }
+
+        private void drain() {
+            for (int published = 0; ; published++) {
+                PendingBatch<T> next;
+                lock.lock();
+                try {
+                    next = outbox.pollFirst();
+                    if (next == null) {
+                        draining = false;
+                        return;
+                    }
+                    if (published == DRAIN_BURST) {
+                        outbox.addFirst(next);
+                        schedule();
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                publish(next);
+            }
+        }
+
+        private void publish(PendingBatch<T> batch) {
+            CompletableFuture<Void> published;
+            try {
+                published = publisher.apply(key, batch.items());
+            } catch (RuntimeException e) {
+                published = CompletableFuture.failedFuture(e);
+            }
+            published.whenComplete((ignored, ex) -> complete(batch.futures(), ex));
+        }
+    }
+
+    private static void complete(List<CompletableFuture<Void>> futures, Throwable ex) {
+        for (CompletableFuture<Void> future : futures) {
+            if (ex == null) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(ex);
+            }
+        }
+    }
+
+    private record PendingBatch<T>(List<T> items, List<CompletableFuture<Void>> futures) {
+    }
+}
@@ -0,0 +1,98 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * N single-threaded lanes with bounded queues. Work with the same key always runs on the same lane, in
+ * submission order; different keys run in parallel. A full lane blocks the submitter instead of
+ * rejecting or running the task inline, either of which would break the per-key order.
+ */
+public class OrderedLanes {
+    private static final Logger logger = LoggerFactory.getLogger(OrderedLanes.class);
+
+    private final Lane[] lanes;
+
+    public OrderedLanes(String name, int laneCount, int capacity, MeterRegistry meterRegistry) {
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            Lane lane = new Lane(capacity);
+            String tag = String.valueOf(i);
+            Gauge.builder(name + ".backlog", lane.queue, BlockingQueue::size)
+                    .description("Tasks waiting on the lane")
+                    .tag("lane", tag)
+                    .register(meterRegistry);
+            // rate() of this is the lane's utilization: seconds busy per second.
+            FunctionCounter.builder(name + ".busy", lane.busyNanos, n -> n.get() / 1e9)
+                    .description("Time the lane spent running tasks")
+                    .baseUnit("seconds")
+                    .tag("lane", tag)
+                    .register(meterRegistry);
+            FunctionCounter.builder(name + ".processed", lane.processed, AtomicLong::get)
+                    .tag("lane", tag)
+                    .register(meterRegistry);
+            lane.thread = new Thread(lane::run, name + "-lane-" + i);
+            lane.thread.setDaemon(true);
+            lane.thread.start();
+            lanes[i] = lane;
+        }
+    }
+
+    public int laneFor(String key) {
+        return key == null ? 0 : Math.floorMod(key.hashCode(), lanes.length);
+    }
+
+    public void execute(String key, Runnable task) throws InterruptedException {
+        lanes[laneFor(key)].queue.put(task);
+    }
+
+    public void shutdown() {
+        for (Lane lane : lanes) {
+            lane.running = false;
+            lane.thread.interrupt();
+        }
+    }
+
+    private static final class Lane {
+        private final BlockingQueue<Runnable> queue;
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicLong processed = new AtomicLong();
+        private volatile boolean running = true;
+        private Thread thread;
+
+        Lane(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        void run() {
+            while (running) {
+                Runnable task;
+                try {
+                    task = queue.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task == null) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    logger.error("Task failed on {}", Thread.currentThread().getName(), e);
+                } finally {
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                    processed.incrementAndGet();
+                }
+            }
+        }
+    }
+}
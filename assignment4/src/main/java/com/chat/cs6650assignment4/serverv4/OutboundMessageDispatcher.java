@@ -0,0 +1,193 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import com.chat.cs6650assignment4.monitoring.PipelineTracer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.websocket.Session;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Service
+public class OutboundMessageDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(OutboundMessageDispatcher.class);
+    // Tomcat's per-session limit on a blocking write; the write fails with an IOException once it passes.
+    private static final String BLOCKING_SEND_TIMEOUT = "org.apache.tomcat.websocket.BLOCKING_SEND_TIMEOUT";
+
+    private final Executor writerPool;
+    private final TaskScheduler closeScheduler;
+    private final PipelineTracer pipelineTracer;
+    private final ConcurrentHashMap<String, SessionOutboundQueue> queues = new ConcurrentHashMap<>();
+
+    private final AtomicLong queuedMessages = new AtomicLong();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final Counter droppedCounter;
+    private final Counter evictionCounter;
+    private final Counter sendTimeoutCounter;
+    private final Counter jsonBytesOut;
+    private final Counter binaryBytesOut;
+
+    @Value("${chat.outbound.max-messages:1000}")
+    private int maxMessages;
+
+    @Value("${chat.outbound.max-bytes:1048576}")
+    private long maxBytes;
+
+    @Value("${chat.outbound.overflow-policy:DROP_OLDEST}")
+    private OutboundOverflowPolicy overflowPolicy;
+
+    @Value("${chat.outbound.block-timeout-ms:50}")
+    private long blockTimeoutMs;
+
+    // Longest a single write may block a writer thread before the session is evicted.
+    @Value("${chat.outbound.send-time-limit-ms:5000}")
+    private long sendTimeLimitMs = 5000;
+
+    public OutboundMessageDispatcher(@Qualifier("wsWriterPool") Executor writerPool,
+                                     @Qualifier("wsCloseScheduler") TaskScheduler closeScheduler,
+                                     PipelineTracer pipelineTracer, MeterRegistry meterRegistry) {
+        this.writerPool = writerPool;
+        this.closeScheduler = closeScheduler;
+        this.pipelineTracer = pipelineTracer;
+
+        Gauge.builder("chat.outbound.queued.messages", queuedMessages, AtomicLong::get)
+                .description("Messages waiting in per-session outbound queues")
+                .register(meterRegistry);
+        Gauge.builder("chat.outbound.queued.bytes", queuedBytes, AtomicLong::get)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("chat.outbound.queue.depth.max", queues, OutboundMessageDispatcher::maxDepth)
+                .description("Deepest per-session outbound queue")
+                .register(meterRegistry);
+        this.droppedCounter = Counter.builder("chat.outbound.dropped")
+                .description("Messages dropped from full outbound queues")
+                .register(meterRegistry);
+        this.evictionCounter = Counter.builder("chat.outbound.slow-client.evictions")
+                .description("Sessions disconnected because their outbound queue overflowed")
+                .register(meterRegistry);
+        this.sendTimeoutCounter = Counter.builder("chat.outbound.send-timeouts")
+                .description("Sessions evicted because one write blocked past the send time limit")
+                .register(meterRegistry);
+        this.jsonBytesOut = Counter.builder("chat.outbound.bytes")
+                .tag("encoding", "json")
+                .register(meterRegistry);
+        this.binaryBytesOut = Counter.builder("chat.outbound.bytes")
+                .tag("encoding", "binary")
+                .register(meterRegistry);
+    }
+
+    // The watchdog covers containers that ignore the blocking send timeout: the stuck writer thread stays
+    // stuck, but the session is evicted and closed from the close scheduler, and its queue stops growing.
+    @PostConstruct
+    public void init() {
+        closeScheduler.scheduleAtFixedRate(this::evictStuckSends, Duration.ofMillis(Math.max(50, sendTimeLimitMs / 4)));
+    }
+
+    public SessionOutboundQueue register(WebSocketSession session) {
+        if (session instanceof NativeWebSocketSession nativeSession
+                && nativeSession.getNativeSession(Session.class) != null) {
+            nativeSession.getNativeSession(Session.class).getUserProperties().put(BLOCKING_SEND_TIMEOUT, sendTimeLimitMs);
+        }
+        SessionOutboundQueue queue = new SessionOutboundQueue(session, this, maxMessages, maxBytes,
+                overflowPolicy, TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs));
+        queues.put(session.getId(), queue);
+        return queue;
+    }
+
+    public void unregister(WebSocketSession session) {
+        SessionOutboundQueue queue = queues.remove(session.getId());
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    public boolean send(WebSocketSession session, WebSocketMessage<?> message) {
+        SessionOutboundQueue queue = queues.get(session.getId());
+        return queue != null && queue.offer(message);
+    }
+
+    public boolean send(SessionContext context, WebSocketMessage<?> message) {
+        return context.getOutboundQueue().offer(message);
+    }
+
+    void scheduleDrain(SessionOutboundQueue queue) {
+        writerPool.execute(queue::drain);
+    }
+
+    void onEnqueued(int bytes) {
+        queuedMessages.incrementAndGet();
+        queuedBytes.addAndGet(bytes);
+    }
+
+    void onDequeued(int bytes) {
+        queuedMessages.decrementAndGet();
+        queuedBytes.addAndGet(-bytes);
+    }
+
+    void onWritten(WebSocketMessage<?> message, int bytes) {
+        if (message instanceof BinaryMessage) {
+            binaryBytesOut.increment(bytes);
+        } else if (message instanceof TextMessage) {
+            jsonBytesOut.increment(bytes);
+        }
+        pipelineTracer.frameWritten(message);
+    }
+
+    void onDropped(int bytes) {
+        onDequeued(bytes);
+        droppedCounter.increment();
+    }
+
+    void evict(SessionOutboundQueue queue) {
+        evictionCounter.increment();
+        WebSocketSession session = queue.getSession();
+        queues.remove(session.getId(), queue);
+        // Closing can block on the same stuck socket, so it runs on neither the producing thread nor a writer.
+        closeScheduler.schedule(() -> {
+            try {
+                session.close(CloseStatus.SESSION_NOT_RELIABLE.withReason("Outbound queue overflow"));
+            } catch (IOException e) {
+                logger.warn("Failed to close slow session {}: {}", session.getId(), e.getMessage());
+            }
+        }, Instant.now());
+    }
+
+    private void evictStuckSends() {
+        long now = System.nanoTime();
+        long limit = TimeUnit.MILLISECONDS.toNanos(sendTimeLimitMs);
+        for (SessionOutboundQueue queue : queues.values()) {
+            if (queue.sendingForNanos(now) > limit && queue.evict()) {
+                sendTimeoutCounter.increment();
+                logger.warn("Evicting session {}: a write has been blocked for over {} ms",
+                        queue.getSession().getId(), sendTimeLimitMs);
+            }
+        }
+    }
+
+    private static double maxDepth(ConcurrentHashMap<String, SessionOutboundQueue> queues) {
+        int max = 0;
+        for (SessionOutboundQueue queue : queues.values()) {
+            max = Math.max(max, queue.size());
+        }
+        return max;
+    }
+}
@@ -0,0 +1,7 @@
+package com.chat.cs6650assignment4.serverv4;
+
+public enum OutboundOverflowPolicy {
+    DROP_OLDEST,
+    DISCONNECT,
+    BLOCK
+}
@@ -0,0 +1,131 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import com.chat.cs6650assignment4.protocol.BinaryFrameCodec;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/*
+ * Tomcat negotiates permessage-deflate itself, straight from the request's Sec-WebSocket-Extensions
+ * header, and exposes no configuration for it. This filter rewrites the client's offer before the
+ * upgrade: it can withdraw the offer entirely, or add the no_context_takeover parameters so Tomcat
+ * resets the compression context after every message (RFC 7692 lets the server add both). Rooms whose
+ * configured level is 0 never negotiate compression, and neither does a client offering chat.bin.deflate.v1:
+ * that subprotocol is preferred and compresses its frames itself, so the extension would deflate them twice.
+ */
+public class PerMessageDeflateFilter extends OncePerRequestFilter {
+
+    private static final String EXTENSIONS_HEADER = "Sec-WebSocket-Extensions";
+    private static final String PROTOCOL_HEADER = "Sec-WebSocket-Protocol";
+    private static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+
+    private final FrameCompressionService compressionService;
+    private final boolean serverContextTakeover;
+    private final boolean clientContextTakeover;
+
+    public PerMessageDeflateFilter(FrameCompressionService compressionService, boolean serverContextTakeover,
+                                   boolean clientContextTakeover) {
+        this.compressionService = compressionService;
+        this.serverContextTakeover = serverContextTakeover;
+        this.clientContextTakeover = clientContextTakeover;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        if (request.getHeader(EXTENSIONS_HEADER) == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        boolean enabled = compressionService.isEnabledForRoom(roomIdOf(request.getRequestURI()))
+                && !offersDeflateSubprotocol(request);
+        List<String> offers = new ArrayList<>();
+        Enumeration<String> headers = request.getHeaders(EXTENSIONS_HEADER);
+        while (headers.hasMoreElements()) {
+            for (String offer : headers.nextElement().split(",")) {
+                String rewritten = rewriteOffer(offer.trim(), enabled);
+                if (rewritten != null) {
+                    offers.add(rewritten);
+                }
+            }
+        }
+        filterChain.doFilter(new ExtensionOfferRequest(request, offers), response);
+    }
+
+    private String rewriteOffer(String offer, boolean enabled) {
+        if (offer.isEmpty()) {
+            return null;
+        }
+        String name = offer.split(";", 2)[0].trim();
+        if (!PERMESSAGE_DEFLATE.equalsIgnoreCase(name)) {
+            return offer;
+        }
+        if (!enabled) {
+            return null;
+        }
+        StringBuilder rewritten = new StringBuilder(offer);
+        if (!serverContextTakeover && !offer.contains(SERVER_NO_CONTEXT_TAKEOVER)) {
+            rewritten.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+        }
+        if (!clientContextTakeover && !offer.contains(CLIENT_NO_CONTEXT_TAKEOVER)) {
+            rewritten.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+        }
+        return rewritten.toString();
+    }
+
+    private static boolean offersDeflateSubprotocol(HttpServletRequest request) {
+        Enumeration<String> headers = request.getHeaders(PROTOCOL_HEADER);
+        while (headers.hasMoreElements()) {
+            for (String protocol : headers.nextElement().split(",")) {
+                if (BinaryFrameCodec.DEFLATE_SUBPROTOCOL.equals(protocol.trim())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String roomIdOf(String path) {
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash == -1 || lastSlash == path.length() - 1) {
+            return null;
+        }
+        return path.substring(lastSlash + 1);
+    }
+
+    private static class ExtensionOfferRequest extends HttpServletRequestWrapper {
+        private final List<String> offers;
+
+        ExtensionOfferRequest(HttpServletRequest request, List<String> offers) {
+            super(request);
+            this.offers = offers;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            if (EXTENSIONS_HEADER.equalsIgnoreCase(name)) {
+                return offers.isEmpty() ? null : String.join(", ", offers);
+            }
+            return super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            if (EXTENSIONS_HEADER.equalsIgnoreCase(name)) {
+                return Collections.enumeration(offers);
+            }
+            return super.getHeaders(name);
+        }
+    }
+}
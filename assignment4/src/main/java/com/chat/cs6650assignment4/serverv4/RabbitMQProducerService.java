@@ -1,20 +1,84 @@
 package com.chat.cs6650assignment4.serverv4;
 
+import com.chat.cs6650assignment4.bus.MessageBus;
 import com.chat.cs6650assignment4.config.RabbitMQConfig;
+import com.chat.cs6650assignment4.config.RoomSharding;
 import com.chat.cs6650assignment4.model.QueueMessage;
+import com.chat.cs6650assignment4.monitoring.PipelineTracer;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.amqp.AmqpConnectException;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.retry.annotation.CircuitBreaker;
 import org.springframework.retry.annotation.Recover;
 import org.springframework.stereotype.Service;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 @Service
 public class RabbitMQProducerService {
+    private static final Logger logger = LoggerFactory.getLogger(RabbitMQProducerService.class);
+
+    private final MessageBus messageBus;
+    private final ObjectMapper objectMapper;
+    private final PipelineTracer pipelineTracer;
+    private final RoomSharding roomSharding;
+
+    private final AtomicInteger outstandingConfirms = new AtomicInteger();
+    private final Timer confirmLatencyTimer;
+    private final Counter nackCounter;
+
+    @Value("${chat.publisher.confirm-mode.enabled:false}")
+    private boolean confirmModeEnabled;
 
-    private final RabbitTemplate rabbitTemplate;
+    @Value("${chat.publisher.confirm-timeout-ms:5000}")
+    private long confirmTimeoutMs;
 
-    public RabbitMQProducerService(RabbitTemplate rabbitTemplate) {
-        this.rabbitTemplate = rabbitTemplate;
+    public RabbitMQProducerService(MessageBus messageBus,
+                                   ObjectMapper objectMapper,
+                                   PipelineTracer pipelineTracer,
+                                   RoomSharding roomSharding,
+                                   MeterRegistry meterRegistry) {
+        this.messageBus = messageBus;
+        this.objectMapper = objectMapper;
+        this.pipelineTracer = pipelineTracer;
+        this.roomSharding = roomSharding;
+
+        Gauge.builder("chat.publish.confirms.outstanding", outstandingConfirms, AtomicInteger::get)
+                .description("Publishes waiting for a broker confirm")
+                .register(meterRegistry);
+        this.confirmLatencyTimer = Timer.builder("chat.publish.confirm.latency")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        this.nackCounter = Counter.builder("chat.publish.nacks")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        if (confirmModeEnabled && !messageBus.supportsConfirms()) {
+            logger.warn("chat.publisher.confirm-mode.enabled is set but spring.rabbitmq.publisher-confirm-type "
+                    + "is not 'correlated'; falling back to synchronous publishing.");
+            confirmModeEnabled = false;
+        }
+    }
+
+    public boolean isConfirmModeEnabled() {
+        return confirmModeEnabled;
     }
 
     @CircuitBreaker(
@@ -24,14 +88,108 @@ public class RabbitMQProducerService {
             resetTimeout = 20000L
     )
     public void publishMessage(QueueMessage message) {
-        String routingKey = RabbitMQConfig.ROUTING_KEY_PREFIX + message.getRoomId();
-        rabbitTemplate.convertAndSend(RabbitMQConfig.TOPIC_EXCHANGE_NAME, routingKey, message);
+        String routingKey = roomSharding.routingKey(message.getRoomId());
+        pipelineTracer.published(message);
+        messageBus.publish(routingKey, toMessage(message, null));
+    }
+
+    public CompletableFuture<Void> publishMessageConfirmed(QueueMessage message) {
+        String routingKey = roomSharding.routingKey(message.getRoomId());
+        Message amqpMessage;
+        try {
+            amqpMessage = toMessage(message, null);
+        } catch (AmqpException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        pipelineTracer.published(message);
+        return awaitConfirm(message.getMessageId(),
+                messageBus.publishConfirmed(routingKey, amqpMessage, message.getMessageId()));
+    }
+
+    // One bus message for a room's messages: the plain message for one, a batch envelope for several, confirmed
+    // as a unit in confirm mode. A single attempt with no retry back-off, so the calling thread is never held;
+    // connection failures count towards the circuit breaker, and while it is open the publish fails at once.
+    @CircuitBreaker(
+            include = {AmqpConnectException.class},
+            maxAttempts = 3,
+            openTimeout = 5000L,
+            resetTimeout = 20000L
+    )
+    public CompletableFuture<Void> publishBatch(String roomId, List<QueueMessage> messages) {
+        String routingKey = roomSharding.routingKey(roomId);
+        if (pipelineTracer.isEnabled()) {
+            messages.forEach(pipelineTracer::published);
+        }
+        boolean single = messages.size() == 1;
+        Message amqpMessage;
+        try {
+            amqpMessage = single ? toMessage(messages.get(0), null) : toMessage(messages, messages.size());
+        } catch (AmqpException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        if (!confirmModeEnabled) {
+            messageBus.publishOnce(routingKey, amqpMessage);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        String id = single ? messages.get(0).getMessageId() : "batch-" + messages.get(0).getMessageId();
+        CompletableFuture<Void> confirm = messageBus.publishConfirmed(routingKey, amqpMessage, id);
+        // A send that never reached the broker has failed already; throw it so the breaker counts it.
+        if (confirm.isCompletedExceptionally()) {
+            Throwable cause = confirm.exceptionNow();
+            if (cause instanceof CompletionException) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof AmqpConnectException connectException) {
+                throw connectException;
+            }
+        }
+        return awaitConfirm(id, confirm);
+    }
+
+    // JSON body of one QueueMessage, or of a list of them with the batch size header set.
+    private Message toMessage(Object payload, Integer batchSize) {
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+        if (batchSize != null) {
+            properties.setHeader(RabbitMQConfig.BATCH_SIZE_HEADER, batchSize);
+        }
+        try {
+            return new Message(objectMapper.writeValueAsBytes(payload), properties);
+        } catch (JsonProcessingException e) {
+            throw new AmqpException("Cannot serialize " + payload.getClass().getSimpleName(), e);
+        }
+    }
+
+    private CompletableFuture<Void> awaitConfirm(String id, CompletableFuture<Void> confirm) {
+        long start = System.nanoTime();
+        outstandingConfirms.incrementAndGet();
+
+        return confirm
+                .orTimeout(confirmTimeoutMs, TimeUnit.MILLISECONDS)
+                .handle((ignored, ex) -> {
+                    outstandingConfirms.decrementAndGet();
+                    confirmLatencyTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    if (ex != null) {
+                        nackCounter.increment();
+                        Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+                        // A NACK or a failed send is already an AmqpException; a timeout is not.
+                        throw cause instanceof AmqpException amqp ? amqp : new AmqpException("No broker confirm for " + id, cause);
+                    }
+                    return null;
+                });
     }
 
     public void fallbackPublish(QueueMessage message, Throwable t) {
         System.err.println("Failed to publish message to RabbitMQ: " + t.getMessage());
     }
 
+    @Recover
+    public CompletableFuture<Void> recoverBatch(AmqpConnectException e, String roomId, List<QueueMessage> messages) {
+        return CompletableFuture.failedFuture(e);
+    }
+
     @Recover
     public void recover(AmqpConnectException e, QueueMessage message) {
         System.err.println("Circuit breaker is open. Failed to publish message to RabbitMQ: " + message.getMessageId());
@@ -0,0 +1,141 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import com.chat.cs6650assignment4.bus.MessageBus;
+import com.chat.cs6650assignment4.config.RabbitMQConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.AnonymousQueue;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.DirectExchange;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * In "room" broadcast routing, this node's broadcast queue is bound to the room exchange only for rooms
+ * that have a local session. Membership changes just schedule a reconcile of that room on a single
+ * thread, which compares "has sessions" with "is bound" and fixes the difference, so bursts of joins and
+ * leaves collapse and the broker calls never run on a WebSocket thread. Unbinding waits a grace period
+ * so a user reconnecting to an otherwise empty room does not cost two broker round trips.
+ */
+@Service
+@ConditionalOnProperty(name = MessageBus.TYPE_PROPERTY, havingValue = MessageBus.RABBITMQ, matchIfMissing = true)
+public class RoomBindingManager implements RoomMembershipListener {
+    private static final Logger logger = LoggerFactory.getLogger(RoomBindingManager.class);
+
+    private final SessionManager sessionManager;
+    private final RabbitAdmin rabbitAdmin;
+    private final ConnectionFactory connectionFactory;
+    private final AnonymousQueue broadcastQueue;
+    private final DirectExchange roomExchange;
+    private final TaskScheduler scheduler;
+    private final Set<String> boundRooms = ConcurrentHashMap.newKeySet();
+    private final Counter binds;
+    private final Counter unbinds;
+
+    @Value("${chat.broadcast.routing:fanout}")
+    private String routing = "fanout";
+
+    @Value("${chat.broadcast.unbind-delay-ms:5000}")
+    private long unbindDelayMs = 5000;
+
+    @Value("${chat.broadcast.bind-retry-ms:1000}")
+    private long bindRetryMs = 1000;
+
+    public RoomBindingManager(SessionManager sessionManager, RabbitAdmin rabbitAdmin,
+                              ConnectionFactory connectionFactory, AnonymousQueue serverBroadcastQueue,
+                              DirectExchange roomBroadcastExchange,
+                              @Qualifier("roomBindingScheduler") TaskScheduler scheduler, MeterRegistry meterRegistry) {
+        this.sessionManager = sessionManager;
+        this.rabbitAdmin = rabbitAdmin;
+        this.connectionFactory = connectionFactory;
+        this.broadcastQueue = serverBroadcastQueue;
+        this.roomExchange = roomBroadcastExchange;
+        this.scheduler = scheduler;
+        this.binds = Counter.builder("chat.broadcast.bindings")
+                .tag("action", "bind")
+                .register(meterRegistry);
+        this.unbinds = Counter.builder("chat.broadcast.bindings")
+                .tag("action", "unbind")
+                .register(meterRegistry);
+        Gauge.builder("chat.broadcast.bound-rooms", boundRooms, Set::size)
+                .description("Rooms this node's broadcast queue is bound to")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!isRoomRouting()) {
+            return;
+        }
+        sessionManager.addMembershipListener(this);
+        // The broadcast queue is exclusive, so a new connection means a new queue with no room bindings.
+        connectionFactory.addConnectionListener(connection -> scheduler.schedule(this::rebindAll, Instant.now()));
+    }
+
+    public boolean isRoomRouting() {
+        return RabbitMQConfig.BROADCAST_ROUTING_ROOM.equalsIgnoreCase(routing);
+    }
+
+    @Override
+    public void roomOccupied(String roomId) {
+        scheduler.schedule(() -> reconcile(roomId), Instant.now());
+    }
+
+    @Override
+    public void roomVacated(String roomId) {
+        scheduler.schedule(() -> reconcile(roomId), Instant.now().plus(Duration.ofMillis(unbindDelayMs)));
+    }
+
+    private void reconcile(String roomId) {
+        boolean occupied = sessionManager.getSessions(roomId).length > 0;
+        boolean bound = boundRooms.contains(roomId);
+        if (occupied == bound) {
+            return;
+        }
+        try {
+            if (occupied) {
+                rabbitAdmin.declareBinding(bindingFor(roomId));
+                boundRooms.add(roomId);
+                binds.increment();
+            } else {
+                rabbitAdmin.removeBinding(bindingFor(roomId));
+                boundRooms.remove(roomId);
+                unbinds.increment();
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to {} room {} on the broadcast queue, retrying: {}",
+                    occupied ? "bind" : "unbind", roomId, e.getMessage());
+            scheduler.schedule(() -> reconcile(roomId), Instant.now().plus(Duration.ofMillis(bindRetryMs)));
+        }
+    }
+
+    private void rebindAll() {
+        List<String> rooms = new ArrayList<>(boundRooms);
+        boundRooms.clear();
+        for (String roomId : rooms) {
+            reconcile(roomId);
+        }
+    }
+
+    private Binding bindingFor(String roomId) {
+        return BindingBuilder.bind(broadcastQueue).to(roomExchange)
+                .with(RabbitMQConfig.BROADCAST_ROUTING_KEY_PREFIX + roomId);
+    }
+}
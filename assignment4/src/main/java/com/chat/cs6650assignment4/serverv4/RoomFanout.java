@@ -0,0 +1,173 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.BinaryMessage;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Delivers one broadcast to every session of a room. Rooms up to the threshold are walked on the listener
+ * thread. Larger rooms are split across the single-threaded fanoutLanes: the listener deals the room's
+ * sessions out once, and a session always lands in the same lane (its fanout key modulo the lane count),
+ * so its broadcasts stay in order without any per-session coordination. While a room still has lane work
+ * queued, its smaller broadcasts go through the lanes too, otherwise a serial send could overtake a queued
+ * one when the room shrinks.
+ */
+@Service
+public class RoomFanout {
+    private static final Logger logger = LoggerFactory.getLogger(RoomFanout.class);
+
+    private static final int[] SIZE_BUCKET_LIMITS = {10, 100, 1000, 10000};
+    private static final String[] SIZE_BUCKET_TAGS = {"1-10", "11-100", "101-1000", "1001-10000", "10001+"};
+
+    private final OutboundMessageDispatcher outboundDispatcher;
+    // Lane tasks queued or running per room; a room leaves the map when its count drops to zero.
+    private final ConcurrentHashMap<String, Integer> lanesInFlight = new ConcurrentHashMap<>();
+    private final Timer[] serialDurations = new Timer[SIZE_BUCKET_TAGS.length];
+    private final Timer[] parallelDurations = new Timer[SIZE_BUCKET_TAGS.length];
+    private final List<ThreadPoolTaskExecutor> lanes;
+
+    @Value("${chat.broadcast.fanout.parallel-threshold:500}")
+    private int parallelThreshold = 500;
+
+    public RoomFanout(OutboundMessageDispatcher outboundDispatcher,
+                      @Qualifier("fanoutLanes") List<ThreadPoolTaskExecutor> lanes,
+                      MeterRegistry meterRegistry) {
+        this.outboundDispatcher = outboundDispatcher;
+        this.lanes = lanes;
+        for (int i = 0; i < SIZE_BUCKET_TAGS.length; i++) {
+            serialDurations[i] = durationTimer(meterRegistry, SIZE_BUCKET_TAGS[i], "serial");
+            parallelDurations[i] = durationTimer(meterRegistry, SIZE_BUCKET_TAGS[i], "parallel");
+        }
+    }
+
+    private static Timer durationTimer(MeterRegistry meterRegistry, String sizeBucket, String mode) {
+        return Timer.builder("chat.broadcast.fanout.duration")
+                .description("Time to hand one broadcast to every session of a room")
+                .tag("room_size", sizeBucket)
+                .tag("mode", mode)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+    }
+
+    public void fanOut(SessionContext[] sessions, BroadcastFrames frames) {
+        long start = System.nanoTime();
+        int bucket = sizeBucket(sessions.length);
+        boolean parallel = lanes.size() > 1
+                && (sessions.length > parallelThreshold || lanesInFlight.containsKey(frames.roomId()));
+        if (!parallel) {
+            for (SessionContext session : sessions) {
+                deliver(session, frames);
+            }
+            serialDurations[bucket].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return;
+        }
+
+        SessionContext[][] laneSessions = partition(sessions, lanes.size());
+        int busyLanes = 0;
+        for (SessionContext[] share : laneSessions) {
+            if (share.length > 0) {
+                busyLanes++;
+            }
+        }
+        if (busyLanes == 0) {
+            return;
+        }
+        String roomId = frames.roomId();
+        AtomicInteger remaining = new AtomicInteger(busyLanes);
+        lanesInFlight.merge(roomId, busyLanes, Integer::sum);
+        for (int lane = 0; lane < laneSessions.length; lane++) {
+            SessionContext[] share = laneSessions[lane];
+            if (share.length == 0) {
+                continue;
+            }
+            int laneIndex = lane;
+            Runnable task = () -> {
+                try {
+                    for (SessionContext session : share) {
+                        deliver(session, frames);
+                    }
+                } catch (Exception e) {
+                    logger.error("Error in fan-out lane {} for room {}", laneIndex, roomId, e);
+                } finally {
+                    lanesInFlight.computeIfPresent(roomId, (room, count) -> count == 1 ? null : count - 1);
+                    if (remaining.decrementAndGet() == 0) {
+                        parallelDurations[bucket].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    }
+                }
+            };
+            try {
+                lanes.get(lane).execute(task);
+            } catch (TaskRejectedException e) {
+                logger.warn("Fan-out lane {} rejected a broadcast for room {}: {}", laneIndex, roomId, e.getMessage());
+                lanesInFlight.computeIfPresent(roomId, (room, count) -> count == 1 ? null : count - 1);
+            }
+        }
+    }
+
+    // Deals the sessions out to their lanes in one pass, keeping each lane's share in room order.
+    private static SessionContext[][] partition(SessionContext[] sessions, int laneCount) {
+        int[] counts = new int[laneCount];
+        for (SessionContext session : sessions) {
+            counts[session.getFanoutKey() % laneCount]++;
+        }
+        SessionContext[][] shares = new SessionContext[laneCount][];
+        for (int lane = 0; lane < laneCount; lane++) {
+            shares[lane] = new SessionContext[counts[lane]];
+            counts[lane] = 0;
+        }
+        for (SessionContext session : sessions) {
+            int lane = session.getFanoutKey() % laneCount;
+            shares[lane][counts[lane]++] = session;
+        }
+        return shares;
+    }
+
+    private void deliver(SessionContext session, BroadcastFrames frames) {
+        if (!session.getSession().isOpen()) {
+            return;
+        }
+        SessionCoalescingBuffer coalescingBuffer = session.getCoalescingBuffer();
+        if (session.isBinaryProtocol()) {
+            byte[] frame = session.isDeflateProtocol() ? frames.deflated() : frames.binary();
+            if (coalescingBuffer != null) {
+                coalescingBuffer.addBinary(frame);
+            } else {
+                // Each send gets its own BinaryMessage: the container consumes the wrapping buffer.
+                outboundDispatcher.send(session, new BinaryMessage(frame));
+            }
+        } else if (coalescingBuffer != null) {
+            coalescingBuffer.addText(frames.text().getPayload());
+        } else {
+            outboundDispatcher.send(session, frames.text());
+        }
+    }
+
+    private static int sizeBucket(int roomSize) {
+        for (int i = 0; i < SIZE_BUCKET_LIMITS.length; i++) {
+            if (roomSize <= SIZE_BUCKET_LIMITS[i]) {
+                return i;
+            }
+        }
+        return SIZE_BUCKET_LIMITS.length;
+    }
+
+    @PreDestroy
+    public void stop() {
+        for (ThreadPoolTaskExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.chat.cs6650assignment4.serverv4;
+
+// Called by SessionManager outside its lock when a room gains its first local session or loses its last one.
+public interface RoomMembershipListener {
+
+    void roomOccupied(String roomId);
+
+    void roomVacated(String roomId);
+}
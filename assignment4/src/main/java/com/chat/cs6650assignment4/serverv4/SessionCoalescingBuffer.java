@@ -0,0 +1,113 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import com.chat.cs6650assignment4.protocol.BinaryFrameCodec;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Holds a session's broadcasts for one window and sends them as a single frame: a JSON array of the
+ * broadcast objects for text sessions, or a BATCH frame for binary ones. A window holding a single
+ * broadcast goes out as the plain frame. Frames are handed to the session's outbound queue while the
+ * lock is held so consecutive flushes keep their order.
+ */
+public class SessionCoalescingBuffer {
+    private final SessionContext context;
+    private final BroadcastCoalescer coalescer;
+    private final int maxMessages;
+    private final int maxBytes;
+
+    // Not synchronized: a BLOCK-policy offer waits inside this lock, which would pin a virtual thread.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<String> textPayloads = new ArrayList<>();
+    private final List<byte[]> binaryFrames = new ArrayList<>();
+    private int bufferedBytes;
+    private long firstBufferedNanos;
+    private long generation;
+
+    SessionCoalescingBuffer(SessionContext context, BroadcastCoalescer coalescer, int maxMessages, int maxBytes) {
+        this.context = context;
+        this.coalescer = coalescer;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    public void addText(String payload) {
+        lock.lock();
+        try {
+            textPayloads.add(payload);
+            added(payload.length());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void addBinary(byte[] frame) {
+        lock.lock();
+        try {
+            binaryFrames.add(frame);
+            added(frame.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void added(int bytes) {
+        bufferedBytes += bytes;
+        int count = textPayloads.size() + binaryFrames.size();
+        if (count == 1) {
+            firstBufferedNanos = System.nanoTime();
+            coalescer.scheduleFlush(this, generation);
+        }
+        if (count >= maxMessages || bufferedBytes >= maxBytes) {
+            flushLocked(true);
+        }
+    }
+
+    void flush(long expectedGeneration) {
+        lock.lock();
+        try {
+            // A timer from a window that already flushed on size must not cut the next window short.
+            if (expectedGeneration == generation) {
+                flushLocked(false);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLocked(boolean sizeTriggered) {
+        int count = textPayloads.size() + binaryFrames.size();
+        if (count == 0) {
+            return;
+        }
+        generation++;
+        long heldNanos = System.nanoTime() - firstBufferedNanos;
+
+        WebSocketMessage<?> frame;
+        if (context.isBinaryProtocol()) {
+            frame = new BinaryMessage(binaryFrames.size() == 1
+                    ? binaryFrames.get(0) : BinaryFrameCodec.encodeBatch(binaryFrames));
+            binaryFrames.clear();
+        } else if (textPayloads.size() == 1) {
+            frame = new TextMessage(textPayloads.get(0));
+            textPayloads.clear();
+        } else {
+            StringBuilder json = new StringBuilder(bufferedBytes + count + 2).append('[');
+            for (int i = 0; i < textPayloads.size(); i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append(textPayloads.get(i));
+            }
+            frame = new TextMessage(json.append(']').toString());
+            textPayloads.clear();
+        }
+        bufferedBytes = 0;
+        coalescer.send(context, frame, count, heldNanos, sizeTriggered);
+    }
+}
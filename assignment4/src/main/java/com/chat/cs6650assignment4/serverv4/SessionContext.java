@@ -0,0 +1,121 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import com.chat.cs6650assignment4.protocol.BinaryFrameCodec;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Everything the hot path needs about a connection, resolved once at handshake.
+public class SessionContext {
+    private static final AtomicInteger FANOUT_KEYS = new AtomicInteger();
+
+    private final WebSocketSession session;
+    private final String roomId;
+    private final int roomSlot;
+    private final String clientIp;
+    private final boolean binaryProtocol;
+    private final boolean deflateProtocol;
+    private final SessionOutboundQueue outboundQueue;
+    // Picks the session's fan-out lane; sequential so lanes get even shares of a room.
+    private final int fanoutKey = FANOUT_KEYS.getAndIncrement() & Integer.MAX_VALUE;
+    private volatile SessionCoalescingBuffer coalescingBuffer;
+    private volatile TokenBucket rateLimiter;
+    private volatile AckMode ackMode = AckMode.FULL;
+    private volatile CumulativeAckWindow ackWindow;
+    private volatile long lastActivityNanos = System.nanoTime();
+    private volatile boolean active = true;
+
+    SessionContext(WebSocketSession session, String roomId, int roomSlot, String clientIp, String acceptedProtocol,
+                   SessionOutboundQueue outboundQueue) {
+        this.session = session;
+        this.roomId = roomId;
+        this.roomSlot = roomSlot;
+        this.clientIp = clientIp;
+        this.binaryProtocol = BinaryFrameCodec.DEFLATE_SUBPROTOCOL.equals(acceptedProtocol)
+                || BinaryFrameCodec.SUBPROTOCOL.equals(acceptedProtocol);
+        // DEFLATED frames are optional on chat.bin.deflate.v1; skip them if permessage-deflate got through anyway.
+        this.deflateProtocol = BinaryFrameCodec.DEFLATE_SUBPROTOCOL.equals(acceptedProtocol)
+                && session.getExtensions().stream().noneMatch(e -> "permessage-deflate".equals(e.getName()));
+        this.outboundQueue = outboundQueue;
+    }
+
+    public WebSocketSession getSession() {
+        return session;
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    public int getRoomSlot() {
+        return roomSlot;
+    }
+
+    public String getClientIp() {
+        return clientIp;
+    }
+
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    public boolean isDeflateProtocol() {
+        return deflateProtocol;
+    }
+
+    public int getFanoutKey() {
+        return fanoutKey;
+    }
+
+    public SessionOutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    public SessionCoalescingBuffer getCoalescingBuffer() {
+        return coalescingBuffer;
+    }
+
+    void setCoalescingBuffer(SessionCoalescingBuffer coalescingBuffer) {
+        this.coalescingBuffer = coalescingBuffer;
+    }
+
+    public TokenBucket getRateLimiter() {
+        return rateLimiter;
+    }
+
+    void setRateLimiter(TokenBucket rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public AckMode getAckMode() {
+        return ackMode;
+    }
+
+    void setAckMode(AckMode ackMode) {
+        this.ackMode = ackMode;
+    }
+
+    public CumulativeAckWindow getAckWindow() {
+        return ackWindow;
+    }
+
+    void setAckWindow(CumulativeAckWindow ackWindow) {
+        this.ackWindow = ackWindow;
+    }
+
+    public long getLastActivityNanos() {
+        return lastActivityNanos;
+    }
+
+    public void touch() {
+        lastActivityNanos = System.nanoTime();
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    void markClosed() {
+        active = false;
+    }
+}
@@ -1,27 +1,188 @@
 package com.chat.cs6650assignment4.serverv4;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.socket.WebSocketSession;
-import java.util.Collections;
-import java.util.Set;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/*
+ * Rooms are indexed by an integer slot. Numeric room ids below numericRoomSlots map straight to their
+ * value; any other id is assigned a slot above that range when its first session joins, and the slot is
+ * freed for reuse when its last session leaves. Each slot holds a copy-on-write array of session contexts,
+ * so broadcasts iterate a plain array without locking or allocating. Joins and leaves are rare next to
+ * broadcasts, so they copy the array under one lock.
+ */
 @Service
 public class SessionManager {
-    private final ConcurrentHashMap<String, Set<WebSocketSession>> roomSessions = new ConcurrentHashMap<>();
+    public static final String CONTEXT_ATTRIBUTE = "chatSessionContext";
+
+    private static final SessionContext[] EMPTY = new SessionContext[0];
+
+    private final int numericRoomSlots;
+    private final ConcurrentHashMap<String, Integer> namedRoomSlots = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    // Guarded by writeLock.
+    private final ArrayDeque<Integer> freeNamedSlots = new ArrayDeque<>();
+    private int nextNamedSlot;
+    private volatile AtomicReferenceArray<SessionContext[]> rooms;
+    private final List<RoomMembershipListener> membershipListeners = new CopyOnWriteArrayList<>();
+
+    public SessionManager(@Value("${chat.sessions.numeric-room-slots:1024}") int numericRoomSlots) {
+        this.numericRoomSlots = numericRoomSlots;
+        this.nextNamedSlot = numericRoomSlots;
+        this.rooms = newTable(numericRoomSlots + 64);
+    }
+
+    public void addMembershipListener(RoomMembershipListener listener) {
+        membershipListeners.add(listener);
+    }
+
+    public SessionContext addSession(String roomId, WebSocketSession session, String acceptedProtocol,
+                                     SessionOutboundQueue outboundQueue) {
+        String clientIp = session.getRemoteAddress() == null ? null : session.getRemoteAddress().toString();
+        SessionContext context;
+        boolean firstInRoom;
+        synchronized (writeLock) {
+            // Assigned under the lock so a leave cannot free the slot between lookup and join.
+            int slot = assignSlot(roomId);
+            context = new SessionContext(session, roomId, slot, clientIp, acceptedProtocol, outboundQueue);
+            AtomicReferenceArray<SessionContext[]> table = tableFor(slot);
+            SessionContext[] current = table.get(slot);
+            SessionContext[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = context;
+            table.set(slot, updated);
+            firstInRoom = current.length == 0;
+        }
+        session.getAttributes().put(CONTEXT_ATTRIBUTE, context);
+        if (firstInRoom) {
+            for (RoomMembershipListener listener : membershipListeners) {
+                listener.roomOccupied(roomId);
+            }
+        }
+        return context;
+    }
+
+    public void removeSession(SessionContext context) {
+        int slot = context.getRoomSlot();
+        SessionContext[] current;
+        synchronized (writeLock) {
+            current = rooms.get(slot);
+            int index = indexOf(current, context);
+            if (index < 0) {
+                return;
+            }
+            SessionContext[] updated = EMPTY;
+            if (current.length > 1) {
+                updated = new SessionContext[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            }
+            rooms.set(slot, updated);
+            if (updated.length == 0 && slot >= numericRoomSlots
+                    && namedRoomSlots.remove(context.getRoomId(), slot)) {
+                freeNamedSlots.push(slot);
+            }
+        }
+        if (current.length == 1) {
+            for (RoomMembershipListener listener : membershipListeners) {
+                listener.roomVacated(context.getRoomId());
+            }
+        }
+    }
+
+    // The returned array is a snapshot and must not be modified.
+    public SessionContext[] getSessions(String roomId) {
+        int slot = slotFor(roomId);
+        if (slot < 0) {
+            return EMPTY;
+        }
+        SessionContext[] sessions = getSessions(slot);
+        // A named room's slot may have been freed and handed to another room since the lookup.
+        return sessions.length > 0 && !roomId.equals(sessions[0].getRoomId()) ? EMPTY : sessions;
+    }
+
+    public SessionContext[] getSessions(int roomSlot) {
+        AtomicReferenceArray<SessionContext[]> table = rooms;
+        return roomSlot >= 0 && roomSlot < table.length() ? table.get(roomSlot) : EMPTY;
+    }
+
+    public static SessionContext contextOf(WebSocketSession session) {
+        return (SessionContext) session.getAttributes().get(CONTEXT_ATTRIBUTE);
+    }
+
+    public int slotFor(String roomId) {
+        if (roomId == null) {
+            return -1;
+        }
+        int numeric = parseSlot(roomId);
+        if (numeric >= 0) {
+            return numeric;
+        }
+        Integer slot = namedRoomSlots.get(roomId);
+        return slot == null ? -1 : slot;
+    }
+
+    // Caller holds writeLock.
+    private int assignSlot(String roomId) {
+        int slot = slotFor(roomId);
+        if (slot < 0) {
+            Integer free = freeNamedSlots.poll();
+            slot = free != null ? free : nextNamedSlot++;
+            namedRoomSlots.put(roomId, slot);
+        }
+        return slot;
+    }
+
+    private int parseSlot(String roomId) {
+        int length = roomId.length();
+        if (length == 0 || length > 9 || (length > 1 && roomId.charAt(0) == '0')) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = roomId.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value < numericRoomSlots ? value : -1;
+    }
 
-    public void addSession(String roomId, WebSocketSession session) {
-        roomSessions.computeIfAbsent(roomId, k -> ConcurrentHashMap.newKeySet()).add(session);
+    // Caller holds writeLock.
+    private AtomicReferenceArray<SessionContext[]> tableFor(int slot) {
+        AtomicReferenceArray<SessionContext[]> table = rooms;
+        if (slot >= table.length()) {
+            AtomicReferenceArray<SessionContext[]> grown = newTable(Math.max(table.length() * 2, slot + 1));
+            for (int i = 0; i < table.length(); i++) {
+                grown.set(i, table.get(i));
+            }
+            rooms = grown;
+            table = grown;
+        }
+        return table;
     }
 
-    public void removeSession(String roomId, WebSocketSession session) {
-        roomSessions.computeIfPresent(roomId, (k, v) -> {
-            v.remove(session);
-            return v.isEmpty() ? null : v;
-        });
+    private static AtomicReferenceArray<SessionContext[]> newTable(int length) {
+        AtomicReferenceArray<SessionContext[]> table = new AtomicReferenceArray<>(length);
+        for (int i = 0; i < length; i++) {
+            table.set(i, EMPTY);
+        }
+        return table;
     }
 
-    public Set<WebSocketSession> getSessions(String roomId) {
-        return roomSessions.getOrDefault(roomId, Collections.emptySet());
+    private static int indexOf(SessionContext[] contexts, SessionContext context) {
+        for (int i = 0; i < contexts.length; i++) {
+            if (contexts[i] == context) {
+                return i;
+            }
+        }
+        return -1;
     }
 }
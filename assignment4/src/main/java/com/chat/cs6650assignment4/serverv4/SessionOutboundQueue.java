@@ -0,0 +1,239 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.PongMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class SessionOutboundQueue {
+    private static final Logger logger = LoggerFactory.getLogger(SessionOutboundQueue.class);
+
+    // Messages written per drain pass before the writer yields to other sessions.
+    private static final int DRAIN_BATCH = 64;
+
+    private final WebSocketSession session;
+    private final OutboundMessageDispatcher dispatcher;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final OutboundOverflowPolicy overflowPolicy;
+    private final long blockNanos;
+
+    private final ArrayDeque<WebSocketMessage<?>> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private long queuedBytes;
+    private volatile boolean closed;
+    // System.nanoTime() when the write in progress started, 0 when the writer is not inside sendMessage.
+    private volatile long sendStartedNanos;
+
+    SessionOutboundQueue(WebSocketSession session, OutboundMessageDispatcher dispatcher, int maxMessages,
+                         long maxBytes, OutboundOverflowPolicy overflowPolicy, long blockNanos) {
+        this.session = session;
+        this.dispatcher = dispatcher;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.overflowPolicy = overflowPolicy;
+        this.blockNanos = blockNanos;
+    }
+
+    public WebSocketSession getSession() {
+        return session;
+    }
+
+    public boolean offer(WebSocketMessage<?> message) {
+        int bytes = estimateBytes(message);
+        // Pings and pongs are at most 125 bytes and carry the heartbeat: they are queued even when the queue is
+        // full, and never dropped or made to wait. A session that stops reading is left to the idle reaper.
+        boolean control = isControl(message);
+        lock.lock();
+        try {
+            long remainingNanos = blockNanos;
+            while (!closed && !control && isFull(bytes)) {
+                switch (overflowPolicy) {
+                    case DROP_OLDEST -> {
+                        if (!dropOldestDataLocked()) {
+                            // Only control frames are queued; the new message is the oldest data.
+                            dispatcher.onDropped(bytes);
+                            return true;
+                        }
+                    }
+                    case BLOCK -> {
+                        if (remainingNanos <= 0) {
+                            evictLocked();
+                            return false;
+                        }
+                        remainingNanos = notFull.awaitNanos(remainingNanos);
+                    }
+                    case DISCONNECT -> {
+                        evictLocked();
+                        return false;
+                    }
+                }
+            }
+            if (closed) {
+                return false;
+            }
+            queue.addLast(message);
+            queuedBytes += bytes;
+            dispatcher.onEnqueued(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+
+        if (scheduled.compareAndSet(false, true)) {
+            dispatcher.scheduleDrain(this);
+        }
+        return true;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Nanoseconds the current write has been blocked in sendMessage, 0 if there is none.
+    long sendingForNanos(long now) {
+        long started = sendStartedNanos;
+        return started == 0 ? 0 : now - started;
+    }
+
+    // Evicts the session unless it is already closed; returns false if it was.
+    boolean evict() {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            evictLocked();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            clearLocked();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void drain() {
+        int written = 0;
+        while (true) {
+            WebSocketMessage<?> next;
+            int bytes = 0;
+            lock.lock();
+            try {
+                next = queue.pollFirst();
+                if (next != null) {
+                    bytes = estimateBytes(next);
+                    queuedBytes -= bytes;
+                    dispatcher.onDequeued(bytes);
+                    notFull.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (next == null) {
+                scheduled.set(false);
+                // Re-check after releasing the flag so an offer racing with the exit is not stranded.
+                if (size() == 0 || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+
+            try {
+                if (session.isOpen()) {
+                    sendStartedNanos = System.nanoTime();
+                    session.sendMessage(next);
+                    dispatcher.onWritten(next, bytes);
+                }
+            } catch (Exception e) {
+                // Includes a write that hit the send time limit; the socket is not usable after either.
+                logger.error("Failed to send to session {}: {}", session.getId(), e.getMessage());
+                evict();
+                return;
+            } finally {
+                sendStartedNanos = 0;
+            }
+
+            if (++written >= DRAIN_BATCH) {
+                dispatcher.scheduleDrain(this);
+                return;
+            }
+        }
+    }
+
+    // Drops the oldest queued message that is not a control frame; false if there is none.
+    private boolean dropOldestDataLocked() {
+        Iterator<WebSocketMessage<?>> it = queue.iterator();
+        while (it.hasNext()) {
+            WebSocketMessage<?> queued = it.next();
+            if (!isControl(queued)) {
+                it.remove();
+                int droppedBytes = estimateBytes(queued);
+                queuedBytes -= droppedBytes;
+                dispatcher.onDropped(droppedBytes);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isControl(WebSocketMessage<?> message) {
+        return message instanceof PingMessage || message instanceof PongMessage;
+    }
+
+    private boolean isFull(int incomingBytes) {
+        return queue.size() >= maxMessages || (!queue.isEmpty() && queuedBytes + incomingBytes > maxBytes);
+    }
+
+    private void evictLocked() {
+        closed = true;
+        clearLocked();
+        notFull.signalAll();
+        dispatcher.evict(this);
+    }
+
+    private void clearLocked() {
+        while (!queue.isEmpty()) {
+            dispatcher.onDequeued(estimateBytes(queue.pollFirst()));
+        }
+        queuedBytes = 0;
+    }
+
+    static int estimateBytes(WebSocketMessage<?> message) {
+        if (message instanceof TextMessage textMessage) {
+            return textMessage.getPayload().length();
+        }
+        if (message instanceof BinaryMessage binaryMessage) {
+            return binaryMessage.getPayloadLength();
+        }
+        return message.getPayloadLength();
+    }
+}
@@ -0,0 +1,46 @@
+package com.chat.cs6650assignment4.serverv4;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Lock-free token bucket in GCRA form: the whole state is one "theoretical arrival time". A frame is
+ * admitted while that time is less than burst * interval ahead of now, and admitting pushes it one
+ * interval further. One CAS per frame, no refill thread, no lock.
+ */
+public final class TokenBucket {
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong theoreticalArrival;
+
+    public TokenBucket(double permitsPerSecond, int burst) {
+        this.intervalNanos = (long) (1_000_000_000L / permitsPerSecond);
+        this.toleranceNanos = intervalNanos * Math.max(burst - 1, 0);
+        this.theoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    // As tryAcquire, without taking the permit.
+    public long waitNanos(long nowNanos) {
+        long earliest = theoreticalArrival.get() - toleranceNanos;
+        return nowNanos - earliest < 0 ? earliest - nowNanos : 0;
+    }
+
+    // Returns a permit taken by tryAcquire that ended up unused.
+    public void refund() {
+        theoreticalArrival.addAndGet(-intervalNanos);
+    }
+
+    // Returns 0 when a permit was taken, otherwise the nanoseconds until one becomes available.
+    public long tryAcquire(long nowNanos) {
+        while (true) {
+            long tat = theoreticalArrival.get();
+            long earliest = tat - toleranceNanos;
+            if (nowNanos - earliest < 0) {
+                return earliest - nowNanos;
+            }
+            long next = (tat - nowNanos > 0 ? tat : nowNanos) + intervalNanos;
+            if (theoreticalArrival.compareAndSet(tat, next)) {
+                return 0;
+            }
+        }
+    }
+}